@@ -0,0 +1,18 @@
+package resub.likelihood;
+
+
+/**
+ * A likelihood core that can restrict the partials of a node to the states in its alphabet
+ */
+interface ActiveStatesCore {
+
+
+	/**
+	 * Set the states that the next partials calculation of this node is restricted to
+	 * @param nodeIndex
+	 * @param activeStates state indices in increasing order, or null for all states
+	 */
+	public void setActiveStates(int nodeIndex, int[] activeStates);
+
+
+}
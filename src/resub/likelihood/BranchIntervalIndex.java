@@ -0,0 +1,158 @@
+package resub.likelihood;
+
+import beast.base.evolution.tree.Node;
+
+
+/**
+ * Index of the height intervals spanned by the branches of a tree, for finding all branches that overlap a
+ * range of heights (eg. the range swept out by an epoch date when it moves) in O(log n + k) time.
+ * Branches are sorted by the height of their child node, and a segment tree over this order holds the maximum height of their parents.
+ * The index is only refreshed when it is queried after the tree has changed. The branches are nearly sorted by then,
+ * so the insertion sort used to restore the order is cheap.
+ */
+class BranchIntervalIndex {
+
+
+	final private int nodeCount;
+
+	// Heights of the child and parent node of each branch, by node number. The root branch has a parent height of -infinity
+	final private double [] childHeights;
+	final private double [] parentHeights;
+
+	// Node numbers sorted by child height
+	final private int [] order;
+	final private double [] sortedChildHeights;
+
+	// Segment tree of the maximum parent height, with the leaves at segmentOffset + position
+	final private double [] maxParentHeights;
+	final private int segmentOffset;
+
+	private boolean dirty;
+
+
+	BranchIntervalIndex(int nodeCount) {
+		this.nodeCount = nodeCount;
+		this.childHeights = new double[nodeCount];
+		this.parentHeights = new double[nodeCount];
+		this.order = new int[nodeCount];
+		this.sortedChildHeights = new double[nodeCount];
+		for (int i = 0; i < nodeCount; i ++) {
+			order[i] = i;
+		}
+
+		int offset = 1;
+		while (offset < nodeCount) {
+			offset *= 2;
+		}
+		this.segmentOffset = offset;
+		this.maxParentHeights = new double[2 * offset];
+		this.dirty = true;
+	}
+
+
+	/**
+	 * Flag that node heights have changed, so the index must be refreshed before its next query
+	 */
+	void setDirty() {
+		dirty = true;
+	}
+
+
+	boolean isDirty() {
+		return dirty;
+	}
+
+
+	/**
+	 * Refresh the index from the current node heights
+	 * @param nodes indexed by node number
+	 */
+	void refresh(Node [] nodes) {
+		for (Node node : nodes) {
+			setBranch(node.getNr(), node.getHeight(), node.isRoot() ? Double.NEGATIVE_INFINITY : node.getParent().getHeight());
+		}
+		rebuild();
+	}
+
+
+	void setBranch(int nodeNr, double childHeight, double parentHeight) {
+		childHeights[nodeNr] = childHeight;
+		parentHeights[nodeNr] = parentHeight;
+		dirty = true;
+	}
+
+
+	void rebuild() {
+
+		// Insertion sort, starting from the previous order
+		for (int i = 0; i < nodeCount; i ++) {
+			int nodeNr = order[i];
+			double height = childHeights[nodeNr];
+			int j = i - 1;
+			while (j >= 0 && childHeights[order[j]] > height) {
+				order[j+1] = order[j];
+				j--;
+			}
+			order[j+1] = nodeNr;
+		}
+
+		for (int i = 0; i < nodeCount; i ++) {
+			sortedChildHeights[i] = childHeights[order[i]];
+			maxParentHeights[segmentOffset + i] = parentHeights[order[i]];
+		}
+		for (int i = segmentOffset + nodeCount; i < maxParentHeights.length; i ++) {
+			maxParentHeights[i] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = segmentOffset - 1; i > 0; i --) {
+			maxParentHeights[i] = Math.max(maxParentHeights[2*i], maxParentHeights[2*i+1]);
+		}
+
+		dirty = false;
+	}
+
+
+	/**
+	 * Find all branches with childHeight <= upper and parentHeight >= lower
+	 * @param lower
+	 * @param upper
+	 * @param nodeNrs output array of node numbers, at least as long as the number of nodes
+	 * @return the number of branches found
+	 */
+	int query(double lower, double upper, int [] nodeNrs) {
+		if (dirty) {
+			throw new IllegalStateException("The branch interval index should be refreshed before it is queried");
+		}
+
+		// Number of branches whose child is not above the upper bound
+		int low = 0, high = nodeCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sortedChildHeights[mid] <= upper) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		if (low == 0) return 0;
+		return collect(1, 0, segmentOffset, low, lower, nodeNrs, 0);
+	}
+
+
+	/**
+	 * Collect the branches at positions below 'end' in the subtree of segment 'segment', which covers positions [from, to)
+	 */
+	private int collect(int segment, int from, int to, int end, double lower, int [] nodeNrs, int count) {
+		if (from >= end || maxParentHeights[segment] < lower) {
+			return count;
+		}
+		if (segment >= segmentOffset) {
+			nodeNrs[count] = order[from];
+			return count + 1;
+		}
+		int mid = (from + to) >>> 1;
+		count = collect(2*segment, from, mid, end, lower, nodeNrs, count);
+		return collect(2*segment + 1, mid, to, end, lower, nodeNrs, count);
+	}
+
+
+}
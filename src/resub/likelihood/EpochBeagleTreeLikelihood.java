@@ -28,6 +28,8 @@ package resub.likelihood;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import beagle.Beagle;
 import beagle.BeagleFactory;
@@ -45,6 +47,8 @@ import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
+import resub.math.ResubMathUtil;
+import resub.substitutionmodel.EpochEigenSubstitutionModel;
 
 
 /**
@@ -80,24 +84,66 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
 
     private static final int RESCALE_FREQUENCY = 10000;
     private static final int RESCALE_TIMES = 1;
+    // bounds on the rescale interval when it is tuned to the underflow frequency
+    private static final int MIN_RESCALE_FREQUENCY = 100;
+    private static final int MAX_RESCALE_FREQUENCY = 1000000;
+    // number of timed evaluations for each configuration when auto-tuning
+    private static final int AUTO_TUNE_EVALUATIONS = 5;
 
     boolean m_bUseAmbiguities, m_bUseTipLikelihoods;
     int m_nStateCount;
     int m_nNodeCount;
+    // transition matrices computed in Java during a traversal, uploaded to BEAGLE in one call
     private double [] matrices;
+    private int [] matrixIndices;
+    private double [] matrixPaddedValues;
+    private int matrixCount;
+    // scratch matrices for chaining P-matrices across epochs, allocated once in initialize()
+    private double [] epochMatrix;
+    private double [] chainedMatrix;
     private int epochCount;
     private double substModelThrehold;
 
     
+    // category rates and weights of the site model without the invariant category, which are refreshed 
+    // only when the site model is dirty or restored, and the values that were last uploaded to BEAGLE
+    private double [] siteCategoryRates;
+    private double [] siteCategoryWeights;
+    private boolean siteCategoriesKnown;
     private double [] currentCategoryRates;
 //    private double [] storedCurrentCategoryRates;
     private double [] currentFreqs;
     private double [] currentCategoryWeights;
+    
+    // arguments of calculateRootLogLikelihoods
+    private double [] sumLogLikelihoods = new double[1];
+    private int [] rootBufferIndices = new int[1];
+    private int [] zeroIndices = new int[] {0};
+    private int [] cumulativeScaleIndices = new int[1];
 
     private double [] currentThresholds;
     private double [] storedThresholds;
 
     private int invariantCategory = -1;
+    
+    // the first eigen buffer of each epoch. Models that implement EpochEigenSubstitutionModel use several buffers
+    private int [] eigenOffsets;
+    private boolean useEpochEigen;
+    
+    // why no BEAGLE instance could be created, or null if one was
+    private String failureReason;
+    
+    // position of this likelihood in the resource, preference and scaling orders of the system properties
+    private int instanceNumber;
+    private BeagleConfiguration configuration;
+    
+    // double precision likelihood that a single precision instance is checked against, and the number of evaluations since the last check
+    private EpochBeagleTreeLikelihood doublePrecisionLikelihood;
+    private int precisionCheckCount;
+    
+    // set when BEAGLE was re-initialised after the last store, so the stored buffers are empty and a restored state is recalculated in full
+    private boolean storedBuffersLost;
+    private boolean recalculateAll;
 
     @Override
     public void initAndValidate() {
@@ -118,10 +164,140 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         currentThresholds = new double[epochDates.getDimension()];
         storedThresholds  = new double[epochDates.getDimension()];
 
-        initialize();
+        instanceNumber = instanceCount++;
+        BeagleConfiguration configuration = new BeagleConfiguration(beagleThreadsInput.get(), vectorisationInput.get(), precisionInput.get());
+        if (autoTuneInput.get()) {
+        	configuration = autoTune(configuration);
+        }
+        this.configuration = configuration;
+        if (initialize(configuration) && configuration.precision == Precision.singlePrecision) {
+        	initDoublePrecisionLikelihood();
+        }
+    }
+    
+    
+    /**
+     * Set up a double precision copy of this likelihood to check the drift of single precision against
+     */
+    private void initDoublePrecisionLikelihood() {
+    	doublePrecisionLikelihood = new EpochBeagleTreeLikelihood();
+    	doublePrecisionLikelihood.initByName(
+                "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+                "branchRateModel", branchRateModelInput.get(), "useAmbiguities", m_useAmbiguities.get(), 
+                "useTipLikelihoods", m_useTipLikelihoods.get(),"scaling", scaling.get().toString(),
+                "rootFrequencies", rootFrequenciesInput.get(),
+                "epochDates", epochDatesInput.get(),
+                "useEpochEigen", useEpochEigenInput.get(),
+                "adaptiveRescaling", adaptiveRescalingInput.get(),
+                "beagleThreads", configuration.threads,
+                "vectorisation", configuration.vectorisation,
+                "precision", Precision.doublePrecision,
+                "model", modelsInput.get());
+    	if (doublePrecisionLikelihood.getBeagle() == null) {
+    		Log.warning.println("  No double precision BEAGLE instance to check single precision against: " + doublePrecisionLikelihood.getFailureReason());
+    		doublePrecisionLikelihood = null;
+    	}
+    }
+    
+    
+    /**
+     * Recompute the likelihood of the state that was just calculated in double precision and log how far the single precision value drifted.
+     * Switch this likelihood to double precision when the drift is larger than the tolerance, and recalculate that state.
+     */
+    private void checkPrecision() {
+    	double doubleLogP = doublePrecisionLikelihood.calculateFullLogP();
+    	double drift = Math.abs(logP - doubleLogP);
+    	Log.info.println(getID() + ": single precision log likelihood " + logP + " drifted " + drift + " from double precision");
+    	if (drift <= precisionToleranceInput.get()) {
+    		return;
+    	}
+    	
+    	Log.warning.println(getID() + ": drift " + drift + " is larger than the tolerance " + precisionToleranceInput.get() + ", switching to double precision");
+    	doublePrecisionLikelihood.finalizeBeagle();
+    	doublePrecisionLikelihood = null;
+    	finalizeBeagle();
+    	configuration = new BeagleConfiguration(configuration.threads, configuration.vectorisation, Precision.doublePrecision);
+    	if (!initialize(configuration)) {
+    		throw new IllegalStateException("Could not switch to double precision: " + failureReason);
+    	}
+    	storedBuffersLost = true;
+    	calculateFullLogP();
+    }
+    
+    
+    /**
+     * Calculate the likelihood with every node, matrix and eigen decomposition recomputed
+     */
+    private double calculateFullLogP() {
+    	hasDirt = Tree.IS_FILTHY;
+    	updateSubstitutionModel = true;
+    	updateSiteModel = true;
+    	siteCategoriesKnown = false;
+    	return calculateLogP();
+    }
+    
+    
+    /**
+     * Time a few full evaluations with each thread count and vectorisation that the configuration leaves open
+     * @return the fastest configuration, or the one given if none of them could be used
+     */
+    private BeagleConfiguration autoTune(BeagleConfiguration configuration) {
+    	List<BeagleConfiguration> candidates = configuration.getCandidates();
+    	if (candidates.size() <= 1) {
+    		return configuration;
+    	}
+    	
+    	BeagleConfiguration best = configuration;
+    	long bestTime = Long.MAX_VALUE;
+    	for (BeagleConfiguration candidate : candidates) {
+    		if (!initialize(candidate)) {
+    			continue;
+    		}
+    		try {
+    			calculateFullLogP();
+    			long startTime = System.nanoTime();
+    			for (int i = 0; i < AUTO_TUNE_EVALUATIONS; i++) {
+    				calculateFullLogP();
+    			}
+    			long time = System.nanoTime() - startTime;
+    			Log.info.println("  BEAGLE configuration " + candidate + " takes " + (time / AUTO_TUNE_EVALUATIONS / 1e6) + " ms per evaluation");
+    			if (time < bestTime) {
+    				bestTime = time;
+    				best = candidate;
+    			}
+    		} catch (Exception e) {
+    			Log.warning.println("  BEAGLE configuration " + candidate + " failed: " + e.getMessage());
+    		}
+    		finalizeBeagle();
+    	}
+    	
+    	failureReason = null;
+    	rescaleEventCount = 0;
+    	fullTraversalCount = 0;
+    	rescaleTime = 0;
+    	rescalingFrequency = RESCALE_FREQUENCY;
+    	Log.info.println("  Auto-tuning chose BEAGLE configuration " + best);
+    	return best;
+    }
+    
+    
+    private void finalizeBeagle() {
+    	try {
+    		beagle.finalize();
+    	} catch (Throwable e) {
+    		Log.warning.println("  Could not release BEAGLE instance: " + e.getMessage());
+    	}
+    	beagle = null;
     }
 
-    private boolean initialize() {
+    /**
+     * @return why no BEAGLE instance could be created, or null if one was
+     */
+    public String getFailureReason() {
+    	return failureReason;
+    }
+
+    private boolean initialize(BeagleConfiguration configuration) {
         m_nNodeCount = treeInput.get().getNodeCount();
         m_bUseAmbiguities = m_useAmbiguities.get();
         m_bUseTipLikelihoods = m_useTipLikelihoods.get();
@@ -137,13 +313,21 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         }
         m_branchLengths = new double[m_nNodeCount];
         storedBranchLengths = new double[m_nNodeCount];
+        initBranchIndex(m_nNodeCount);
 
         m_nStateCount = dataInput.get().getMaxStateCount();
         patternCount = dataInput.get().getPatternCount();
 
         //System.err.println("Attempt to load BEAGLE TreeLikelihood");
 
-        eigenCount = epochCount;//this.branchSubstitutionModel.getEigenCount();
+        // one eigen decomposition per epoch, or one per alphabet epoch for resub models
+        useEpochEigen = useEpochEigenInput.get();
+        eigenOffsets = new int[epochCount];
+        eigenCount = 0;
+        for (int i = 0; i < epochCount; i++) {
+        	eigenOffsets[i] = eigenCount;
+        	eigenCount += getEigenCount(models[i]);
+        }
 
         double[] categoryRates = m_siteModel.getCategoryRates(null);
         // check for invariant rates category
@@ -183,7 +367,12 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         
         probabilities = new double[(m_nStateCount + 1) * (m_nStateCount + 1)];
         Arrays.fill(probabilities, 1.0);
-        matrices = new double[m_nStateCount * m_nStateCount * categoryCount];
+        epochMatrix = new double[probabilities.length];
+        chainedMatrix = new double[probabilities.length];
+        matrices = new double[m_nNodeCount * m_nStateCount * m_nStateCount * categoryCount];
+        matrixIndices = new int[m_nNodeCount];
+        matrixPaddedValues = new double[m_nNodeCount];
+        Arrays.fill(matrixPaddedValues, 1.0);
 
         tipCount = treeInput.get().getLeafNodeCount();
 
@@ -230,24 +419,25 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
 
         if (scalingOrder.size() > 0) {
             this.rescalingScheme = PartialsRescalingScheme.parseFromString(
-                    scalingOrder.get(instanceCount % scalingOrder.size()));
+                    scalingOrder.get(instanceNumber % scalingOrder.size()));
         }
 
         if (resourceOrder.size() > 0) {
             // added the zero on the end so that a CPU is selected if requested resource fails
-            resourceList = new int[]{resourceOrder.get(instanceCount % resourceOrder.size()), 0};
+            resourceList = new int[]{resourceOrder.get(instanceNumber % resourceOrder.size()), 0};
             if (resourceList[0] > 0) {
                 preferenceFlags |= BeagleFlag.PROCESSOR_GPU.getMask(); // Add preference weight against CPU
             }
         }
 
         if (preferredOrder.size() > 0) {
-            preferenceFlags = preferredOrder.get(instanceCount % preferredOrder.size());
+            preferenceFlags = preferredOrder.get(instanceNumber % preferredOrder.size());
         }
 
         if (requiredOrder.size() > 0) {
-            requirementFlags = requiredOrder.get(instanceCount % requiredOrder.size());
+            requirementFlags = requiredOrder.get(instanceNumber % requiredOrder.size());
         }
+        preferenceFlags |= configuration.getPreferenceFlags();
 
         if (scaling.get().equals(Scaling.always)) {
         	this.rescalingScheme = PartialsRescalingScheme.ALWAYS;
@@ -292,8 +482,6 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
 //            requirementFlags |= BeagleFlag.EIGEN_COMPLEX.getMask();
 //        }
 
-        instanceCount++;
-
         try {
 	        beagle = BeagleFactory.loadBeagleInstance(
 	                tipCount,
@@ -309,12 +497,19 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
 	                preferenceFlags,
 	                requirementFlags
 	        );
-        } catch (Exception e) {
+        } catch (Exception | LinkageError e) {
+        	failureReason = "loading the BEAGLE instance failed: " + e.getMessage();
         	beagle = null;
         }
         if (beagle == null) {
+        	if (failureReason == null) {
+        		failureReason = "no BEAGLE resource meets the requirements";
+        	}
             return false;
         }
+        if (configuration.threads > 0) {
+        	beagle.setCPUThreadCount(configuration.threads);
+        }
 
 //        beagle = new BeagleDebugger(beagle, true);
         
@@ -337,15 +532,18 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
                         }
                     }
                 }
-                sb.append("    with instance flags: ").append(instanceDetails.toString());
+                sb.append("    with instance flags: ").append(instanceDetails.toString()).append("\n");
+                sb.append("    with configuration: ").append(configuration);
                 Log.info.println(sb.toString());
             } else {
                 Log.warning.println("  Error retrieving BEAGLE resource for instance: " + instanceDetails.toString());
+                failureReason = "the resource of the BEAGLE instance cannot be retrieved";
                 beagle = null;
                 return false;
             }
         } else {
         	Log.warning.println("  No external BEAGLE resources available, or resource list/requirements not met, using Java implementation");
+        	failureReason = "the BEAGLE instance has no details";
             beagle = null;
             return false;
         }
@@ -386,6 +584,7 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
 
         if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC) {
             everUnderflowed = false; // If false, BEAST does not rescale until first under-/over-flow.
+            adaptiveRescaling = adaptiveRescalingInput.get();
         }
 
         updateSubstitutionModel = true;
@@ -398,6 +597,9 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         currentCategoryRates = categoryRates;
         currentFreqs = new double[m_nStateCount];
         currentCategoryWeights = new double[categoryRates.length];
+        siteCategoryRates = new double[categoryRates.length];
+        siteCategoryWeights = new double[categoryRates.length];
+        siteCategoriesKnown = false;
         
         return true;
     }
@@ -493,21 +695,58 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
     void setUpSubstModel() {
         // we are currently assuming a no-category model...
         // TODO More efficient to update only the substitution model that changed, instead of all
-        for (int i = 0; i < eigenCount; i++) {
+        for (int i = 0; i < epochCount; i++) {
         	if (!models[i].canReturnComplexDiagonalization()) {
 	            //EigenDecomposition ed = m_substitutionModel.getEigenDecomposition(i, 0);
 	            EigenDecomposition ed = models[i].getEigenDecomposition(null);
-	
-	            eigenBufferHelper.flipOffset(i);
-	
-	            beagle.setEigenDecomposition(
-	                    eigenBufferHelper.getOffsetIndex(i),
-	                    ed.getEigenVectors(),
-	                    ed.getInverseEigenVectors(),
-	                    ed.getEigenValues());
+	            setEigenDecomposition(eigenOffsets[i], ed);
+	        } else if (useEpochEigen && models[i] instanceof EpochEigenSubstitutionModel) {
+	        	
+	        	// one decomposition for each alphabet epoch
+	        	EpochEigenSubstitutionModel model = (EpochEigenSubstitutionModel) models[i];
+	        	for (int j = 0; j < model.getEpochEigenCount(); j++) {
+	        		setEigenDecomposition(eigenOffsets[i] + j, model.getEpochEigenDecomposition(j));
+	        	}
 	        }
     	}
     }
+    
+    private void setEigenDecomposition(int eigenIndex, EigenDecomposition ed) {
+        eigenBufferHelper.flipOffset(eigenIndex);
+
+        beagle.setEigenDecomposition(
+                eigenBufferHelper.getOffsetIndex(eigenIndex),
+                ed.getEigenVectors(),
+                ed.getInverseEigenVectors(),
+                ed.getEigenValues());
+    }
+    
+    /**
+     * @return the number of eigen buffers required by this model
+     */
+    private int getEigenCount(SubstitutionModel model) {
+    	if (model.canReturnComplexDiagonalization() && useEpochEigen && model instanceof EpochEigenSubstitutionModel) {
+    		return ((EpochEigenSubstitutionModel) model).getEpochEigenCount();
+    	}
+    	return 1;
+    }
+    
+    /**
+     * @return the eigen buffer that BEAGLE can use to exponentiate a branch that lies entirely inside this epoch,
+     * or -1 if the transition probabilities must be computed in Java
+     */
+    private int getEigenIndex(int epoch, double startAge, double endAge) {
+    	if (!models[epoch].canReturnComplexDiagonalization()) {
+    		return eigenOffsets[epoch];
+    	}
+    	if (useEpochEigen && models[epoch] instanceof EpochEigenSubstitutionModel) {
+    		int index = ((EpochEigenSubstitutionModel) models[epoch]).getEpochEigenIndex(startAge, endAge);
+    		if (index >= 0) {
+    			return eigenOffsets[epoch] + index;
+    		}
+    	}
+    	return -1;
+    }
 
     /**
      * Sets the partials from a sequence in an alignment.
@@ -576,46 +815,23 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         hasDirt = Tree.IS_CLEAN;
         substModelThrehold = Double.POSITIVE_INFINITY;
         
-        double[] categoryRates = m_siteModel.getCategoryRates(null);
-        if (getConstantPattern() != null) {
-            double [] tmp = new double [categoryRates.length - 1];
-            for (int k = 0; k < invariantCategory; k++) {
-            	tmp[k] = categoryRates[k];
-            }
-            for (int k = invariantCategory + 1; k < categoryRates.length; k++) {
-            	tmp[k-1] = categoryRates[k];
-            }
-            categoryRates = tmp;
+        if (m_siteModel.isDirtyCalculation()) {
+        	siteCategoriesKnown = false;
         }
-        for (int i = 0; i < categoryRates.length; i++) {
-        	if (categoryRates[i] != currentCategoryRates[i]) {
-        		updateSiteModel = true;
-        		break;
-        	}
+        updateSiteCategories();
+        if (!Arrays.equals(siteCategoryRates, currentCategoryRates)) {
+        	updateSiteModel = true;
         }
         //updateSiteModel |= m_siteModel.isDirtyCalculation();
 
         // make sure nodes crossing thresholds that changed get updated
-        Node [] nodes = treeInput.get().getNodesAsArray();
+        checkTreeDirtiness();
         boolean hasDirtyNodes = false;
         for (int i = 0; i < epochDates.getDimension(); i++) {
         	double t = epochDates.getArrayValue(i);
         	double t2 = currentThresholds[i]; 
-        	double maxTime = Math.max(t, t2) + 1e-10;
         	if (t2 != t) {
-        		for (Node node : nodes) {
-        			if (!node.isRoot() && 
-        				((node.getHeight() <= t  && node.getParent().getHeight() >= t ) ||
-        				 (node.getHeight() <= t2 && node.getParent().getHeight() >= t2))) {
-        				// mark all nodes to the root as requiring the transition matrix
-        				// to be updated. This is done by setting its m_branchLengths to -1.
-        				while (node != null && node.getHeight() <= maxTime) {
-            				m_branchLengths[node.getNr()] = -1;
-        					node = node.getParent();
-        				}
-        				hasDirtyNodes = true;
-        			}
-        		}
+        		hasDirtyNodes |= markThresholdBranches(t, t2) > 0;
         		currentThresholds[i] = t;
         	}
         }
@@ -652,6 +868,7 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
      */
     @Override
     public void store() {
+    	storedBuffersLost = false;
         partialBufferHelper.storeState();
         eigenBufferHelper.storeState();
         matrixBufferHelper.storeState();
@@ -669,6 +886,12 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
     @Override
     public void restore() {
   		updateSiteModel = true; // this is required to upload the categoryRates to BEAGLE after the restore
+  		siteCategoriesKnown = false;
+  		if (storedBuffersLost) {
+  			// the next calculation cannot reuse any buffer of the restored state
+  			recalculateAll = true;
+  			storedBuffersLost = false;
+  		}
         
         partialBufferHelper.restoreState();
         eigenBufferHelper.restoreState();
@@ -711,19 +934,30 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         }
 
         if (matrixUpdateIndices == null) {
-            matrixUpdateIndices = new int[eigenCount][m_nNodeCount];
-            branchLengths = new double[eigenCount][m_nNodeCount];
-            branchUpdateCount = new int[eigenCount];
+            matrixUpdateIndices = new int[m_nNodeCount];
+            matrixEigenIndices = new int[m_nNodeCount];
+            eigenIndices = new int[m_nNodeCount];
+            categoryRateIndices = new int[m_nNodeCount];
+            branchLengths = new double[m_nNodeCount];
             scaleBufferIndices = new int[internalNodeCount];
             storedScaleBufferIndices = new int[internalNodeCount];
         }
 
         if (operations == null) {
-            operations = new int[epochCount][internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
-            operationCount = new int[epochCount];
+            operations = new int[internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
+        }
+
+        if (recalculateAll) {
+        	hasDirt = Tree.IS_FILTHY;
+        	updateSubstitutionModel = true;
+        	updateSiteModel = true;
+        	siteCategoriesKnown = false;
+        	recalculateAll = false;
         }
 
         recomputeScaleFactors = false;
+        boolean fullTraversal = false;
+        final long startTime = System.nanoTime();
 
         if (this.rescalingScheme == PartialsRescalingScheme.ALWAYS) {
             useScaleFactors = true;
@@ -733,72 +967,71 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
             if (rescalingCountInner < RESCALE_TIMES) {
                 recomputeScaleFactors = true;
                 hasDirt = Tree.IS_FILTHY;// makeDirty();
+                fullTraversal = true;
 //                System.err.println("Recomputing scale factors");
             }
 
             rescalingCountInner++;
             rescalingCount++;
-            if (rescalingCount > RESCALE_FREQUENCY) {
+            if (rescalingCount > rescalingFrequency) {
                 rescalingCount = 0;
                 rescalingCountInner = 0;
+                
+                // the scale factors lasted a whole interval, so they can be recomputed less often
+                if (adaptiveRescaling && !underflowedSinceRescale) {
+                	rescalingFrequency = Math.min(MAX_RESCALE_FREQUENCY, rescalingFrequency * 2);
+                }
+                underflowedSinceRescale = false;
             }
         } else if (this.rescalingScheme == PartialsRescalingScheme.DELAYED && everUnderflowed) {
             useScaleFactors = true;
             recomputeScaleFactors = true;
             hasDirt = Tree.IS_FILTHY;
+            fullTraversal = true;
             rescalingCount++;
         }
+        if (fullTraversal) {
+        	fullTraversalCount++;
+        }
 
         //for (int i = 0; i < eigenCount; i++) {
         //   branchUpdateCount[i] = 0;
         //}
-        operationListCount = 0;
-
         // operationCount[0] = 0;
 		reset();
 
         final Node root = treeInput.get().getRoot();
         traverse(root, null, true);
+        setTransitionMatrices();
 
         if (updateSubstitutionModel) {
             setUpSubstModel();
         }
 
+        updateSiteCategories();
         if (updateSiteModel) {
-            double[] categoryRates = m_siteModel.getCategoryRates(null);
-            if (getConstantPattern() != null) {
-	            double [] tmp = new double [categoryRates.length - 1];
-	            for (int k = 0; k < invariantCategory; k++) {
-	            	tmp[k] = categoryRates[k];
-	            }
-	            for (int k = invariantCategory + 1; k < categoryRates.length; k++) {
-	            	tmp[k-1] = categoryRates[k];
-	            }
-	            categoryRates = tmp;
-	        }
-            for (int i = 0; i < categoryRates.length; i++) {
-            	if (categoryRates[i] != currentCategoryRates[i]) {
-                    beagle.setCategoryRates(categoryRates);
-                    i = categoryRates.length;
-            	}
-            }
-            currentCategoryRates = categoryRates;
-        }
-
-        for (int i = 0; i < eigenCount; i++) {
-            if (!models[i].canReturnComplexDiagonalization()) {
-                if (branchUpdateCount[i] > 0) {
-                    beagle.updateTransitionMatrices(
-                            eigenBufferHelper.getOffsetIndex(i),
-                            matrixUpdateIndices[i],
-                            null,
-                            null,
-                            branchLengths[i],
-                            branchUpdateCount[i]);
-                }
+            if (!Arrays.equals(siteCategoryRates, currentCategoryRates)) {
+            	beagle.setCategoryRates(siteCategoryRates);
+            	System.arraycopy(siteCategoryRates, 0, currentCategoryRates, 0, siteCategoryRates.length);
             }
         }
 
+        // all matrices that BEAGLE exponentiates go in one call, whichever eigen decomposition they use.
+        // The eigen buffers are looked up here because setUpSubstModel may have flipped them
+        if (branchUpdateCount > 0) {
+        	for (int i = 0; i < branchUpdateCount; i++) {
+        		eigenIndices[i] = eigenBufferHelper.getOffsetIndex(matrixEigenIndices[i]);
+        	}
+        	beagle.updateTransitionMatricesWithMultipleModels(
+        			eigenIndices,
+        			categoryRateIndices,
+        			matrixUpdateIndices,
+        			null,
+        			null,
+        			branchLengths,
+        			branchUpdateCount);
+        }
+
 //        if (COUNT_TOTAL_OPERATIONS) {
 //            for (int i = 0; i < eigenCount; i++) {
 //                totalMatrixUpdateCount += branchUpdateCount[i];
@@ -814,26 +1047,13 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         boolean firstRescaleAttempt = true;
 
         do {
-            for (int i = 0; i < eigenCount; i++) {
-            	if (operationCount[i] > 0) {
-            		beagle.updatePartials(operations[i], operationCount[i], Beagle.NONE);
-            	}
+            // the operations are in post-order, so one call covers all epochs
+            if (operationCount > 0) {
+            	beagle.updatePartials(operations, operationCount, Beagle.NONE);
             }
 
             int rootIndex = partialBufferHelper.getOffsetIndex(root.getNr());
 
-            double[] categoryWeights = m_siteModel.getCategoryProportions(null);
-            if (getConstantPattern() != null) {
-	            double [] tmp = new double [categoryWeights.length - 1];
-	            for (int k = 0; k < invariantCategory; k++) {
-	            	tmp[k] = categoryWeights[k];
-	            }
-	            for (int k = invariantCategory + 1; k < categoryWeights.length; k++) {
-	            	tmp[k-1] = categoryWeights[k];
-	            }
-	            categoryWeights = tmp;
-            }
-            
             double[] frequencies = null;
             	
         	// Get the frequencies from the oldest epoch that is younger than the root
@@ -880,25 +1100,20 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
 
             // these could be set only when they change but store/restore would need to be considered
             
-            for (int i = 0; i < categoryWeights.length; i++) {
-            	if (categoryWeights[i] != currentCategoryWeights[i]) {
-                    beagle.setCategoryWeights(0, categoryWeights);
-            		i = categoryWeights.length;
-            	}
+            // compare with copies of the uploaded values, as the site model may hand out its own arrays
+            if (!Arrays.equals(siteCategoryWeights, currentCategoryWeights)) {
+            	beagle.setCategoryWeights(0, siteCategoryWeights);
+            	System.arraycopy(siteCategoryWeights, 0, currentCategoryWeights, 0, siteCategoryWeights.length);
             }
-            currentCategoryWeights = categoryWeights;
-            for (int i = 0; i < frequencies.length; i++) {
-            	if (frequencies[i] != currentFreqs[i]) {
-                    beagle.setStateFrequencies(0, frequencies);
-            		i = frequencies.length;
-            	}
+            if (!Arrays.equals(frequencies, currentFreqs)) {
+            	beagle.setStateFrequencies(0, frequencies);
+            	System.arraycopy(frequencies, 0, currentFreqs, 0, currentFreqs.length);
             }
-            currentFreqs = frequencies;
-
-            double[] sumLogLikelihoods = new double[1];
 
-            beagle.calculateRootLogLikelihoods(new int[]{rootIndex}, new int[]{0}, new int[]{0},
-                    new int[]{cumulateScaleBufferIndex}, 1, sumLogLikelihoods);
+            rootBufferIndices[0] = rootIndex;
+            cumulativeScaleIndices[0] = cumulateScaleBufferIndex;
+            beagle.calculateRootLogLikelihoods(rootBufferIndices, zeroIndices, zeroIndices,
+                    cumulativeScaleIndices, 1, sumLogLikelihoods);
 
             
             //System.out.println(this.getClass().getSimpleName() + " " + sumLogLikelihoods[0]);
@@ -911,20 +1126,9 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
                         patternLogLikelihoods, dataInput.get().getWeights(), frequencies);
             } else if (invariantCategory >= 0) {
                 beagle.getSiteLogLikelihoods(patternLogLikelihoods);
-                int [] patternWeights = dataInput.get().getWeights();
-                proportionInvariant = m_siteModel.getProportionInvariant();
-                
                 
-    	        for (int k : getConstantPattern()) {
-    	        	int i = k / m_nStateCount;
-    	        	int j = k % m_nStateCount;
-    	        	patternLogLikelihoods[i] = (Math.log(Math.exp(patternLogLikelihoods[i]) + proportionInvariant * frequencies[j]));
-    	        }
-        	
-	            logL = 0.0;
-	            for (int i = 0; i < patternCount; i++) {
-	                logL += patternLogLikelihoods[i] * patternWeights[i];
-	            }
+                // only the constant patterns differ from the sum BEAGLE calculated
+                logL += addInvariantSites(patternLogLikelihoods, dataInput.get().getWeights(), frequencies);
             }
 
             if (Double.isNaN(logL) || Double.isInfinite(logL)) {
@@ -932,7 +1136,19 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
                 logL = Double.NEGATIVE_INFINITY;
 
                 if (firstRescaleAttempt && (rescalingScheme == PartialsRescalingScheme.DYNAMIC || rescalingScheme == PartialsRescalingScheme.DELAYED)) {
-                    // we have had a potential under/over flow so attempt a rescaling                	
+                    // we have had a potential under/over flow so attempt a rescaling
+                	rescaleEventCount++;
+                	fullTraversal = true;
+                	if (rescalingScheme == PartialsRescalingScheme.DYNAMIC && useScaleFactors && !recomputeScaleFactors) {
+                		// the reused scale factors were not good enough: recompute all of them at the next evaluation,
+                		// and do so more often from now on
+                		underflowedSinceRescale = true;
+                		rescalingCount = 0;
+                		rescalingCountInner = 0;
+                		if (adaptiveRescaling) {
+                			rescalingFrequency = Math.max(MIN_RESCALE_FREQUENCY, rescalingFrequency / 2);
+                		}
+                	}
                 	useScaleFactors = true;
                     recomputeScaleFactors = true;
 
@@ -947,6 +1163,7 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
                     // just want to overwrite the last attempt. We will flip the
                     // scale buffer indices though as we are recomputing them.
                     traverse(root, null, false);
+                    setTransitionMatrices();
 
                     done = false; // Run through do-while loop again
                     firstRescaleAttempt = false; // Only try to rescale once
@@ -975,34 +1192,130 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
         updateSiteModel = false;
         //********************************************************************
 
+        if (fullTraversal) {
+        	rescaleTime += System.nanoTime() - startTime;
+        }
         logP = logL;
-        return logL;
+        
+        // the double precision likelihood is calculated for the same state, before it is accepted or rejected
+        if (doublePrecisionLikelihood != null && ++precisionCheckCount >= precisionCheckIntervalInput.get()) {
+        	precisionCheckCount = 0;
+        	checkPrecision();
+        }
+        return logP;
     }
 
+	/**
+	 * Copy the category rates and weights of the site model into siteCategoryRates and siteCategoryWeights,
+	 * leaving out the invariant category, unless they are known already
+	 */
+	private void updateSiteCategories() {
+		if (siteCategoriesKnown) return;
+		double[] categoryRates = m_siteModel.getCategoryRates(null);
+		double[] categoryWeights = m_siteModel.getCategoryProportions(null);
+		for (int i = 0, j = 0; i < categoryRates.length; i++) {
+			if (i != invariantCategory) {
+				siteCategoryRates[j] = categoryRates[i];
+				siteCategoryWeights[j] = categoryWeights[i];
+				j++;
+			}
+		}
+		siteCategoriesKnown = true;
+	}
+
 	private void reset() {
-	    Arrays.fill(branchUpdateCount, 0);
-	    Arrays.fill(operationCount, 0);
+	    branchUpdateCount = 0;
+	    operationCount = 0;
+	    matrixCount = 0;
 	
 	    for (int i = 0;i < epochDatesArray.length; i++) {
 	    	epochDatesArray[i] = epochDates.getArrayValue(i);
 	    }
 	}
 	
+	/**
+	 * Upload all transition matrices that were computed in Java during the last traversal,
+	 * using a single call instead of one per branch
+	 */
+	private void setTransitionMatrices() {
+		if (matrixCount > 0) {
+			beagle.setTransitionMatrices(matrixIndices, matrices, matrixPaddedValues, matrixCount);
+			matrixCount = 0;
+		}
+	}
+	
     protected void setPartials(int number, double[] partials) {
         beagle.setPartials(partialBufferHelper.getOffsetIndex(number), partials);
     }
 
+    /**
+     * Add the probability of the invariant category to the likelihoods of the constant patterns
+     * @return the change in the weighted sum of the pattern log likelihoods
+     */
+    private double addInvariantSites(double[] patternLogLikelihoods, int[] patternWeights, double[] frequencies) {
+    	updateInvariantTerms(frequencies);
+    	double delta = 0.0;
+    	for (int c = 0; c < constantPatternIndices.length; c++) {
+    		int i = constantPatternIndices[c];
+    		double logL = patternLogLikelihoods[i];
+    		double logInvariant = logInvariantTerms[c];
+    		
+    		// log(exp(logL) + exp(logInvariant)) without under- or overflow
+    		double corrected = logL > logInvariant ? logL + Math.log1p(Math.exp(logInvariant - logL)) 
+    				: logInvariant + Math.log1p(Math.exp(logL - logInvariant));
+    		delta += (corrected - logL) * patternWeights[i];
+    		patternLogLikelihoods[i] = corrected;
+    	}
+    	return delta;
+    }
+    
+    
+    /**
+     * Refresh the log of proportionInvariant times the summed frequencies of the states that each constant pattern
+     * is constant for, when the proportion invariant or the frequencies changed since the last call
+     */
+    private void updateInvariantTerms(double[] frequencies) {
+    	if (constantPatternIndices == null) {
+    		
+    		// group the constant (pattern, state) pairs by pattern
+    		Map<Integer, List<Integer>> statesByPattern = new TreeMap<>();
+    		for (int k : getConstantPattern()) {
+    			statesByPattern.computeIfAbsent(k / m_nStateCount, i -> new ArrayList<>()).add(k % m_nStateCount);
+    		}
+    		constantPatternIndices = new int[statesByPattern.size()];
+    		constantPatternStates = new int[statesByPattern.size()][];
+    		int c = 0;
+    		for (Map.Entry<Integer, List<Integer>> entry : statesByPattern.entrySet()) {
+    			constantPatternIndices[c] = entry.getKey();
+    			constantPatternStates[c] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+    			c++;
+    		}
+    		logInvariantTerms = new double[constantPatternIndices.length];
+    		invariantTermsFrequencies = new double[m_nStateCount];
+    		invariantTermsProportion = Double.NaN;
+    	}
+    	
+        proportionInvariant = m_siteModel.getProportionInvariant();
+        if (proportionInvariant == invariantTermsProportion && Arrays.equals(frequencies, invariantTermsFrequencies)) {
+        	return;
+        }
+        for (int c = 0; c < constantPatternIndices.length; c++) {
+        	double sum = 0.0;
+        	for (int j : constantPatternStates[c]) {
+        		sum += frequencies[j];
+        	}
+        	logInvariantTerms[c] = Math.log(proportionInvariant * sum);
+        }
+        invariantTermsProportion = proportionInvariant;
+        System.arraycopy(frequencies, 0, invariantTermsFrequencies, 0, invariantTermsFrequencies.length);
+    }
+    
     private double getAscertainmentCorrectedLogLikelihood(Alignment patternList,
                                                           double[] patternLogLikelihoods,
                                                           int[] patternWeights,
                                                           double [] frequencies) {
     	if (getConstantPattern() != null) {
-	        proportionInvariant = m_siteModel.getProportionInvariant();
-	        for (int k : getConstantPattern()) {
-	        	int i = k / m_nStateCount;
-	        	int j = k % m_nStateCount;
-	        	patternLogLikelihoods[i] = (Math.log(Math.exp(patternLogLikelihoods[i]) + proportionInvariant * frequencies[j]));
-	        }
+    		addInvariantSites(patternLogLikelihoods, patternWeights, frequencies);
     	}
     	
         double logL = 0.0;
@@ -1066,27 +1379,27 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
             }
 
             // then set which matrix to update
-            // final int eigenIndex = 0;// = m_substitutionModel.getBranchIndex(node);
-            final int updateCount = branchUpdateCount[epoch];
-            matrixUpdateIndices[epoch][updateCount] = matrixBufferHelper.getOffsetIndex(nodeNum);
-
-            if (epoch != endEpoch || models[epoch].canReturnComplexDiagonalization()) {
+            final int eigenIndex = (epoch == endEpoch) ? getEigenIndex(epoch, endTime, startTime) : -1;
+            if (eigenIndex >= 0) {
+            	// let BEAGLE exponentiate this matrix
+            	matrixEigenIndices[branchUpdateCount] = eigenIndex;
+            	matrixUpdateIndices[branchUpdateCount] = matrixBufferHelper.getOffsetIndex(nodeNum);
+            	branchLengths[branchUpdateCount] = branchTime;
+            	branchUpdateCount++;
+            } else {
+            	// queue the matrices, they are sent to BEAGLE together in setTransitionMatrices()
+            	final int matrixSize = m_nStateCount * m_nStateCount;
+            	final int offset = matrixCount * matrixSize * categoryCount;
                 for (int i = 0; i < this.categoryCount; i++) {
                     final double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
                     getTransitionProbabilities(endEpoch, epoch, node, node.getParent().getHeight(), node.getHeight(), jointBranchRate, probabilities);
                     //System.out.println(node.getNr() + " " + Arrays.toString(m_fProbabilities));
-                    System.arraycopy(probabilities, 0, matrices,  m_nStateCount * m_nStateCount * i, m_nStateCount * m_nStateCount);
+                    System.arraycopy(probabilities, 0, matrices, offset + matrixSize * i, matrixSize);
                 }
-            	int matrixIndex = matrixBufferHelper.getOffsetIndex(nodeNum);
-            	beagle.setTransitionMatrix(matrixIndex, matrices, 1);
-
-            	// do not BEAGLE exponentiate this matrix
-            	branchUpdateCount[epoch]--;
+            	matrixIndices[matrixCount] = matrixBufferHelper.getOffsetIndex(nodeNum);
+            	matrixCount++;
             }
 
-            branchLengths[epoch][updateCount] = branchTime;
-            branchUpdateCount[epoch]++;
-
             update |= Tree.IS_DIRTY;
         }
 
@@ -1105,15 +1418,13 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
             // If either child node was updated then update this node too
             if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
 
-                int x = operationCount[epoch] * Beagle.OPERATION_TUPLE_SIZE;
+                int x = operationCount * Beagle.OPERATION_TUPLE_SIZE;
 
                 if (flip) {
                     // first flip the partialBufferHelper
                     partialBufferHelper.flipOffset(nodeNum);
                 }
 
-                final int[] operations = this.operations[epoch];
-
                 // System.out.println(x + " " + nodeNum + " " + partialBufferHelper.getOffsetIndex(nodeNum));
                 operations[x] = partialBufferHelper.getOffsetIndex(nodeNum);
 
@@ -1150,7 +1461,7 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
                 operations[x + 5] = partialBufferHelper.getOffsetIndex(child2.getNr()); // source node 2
                 operations[x + 6] = matrixBufferHelper.getOffsetIndex(child2.getNr()); // source matrix 2
 
-                operationCount[epoch]++;
+                operationCount++;
 
                 update |= (update1 | update2);
 
@@ -1162,64 +1473,41 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
     }
 
     
-    private void getTransitionProbabilities(int startEpoch, int endEpoch, Node node, double startTime, double endTime,
+    void getTransitionProbabilities(int startEpoch, int endEpoch, Node node, double startTime, double endTime,
 			double jointBranchRate, double[] probabilities) {
     	
     	
     	//Log.warning(startTime + "-" + endTime + " at transition " + epochDatesArray[0]);
 
-		double [] p2 = new double[probabilities.length];
-		double [] p3 = new double[probabilities.length];
+		// Reuse the preallocated scratch matrices: this is called for every epoch-crossing branch and category
+		final double [] p2 = epochMatrix;
+		final double [] p3 = chainedMatrix;
 		for (int k = startEpoch; k > endEpoch; k--) {
 			//Log.warning(models[k].getClass().getSimpleName() + " -> " + startTime + "-" + epochDatesArray[k-1]);
-			models[k].getTransitionProbabilities(node, startTime, epochDatesArray[k-1], jointBranchRate, p2);
 			if (k < startEpoch) {
+				models[k].getTransitionProbabilities(node, startTime, epochDatesArray[k-1], jointBranchRate, p2);
 				System.arraycopy(probabilities, 0, p3, 0, probabilities.length);
 				multiplyMatrices(p3, p2, probabilities);
 			} else {
-				System.arraycopy(p2, 0, probabilities, 0, probabilities.length);
+				models[k].getTransitionProbabilities(node, startTime, epochDatesArray[k-1], jointBranchRate, probabilities);
 			}
 			startTime = epochDatesArray[k-1];
 		}
 
 		//Log.warning(models[endEpoch].getClass().getSimpleName() + " -> " + startTime + "-" + endTime);
-		models[endEpoch].getTransitionProbabilities(node, startTime, endTime, jointBranchRate, p2);
 		if (startEpoch != endEpoch) {
+			models[endEpoch].getTransitionProbabilities(node, startTime, endTime, jointBranchRate, p2);
 			System.arraycopy(probabilities, 0, p3, 0, probabilities.length);
 			multiplyMatrices(p3, p2, probabilities);
 		} else {
-			System.arraycopy(p2, 0, probabilities, 0, probabilities.length);
+			models[endEpoch].getTransitionProbabilities(node, startTime, endTime, jointBranchRate, probabilities);
 		}
     }
     
     
 
 	public void multiplyMatrices(double[] left, double[] right, double[] result) {
-		
-		int index3 = 0;
-		for (int rowNum = 0; rowNum < m_nStateCount; rowNum ++) {
-			
-			for (int colNum = 0; colNum < m_nStateCount; colNum ++) {
-				
-				double sum = 0;
-				
-				// Move along the columns of left and rows of right 
-				int index1 = rowNum * m_nStateCount;
-				int index2 = colNum;
-				for (int pos = 0; pos < m_nStateCount; pos++) {
-					double term1 = left[index1];
-					double term2 = right[index2]; 
-					//double term2 = right[index1]; // Transposed
-					sum += term1*term2;
-
-					index1 ++;
-					index2 += m_nStateCount;
-				}
-
-				result[index3] = sum;
-				index3 ++;
-			}
-		}
+		ResubMathUtil.multiplyMatrices(left, right, result, m_nStateCount);
 	}
 	
 
@@ -1228,15 +1516,18 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
     // **************************************************************
 
     private int eigenCount;
-    private int[][] matrixUpdateIndices;
-    private double[][] branchLengths;
-    private int[] branchUpdateCount;
+    // matrices that BEAGLE exponentiates, with the (relative) eigen decomposition and branch length of each
+    private int[] matrixUpdateIndices;
+    private int[] matrixEigenIndices;
+    private int[] eigenIndices;
+    private int[] categoryRateIndices;
+    private double[] branchLengths;
+    private int branchUpdateCount;
     private int[] scaleBufferIndices;
     private int[] storedScaleBufferIndices;
 
-    private int[][] operations;
-    private int operationListCount;
-    private int[] operationCount;
+    private int[] operations;
+    private int operationCount;
 
     protected BufferIndexHelper partialBufferHelper;
     public BufferIndexHelper getPartialBufferHelper() {return partialBufferHelper;}
@@ -1258,6 +1549,13 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
     private boolean everUnderflowed = false;
     private int rescalingCount = 0;
     private int rescalingCountInner = 0;
+    private boolean adaptiveRescaling = false;
+    private boolean underflowedSinceRescale = false;
+
+    // counters for the rescaling logger
+    private long rescaleEventCount = 0;
+    private long fullTraversalCount = 0;
+    private long rescaleTime = 0;
 
     
     /**
@@ -1276,6 +1574,36 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
     protected Beagle beagle;
     
     public Beagle getBeagle() {return beagle;}
+    
+    @Override
+    public EpochBeagleTreeLikelihood getBeagleLikelihood() {
+    	return beagle == null ? null : this;
+    }
+
+    /**
+     * @return the number of evaluations that under- or overflowed, and were calculated again with fresh scale factors
+     */
+    public long getRescaleEventCount() {return rescaleEventCount;}
+
+    /**
+     * @return the number of evaluations that recomputed the partials and scale factors of the whole tree
+     */
+    public long getFullTraversalCount() {return fullTraversalCount;}
+
+    /**
+     * @return the time spent in rescale events and full traversals, in seconds
+     */
+    public double getRescaleTime() {return rescaleTime / 1e9;}
+
+    /**
+     * @return the number of evaluations between recomputations of all scale factors
+     */
+    public int getRescalingFrequency() {return rescalingFrequency;}
+
+    /**
+     * @return the precision of the BEAGLE instance, which becomes double precision once single precision drifted too far
+     */
+    public Precision getPrecision() {return configuration.precision;}
 
     /**
      * Flag to specify that the substitution model has changed
@@ -1294,8 +1622,16 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
      */
 
     private boolean ascertainedSitePatterns = false;
-
-    public class BufferIndexHelper {
+    
+    // constant patterns with the states each one is constant for, and the log of the invariant category's
+    // contribution to their likelihood for the proportion invariant and frequencies it was last calculated for
+    private int[] constantPatternIndices;
+    private int[][] constantPatternStates;
+    private double[] logInvariantTerms;
+    private double invariantTermsProportion;
+    private double[] invariantTermsFrequencies;
+
+    public static class BufferIndexHelper {
         /**
          * @param maxIndexValue the number of possible input values for the index
          * @param minIndexValue the minimum index value to have the mirrored buffers
@@ -1352,6 +1688,73 @@ public class EpochBeagleTreeLikelihood extends EpochTreeLikelihood {
 
     } // class BufferIndexHelper
 
+    /**
+     * Thread count, vectorisation and precision requested from BEAGLE for one instance
+     */
+    private static class BeagleConfiguration {
+    	final int threads;
+    	final Vectorisation vectorisation;
+    	final Precision precision;
+    	
+    	BeagleConfiguration(int threads, Vectorisation vectorisation, Precision precision) {
+    		this.threads = threads;
+    		this.vectorisation = vectorisation;
+    		this.precision = precision;
+    	}
+    	
+    	long getPreferenceFlags() {
+    		long flags = 0;
+    		if (threads == 1) {
+    			flags |= BeagleFlag.THREADING_NONE.getMask();
+    		} else if (threads > 1) {
+    			flags |= BeagleFlag.THREADING_CPP.getMask();
+    		}
+    		switch (vectorisation) {
+    		case none: flags |= BeagleFlag.VECTOR_NONE.getMask(); break;
+    		case sse: flags |= BeagleFlag.VECTOR_SSE.getMask(); break;
+    		case avx: flags |= BeagleFlag.VECTOR_AVX.getMask(); break;
+    		default:
+    		}
+    		switch (precision) {
+    		case doublePrecision: flags |= BeagleFlag.PRECISION_DOUBLE.getMask(); break;
+    		case singlePrecision: flags |= BeagleFlag.PRECISION_SINGLE.getMask(); break;
+    		default:
+    		}
+    		return flags;
+    	}
+    	
+    	/**
+    	 * @return configurations with each power of two up to the number of processors as thread count, 
+    	 * and each vectorisation, for the settings that are left open
+    	 */
+    	List<BeagleConfiguration> getCandidates() {
+    		List<Integer> threadCounts = new ArrayList<>();
+    		if (threads > 0) {
+    			threadCounts.add(threads);
+    		} else {
+    			int processors = Runtime.getRuntime().availableProcessors();
+    			for (int n = 1; n <= processors; n *= 2) {
+    				threadCounts.add(n);
+    			}
+    		}
+    		Vectorisation [] vectorisations = vectorisation != Vectorisation.auto ? new Vectorisation[] {vectorisation} :
+    			new Vectorisation[] {Vectorisation.avx, Vectorisation.sse, Vectorisation.none};
+    		
+    		List<BeagleConfiguration> candidates = new ArrayList<>();
+    		for (int n : threadCounts) {
+    			for (Vectorisation v : vectorisations) {
+    				candidates.add(new BeagleConfiguration(n, v, precision));
+    			}
+    		}
+    		return candidates;
+    	}
+    	
+    	@Override
+    	public String toString() {
+    		return "threads=" + (threads > 0 ? threads : "auto") + " vectorisation=" + vectorisation + " precision=" + precision;
+    	}
+    }
+
     public enum PartialsRescalingScheme {
         DEFAULT("default"), // whatever our current favourite default is
         NONE("none"),       // no scaling
@@ -43,21 +43,71 @@ import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.likelihood.LikelihoodCore;
 import beast.base.evolution.likelihood.TreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
 import beast.base.inference.State;
 import beast.base.inference.util.InputUtil;
+import beagle.BeagleFactory;
+import beagle.BeagleFlag;
+import beagle.BeagleInfo;
+import beagle.ResourceDetails;
+import resub.math.ResubMathUtil;
+import resub.substitutionmodel.EpochEigenSubstitutionModel;
+import resub.substitutionmodel.MultiTransitionResub;
 
 @Description("Calculates the probability of sequence data on a beast.tree given a site and substitution model using " +
         "a variant of the 'peeling algorithm'. For details, see" +
         "Felsenstein, Joseph (1981). Evolutionary trees from DNA sequences: a maximum likelihood approach. J Mol Evol 17 (6): 368-376.")
 public class EpochTreeLikelihood extends TreeLikelihood {
+	
+	public enum Vectorisation {auto, none, sse, avx}
+	
+	public enum Precision {
+		auto("auto"), doublePrecision("double"), singlePrecision("single");
+		
+		private final String text;
+		
+		Precision(String text) {
+			this.text = text;
+		}
+		
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+	
 	public Input<List<SubstitutionModel>> modelsInput = new Input<>("model","substitution models that apply for certain time intervals", new ArrayList<SubstitutionModel>());
 	public Input<Function> epochDatesInput = new Input<>("epochDates","list of threshold dates. " +
 			"The list indicates the dates at which substitution models are switched.", Validate.REQUIRED);
+	public Input<Boolean> useEpochEigenInput = new Input<>("useEpochEigen", "flag to let BEAGLE exponentiate branches that lie entirely inside one alphabet epoch of a resub model, "
+			+ "using the eigen decomposition of that epoch. Only branches that cross an epoch boundary are then computed in Java. "
+			+ "Off by default, because BEAGLE does not renormalise the rows of these matrices or reset blank states as the Java path does", false);
+	public Input<Integer> threadsInput = new Input<>("threads", "number of threads used by the java likelihood core, each of which works on its own block of site patterns. "
+			+ "Ignored when BEAGLE is used", 1);
+	public Input<Boolean> adaptiveRescalingInput = new Input<>("adaptiveRescaling", "flag to let BEAGLE tune the interval between recomputations of the scale factors "
+			+ "to how often underflow happens, when dynamic rescaling is used", true);
+	public Input<Boolean> reducedAlphabetsInput = new Input<>("reducedAlphabets", "flag to calculate the partials of nodes in the oldest epoch only for the states in the alphabet "
+			+ "of its resub model at their height. Only used by the java likelihood core, and not when root frequencies are specified", false);
+	public Input<Boolean> requireBeagleInput = new Input<>("requireBeagle", "flag to stop with an error when BEAGLE cannot be used, "
+			+ "instead of falling back to the java likelihood core", false);
+	public Input<Integer> beagleThreadsInput = new Input<>("beagleThreads", "number of threads of a BEAGLE CPU instance. "
+			+ "Zero leaves the choice to BEAGLE", 0);
+	public Input<Vectorisation> vectorisationInput = new Input<>("vectorisation", "vector instructions that a BEAGLE CPU instance should use "
+			+ "(" + Arrays.toString(Vectorisation.values()) + ")", Vectorisation.auto, Vectorisation.values());
+	public Input<Precision> precisionInput = new Input<>("precision", "floating point precision that the BEAGLE instance should use "
+			+ "(" + Arrays.toString(Precision.values()) + ")", Precision.auto, Precision.values());
+	public Input<Boolean> autoTuneInput = new Input<>("autoTune", "flag to time a few evaluations under each BEAGLE thread count and vectorisation "
+			+ "that is not fixed by the inputs above, and keep the fastest", false);
+	public Input<Integer> precisionCheckIntervalInput = new Input<>("precisionCheckInterval", "number of likelihood calculations between recomputations "
+			+ "in double precision, when BEAGLE uses single precision", 1000);
+	public Input<Double> precisionToleranceInput = new Input<>("precisionTolerance", "largest difference in log likelihood between single and double precision "
+			+ "before BEAGLE switches back to double precision", 0.01);
 
 	
 	
@@ -68,8 +118,53 @@ public class EpochTreeLikelihood extends TreeLikelihood {
 	protected int nodeCount;
 	// partialsMap maps node nr to partial that comes with it after taking epochs in account
 	protected int [] partialsMap; 
+	protected int [] storedPartialsMap;
+	
+	// Partials of branches that cross epoch boundaries are kept in slots, which are handed out on demand.
+	// epochSlots[nodeNr * epochDatesArray.length + k] is the slot at the top of epoch k for this branch, or -1 if it does not cross
+	protected int [] epochSlots;
+	protected int [] storedEpochSlots;
+	protected int unknownIndex;
+	
+	// Slots that are free to use, slots that were released since the last store (and can be reused once the state is accepted), 
+	// and slots that were handed out since the last store (and are returned if the state is rejected)
+	private int [] freeSlots;
+	private int freeSlotCount;
+	private int [] releasedSlots;
+	private int releasedSlotCount;
+	private int [] allocatedSlots;
+	private int allocatedSlotCount;
+	private boolean [] slotHasPartials;
+	private int createdSlotCount;
+	
+	// finds the branches that overlap the interval swept out by a moving epoch date
+	protected BranchIntervalIndex branchIndex;
+	protected int [] thresholdBranches;
+	protected boolean treeChangedSinceStore;
+	protected double [] storedEpochDatesArray;
 	
 	EpochBeagleTreeLikelihood epochbeagle;
+	
+	// restricts partials in the oldest epoch to the alphabet of the resub model, if reducedAlphabets is set
+	private ActiveStatesCore activeStatesCore;
+	private MultiTransitionResub reducedAlphabetModel;
+	
+	// buffers of the gradients, created when they are first calculated. outsideBuffers has one per depth of the pre-order
+	private double [][] outsideBuffers;
+	private double [] gradientPartials;
+	private double [][] gradientMatrices;
+	private int [] gradientStates;
+	private double [] gradientPatternWeights;
+	private double [] gradientInvariants;
+	private double [] gradientCategoryRates;
+	private double [] gradientTopRow, gradientRateRow, gradientBottomRow;
+	private EigenDecomposition [] rateMatrixEigens;
+	private double [][] rateMatrices;
+	private int rateMatrixCount;
+	
+	// gradients to calculate at the end of the next calculation, eg. of a proposed state that an evaluator restores afterwards
+	private boolean gradientsRequested;
+	private double [] requestedHeightGradient, requestedDateGradient;
 
     @Override
     public void initAndValidate() {
@@ -97,24 +192,49 @@ public class EpochTreeLikelihood extends TreeLikelihood {
 		epochbeagle = null;
         
         
-		epochbeagle = new EpochBeagleTreeLikelihood();
-        try {
-        	epochbeagle.initByName(
-                    "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
-                    "branchRateModel", branchRateModelInput.get(), "useAmbiguities", m_useAmbiguities.get(), 
-                    "useTipLikelihoods", m_useTipLikelihoods.get(),"scaling", scaling.get().toString(),
-                    "rootFrequencies", rootFrequenciesInput.get(),
-                    "epochDates", epochDatesInput.get(),
-                    "models", modelsInput.get());
-	        if (epochbeagle.getBeagle() != null) {
-	            //a Beagle instance was found, so we use it
-	            return;
-	        }
-        } catch (Exception e) {
-			// ignore
+		String beagleFailure;
+		if (Boolean.valueOf(System.getProperty("java.only"))) {
+			beagleFailure = "the java.only property is set";
+		} else {
+			epochbeagle = new EpochBeagleTreeLikelihood();
+	        try {
+	        	epochbeagle.initByName(
+	                    "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+	                    "branchRateModel", branchRateModelInput.get(), "useAmbiguities", m_useAmbiguities.get(), 
+	                    "useTipLikelihoods", m_useTipLikelihoods.get(),"scaling", scaling.get().toString(),
+	                    "rootFrequencies", rootFrequenciesInput.get(),
+	                    "epochDates", epochDatesInput.get(),
+	                    "useEpochEigen", useEpochEigenInput.get(),
+	                    "adaptiveRescaling", adaptiveRescalingInput.get(),
+	                    "beagleThreads", beagleThreadsInput.get(),
+	                    "vectorisation", vectorisationInput.get(),
+	                    "precision", precisionInput.get(),
+	                    "autoTune", autoTuneInput.get(),
+	                    "precisionCheckInterval", precisionCheckIntervalInput.get(),
+	                    "precisionTolerance", precisionToleranceInput.get(),
+	                    "model", modelsInput.get());
+		        if (epochbeagle.getBeagle() != null) {
+		            //a Beagle instance was found, so we use it
+		        	logEngineDecision("BEAGLE", null);
+		        	// TreeLikelihood.store() and restore() copy the branch lengths, which BEAGLE keeps itself
+		        	m_branchLengths = new double[treeInput.get().getNodeCount()];
+		        	storedBranchLengths = new double[treeInput.get().getNodeCount()];
+		            return;
+		        }
+		        beagleFailure = epochbeagle.getFailureReason() != null ? epochbeagle.getFailureReason() : "no BEAGLE instance was created";
+	        } catch (LinkageError e) {
+	        	// the BEAGLE library or its java bindings are missing. Errors in the configuration are not caught
+	        	beagleFailure = e.getClass().getSimpleName() + ": " + e.getMessage();
+			}
 		}
-        // No Beagle instance was found, so we use the good old java likelihood core
         epochbeagle = null;
+        if (requireBeagleInput.get()) {
+        	throw new IllegalArgumentException(getClass().getSimpleName() + "(" + getID() + ") requires BEAGLE, but it cannot be used because " 
+        			+ beagleFailure + "\n" + describeBeagleResources());
+        }
+        
+        // No Beagle instance was found, so we use the good old java likelihood core
+        logEngineDecision("java", beagleFailure);
 
         nodeCount = treeInput.get().getNodeCount();
         if (!(siteModelInput.get() instanceof SiteModel.Base)) {
@@ -131,16 +251,39 @@ public class EpochTreeLikelihood extends TreeLikelihood {
         }
         m_branchLengths = new double[nodeCount];
         storedBranchLengths = new double[nodeCount];
+        initBranchIndex(nodeCount);
+        storedEpochDatesArray = new double[epochDatesArray.length];
 
         int stateCount = dataInput.get().getMaxStateCount();
         int patterns = dataInput.get().getPatternCount();
-        likelihoodCore = createLikelihoodCore(stateCount);
+        activeStatesCore = null;
+        reducedAlphabetModel = null;
+        if (reducedAlphabetsInput.get()) {
+        	if (models[models.length-1] instanceof MultiTransitionResub && rootFrequenciesInput.get() == null) {
+        		reducedAlphabetModel = (MultiTransitionResub) models[models.length-1];
+        	} else {
+        		Log.warning.println("  reducedAlphabets is ignored: it requires the oldest model to be a " + MultiTransitionResub.class.getSimpleName() 
+        				+ " whose frequencies are used at the root");
+        	}
+        }
+        likelihoodCore = createCore(stateCount);
+        int threads = Math.min(threadsInput.get(), patterns);
+        if (threads > 1) {
+        	LikelihoodCore [] cores = new LikelihoodCore[threads];
+        	for (int i = 0; i < threads; i++) {
+        		cores[i] = createCore(stateCount);
+        	}
+        	likelihoodCore = new ThreadedLikelihoodCore(stateCount, cores);
+        }
+        if (reducedAlphabetModel != null) {
+        	activeStatesCore = (ActiveStatesCore) likelihoodCore;
+        }
 
         String className = getClass().getSimpleName();
 
         Alignment alignment = dataInput.get();
 
-        Log.info.println(className + "(" + getID() + ") uses " + likelihoodCore.getClass().getSimpleName());
+        Log.info.println(className + "(" + getID() + ") uses " + likelihoodCore.getClass().getSimpleName() + (threads > 1 ? " with " + threads + " threads" : ""));
         Log.info.println("  " + alignment.toString(true));
         // print startup messages via Log.print*
 
@@ -162,9 +305,16 @@ public class EpochTreeLikelihood extends TreeLikelihood {
             useAscertainedSitePatterns = true;
         }
         
-        partialsMap = new int[nodeCount];
     }
 
+    private LikelihoodCore createCore(int stateCount) {
+    	if (reducedAlphabetModel != null) {
+    		return new ReducedAlphabetLikelihoodCore(stateCount);
+    	}
+    	return createLikelihoodCore(stateCount);
+    }
+    
+    
     protected void initCore() {
         final int nodeCount = treeInput.get().getNodeCount();
         int totalNodeCount = nodeCount * models.length + 1;
@@ -175,8 +325,7 @@ public class EpochTreeLikelihood extends TreeLikelihood {
                 true, m_useAmbiguities.get()
         );
 
-        final int extNodeCount = nodeCount / 2 + 1 + 1;
-        final int intNodeCount = totalNodeCount - extNodeCount;
+        final int leafNodeCount = nodeCount / 2 + 1;
 
         if (m_useAmbiguities.get() || m_useTipLikelihoods.get()) {
             setPartials(treeInput.get().getRoot(), dataInput.get().getPatternCount());
@@ -185,13 +334,554 @@ public class EpochTreeLikelihood extends TreeLikelihood {
         }
 
         hasDirt = Tree.IS_FILTHY;
-        for (int i = 0; i < intNodeCount; i++) {
-            likelihoodCore.createNodePartials(extNodeCount + i - 1);
+        for (int i = leafNodeCount; i < nodeCount; i++) {
+            likelihoodCore.createNodePartials(i);
         }
 
+        // The last node has unknown states, and is the sibling of every epoch crossing
+        unknownIndex = totalNodeCount - 1;
         int[] states = new int[dataInput.get().getPatternCount()];
        	Arrays.fill(states, dataInput.get().getDataType().getStateCount());
-        likelihoodCore.setNodeStates(totalNodeCount - 1, states);
+        likelihoodCore.setNodeStates(unknownIndex, states);
+        
+        
+        // Partials for epoch crossings are only created when a slot is first used
+        partialsMap = new int[nodeCount];
+        storedPartialsMap = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+        	partialsMap[i] = i;
+        	storedPartialsMap[i] = i;
+        }
+        int slotCount = totalNodeCount - 1 - nodeCount;
+        epochSlots = new int[nodeCount * epochDatesArray.length];
+        storedEpochSlots = new int[epochSlots.length];
+        Arrays.fill(epochSlots, -1);
+        Arrays.fill(storedEpochSlots, -1);
+        freeSlots = new int[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+        	freeSlots[i] = totalNodeCount - 2 - i;
+        }
+        freeSlotCount = slotCount;
+        releasedSlots = new int[slotCount];
+        releasedSlotCount = 0;
+        allocatedSlots = new int[slotCount];
+        allocatedSlotCount = 0;
+        slotHasPartials = new boolean[totalNodeCount];
+        createdSlotCount = 0;
+        
+        double partialsMB = 2.0 * dataInput.get().getPatternCount() * dataInput.get().getMaxStateCount() * m_siteModel.getCategoryCount() * 8 / 1024 / 1024;
+        Log.info.println(String.format("  partials use %.2f MB per node: %.1f MB for %d internal nodes, "
+        		+ "and %.2f MB for each epoch crossing as needed (up to %d crossings)", 
+        		partialsMB, partialsMB * (nodeCount - leafNodeCount), nodeCount - leafNodeCount, partialsMB, slotCount));
+    }
+    
+    
+    /**
+     * @return the number of epoch crossing slots whose partials have been created so far
+     */
+    public int getCreatedSlotCount() {
+    	return createdSlotCount;
+    }
+
+
+    /**
+     * @return the BEAGLE version, each BEAGLE resource with its capabilities, and the number of processors available to java
+     */
+    protected static String describeBeagleResources() {
+    	StringBuilder sb = new StringBuilder();
+    	try {
+    		sb.append("  BEAGLE version ").append(BeagleInfo.getVersion()).append(" with resources:\n");
+    		List<ResourceDetails> resources = BeagleFactory.getResourceDetails();
+    		if (resources == null || resources.isEmpty()) {
+    			sb.append("    none\n");
+    		} else {
+    			for (ResourceDetails resource : resources) {
+    				sb.append("    ").append(resource.getNumber()).append(": ").append(resource.getName()).append(" [");
+    				String separator = "";
+    				for (BeagleFlag flag : new BeagleFlag[] {BeagleFlag.PROCESSOR_CPU, BeagleFlag.PROCESSOR_GPU, BeagleFlag.VECTOR_SSE, BeagleFlag.VECTOR_AVX, 
+    						BeagleFlag.THREADING_CPP, BeagleFlag.THREADING_OPENMP, BeagleFlag.PRECISION_SINGLE, BeagleFlag.PRECISION_DOUBLE}) {
+    					if (flag.isSet(resource.getFlags())) {
+    						sb.append(separator).append(flag.name());
+    						separator = " ";
+    					}
+    				}
+    				sb.append("]\n");
+    			}
+    		}
+    	} catch (Exception | LinkageError e) {
+    		sb.append("  The BEAGLE library could not be loaded: ").append(e.getMessage()).append("\n");
+    	}
+    	sb.append("  ").append(Runtime.getRuntime().availableProcessors()).append(" processors are available to java");
+    	return sb.toString();
+    }
+    
+    
+    /**
+     * Log which engine calculates this likelihood and why, with a rough estimate of the cost of a full evaluation
+     * @param engine
+     * @param beagleFailure the reason that BEAGLE is not used, or null if it is
+     */
+    private void logEngineDecision(String engine, String beagleFailure) {
+    	int stateCount = dataInput.get().getMaxStateCount();
+    	int patterns = dataInput.get().getPatternCount();
+    	int internalNodes = treeInput.get().getInternalNodeCount();
+    	int categories = ((SiteModel.Base) siteModelInput.get()).getCategoryCount();
+    	
+    	// two matrix-vector products for every internal node, pattern and category
+    	double cost = 2.0 * internalNodes * patterns * categories * stateCount * stateCount / 1e6;
+    	StringBuilder sb = new StringBuilder(getClass().getSimpleName() + "(" + getID() + ") uses the " + engine + " engine");
+    	if (beagleFailure != null) {
+    		sb.append(" because BEAGLE cannot be used: ").append(beagleFailure);
+    		int threads = threadsInput.get();
+    		if (threads <= 1 && Runtime.getRuntime().availableProcessors() > 1 && patterns > 1) {
+    			sb.append(". Setting 'threads' may speed up the java engine");
+    		}
+    	}
+    	sb.append(String.format("\n  a full evaluation takes about %.1f million multiply-adds for %d patterns, %d internal nodes, %d categories and %d states", 
+    			cost, patterns, internalNodes, categories, stateCount));
+    	if (beagleFailure != null) {
+    		Log.warning.println(sb.toString());
+    		Log.info.println(describeBeagleResources());
+    	} else {
+    		Log.info.println(sb.toString());
+    	}
+    }
+    
+    
+    /**
+     * @return the likelihood that does the calculations with BEAGLE, or null if the java likelihood core is used
+     */
+    public EpochBeagleTreeLikelihood getBeagleLikelihood() {
+    	return epochbeagle;
+    }
+    
+    
+    /**
+     * Gradient of the log likelihood with respect to the height of each node, from the partials of the last calculation.
+     * Branch and category rates are held fixed.
+     * @return the gradient, indexed by node number
+     */
+    public double[] getNodeHeightGradient() {
+    	double [] heightGradient = new double[treeInput.get().getNodeCount()];
+    	calculateGradients(heightGradient, new double[epochDatesArray.length]);
+    	return heightGradient;
+    }
+    
+    
+    /**
+     * Gradient of the log likelihood with respect to each epoch date, from the partials of the last calculation.
+     * The substitution models are held fixed, so a model that reads the same parameter 
+     * (eg. the transition height of a resub model) does not contribute.
+     * @return the gradient, with one entry per epoch date
+     */
+    public double[] getEpochDateGradient() {
+    	double [] dateGradient = new double[epochDatesArray.length];
+    	calculateGradients(new double[treeInput.get().getNodeCount()], dateGradient);
+    	return dateGradient;
+    }
+    
+    
+    /**
+     * Calculate the gradients at the end of the next calculation of the likelihood, so that they are still 
+     * available after an evaluator has calculated a proposed state and restored the current one
+     */
+    public void requestGradients() {
+    	gradientsRequested = true;
+    	requestedHeightGradient = null;
+    	requestedDateGradient = null;
+    }
+    
+    
+    /**
+     * @return the node height gradient of the calculation after requestGradients, or null if the likelihood was not calculated since
+     */
+    public double[] getRequestedNodeHeightGradient() {
+    	gradientsRequested = false;
+    	return requestedHeightGradient;
+    }
+    
+    
+    /**
+     * @return the epoch date gradient of the calculation after requestGradients, or null if the likelihood was not calculated since
+     */
+    public double[] getRequestedEpochDateGradient() {
+    	gradientsRequested = false;
+    	return requestedDateGradient;
+    }
+    
+    
+    private void calculateRequestedGradients() {
+    	if (!gradientsRequested || logP == Double.NEGATIVE_INFINITY) {
+    		return;
+    	}
+    	requestedHeightGradient = new double[treeInput.get().getNodeCount()];
+    	requestedDateGradient = new double[epochDatesArray.length];
+    	calculateGradients(requestedHeightGradient, requestedDateGradient);
+    	gradientsRequested = false;
+    }
+    
+    
+    /**
+     * Pre-order pass over the pieces that the epochs cut each branch into. A piece has the matrix P = exp(Q rate t) and 
+     * the partials D at its bottom in the core, and W, the product of everything outside the piece, is carried down 
+     * from the root through the matrices above it. The derivative with respect to the top of the piece is rate W.(Q P D), 
+     * and with respect to its bottom -rate W.(P Q D), with Q the rate matrix of the model at that age. The matrix of a 
+     * resub model is a chain of alphabet epochs and transport matrices, of which only the oldest and youngest factors 
+     * depend on the ends of the piece. Each pattern is divided by W.(P D), its likelihood under the same scaling factors.
+     */
+    private void calculateGradients(double[] heightGradient, double[] dateGradient) {
+    	if (epochbeagle != null) {
+    		throw new UnsupportedOperationException("Gradients are only calculated by the java likelihood core, which is used if the java.only property is set");
+    	}
+    	if (useAscertainedSitePatterns) {
+    		throw new UnsupportedOperationException("Gradients cannot be calculated for ascertained site patterns");
+    	}
+    	initGradientBuffers();
+    	rateMatrixCount = 0;
+    	
+    	final int stateCount = dataInput.get().getMaxStateCount();
+    	final int patternCount = dataInput.get().getPatternCount();
+    	final int categoryCount = m_siteModel.getCategoryCount();
+    	final Node root = treeInput.get().getRoot();
+    	double[] rootFrequencies = models[models.length-1].getFrequencies();
+    	if (rootFrequenciesInput.get() != null) {
+    		rootFrequencies = rootFrequenciesInput.get().getFreqs();
+    	}
+    	final double[] proportions = m_siteModel.getCategoryProportions(root);
+    	
+    	// Invariant sites do not depend on the tree, so they only reduce the weight of a pattern
+    	for (int p = 0; p < patternCount; p++) {
+    		gradientPatternWeights[p] = dataInput.get().getPatternWeight(p);
+    	}
+    	if (getConstantPattern() != null) {
+    		Arrays.fill(gradientInvariants, 0.0);
+    		for (final int i : getConstantPattern()) {
+    			gradientInvariants[i / stateCount] += m_siteModel.getProportionInvariant() * rootFrequencies[i % stateCount];
+    		}
+    		likelihoodCore.getNodePartials(root.getNr(), gradientPartials);
+    		for (int p = 0; p < patternCount; p++) {
+    			double variable = 0;
+    			for (int c = 0; c < categoryCount; c++) {
+    				int offset = (c * patternCount + p) * stateCount;
+    				for (int i = 0; i < stateCount; i++) {
+    					variable += proportions[c] * rootFrequencies[i] * gradientPartials[offset + i];
+    				}
+    			}
+    			gradientPatternWeights[p] *= variable / (variable + gradientInvariants[p]);
+    		}
+    	}
+    	
+    	double [] outside = getOutsideBuffer(0);
+    	for (int c = 0; c < categoryCount; c++) {
+    		for (int p = 0; p < patternCount; p++) {
+    			int offset = (c * patternCount + p) * stateCount;
+    			for (int i = 0; i < stateCount; i++) {
+    				outside[offset + i] = proportions[c] * rootFrequencies[i];
+    			}
+    		}
+    	}
+    	calculateGradients(root, 0, heightGradient, dateGradient);
+    }
+    
+    
+    private void calculateGradients(Node node, int depth, double[] heightGradient, double[] dateGradient) {
+    	final int stateCount = dataInput.get().getMaxStateCount();
+    	final int patternCount = dataInput.get().getPatternCount();
+    	final int categoryCount = m_siteModel.getCategoryCount();
+    	double [] outside = getOutsideBuffer(depth);
+    	double [] childOutside = getOutsideBuffer(depth + 1);
+    	for (int k = 0; k < 2; k++) {
+    		Node child = k == 0 ? node.getLeft() : node.getRight();
+    		Node sibling = k == 0 ? node.getRight() : node.getLeft();
+    		
+    		// The outside of the child's branch takes in the partials at the top of its sibling's branch
+    		int startEpoch = getEpoch(sibling.getHeight());
+    		int endEpoch = getEpoch(node.getHeight());
+    		int index = endEpoch == startEpoch ? sibling.getNr() : epochSlots[sibling.getNr() * epochDatesArray.length + endEpoch - 1];
+    		getGradientPieceData(sibling, index);
+    		for (int c = 0; c < categoryCount; c++) {
+    			for (int p = 0; p < patternCount; p++) {
+    				int offset = (c * patternCount + p) * stateCount;
+    				multiplyRow(gradientMatrices[c], gradientPartials, offset, gradientTopRow, stateCount);
+    				for (int i = 0; i < stateCount; i++) {
+    					childOutside[offset + i] = outside[offset + i] * gradientTopRow[i];
+    				}
+    			}
+    		}
+    		
+    		calculateBranchGradients(child, childOutside, heightGradient, dateGradient);
+    		if (!child.isLeaf()) {
+    			calculateGradients(child, depth + 1, heightGradient, dateGradient);
+    		}
+    	}
+    }
+    
+    
+    /**
+     * Add the derivatives of the pieces of the branch above this node, from the top down, 
+     * and leave the outside at the node itself in outside
+     */
+    private void calculateBranchGradients(Node node, double[] outside, double[] heightGradient, double[] dateGradient) {
+    	final int stateCount = dataInput.get().getMaxStateCount();
+    	final int patternCount = dataInput.get().getPatternCount();
+    	final int categoryCount = m_siteModel.getCategoryCount();
+    	final Node parent = node.getParent();
+    	final int nodeNr = node.getNr();
+    	final double branchRate = branchRateModel.getRateForBranch(node);
+    	for (int c = 0; c < categoryCount; c++) {
+    		gradientCategoryRates[c] = m_siteModel.getRateForCategory(c, node) * branchRate;
+    	}
+    	
+    	int startEpoch = getEpoch(node.getHeight());
+    	int endEpoch = getEpoch(parent.getHeight());
+    	for (int k = endEpoch; k >= startEpoch; k--) {
+    		int index = k == startEpoch ? nodeNr : epochSlots[nodeNr * epochDatesArray.length + k - 1];
+    		double bottomAge = k == startEpoch ? node.getHeight() : epochDatesArray[k-1];
+    		double topAge = k == endEpoch ? parent.getHeight() : epochDatesArray[k];
+    		getGradientPieceData(node, index);
+    		double [] topRates = getRateMatrix(models[k], topAge, node);
+    		double [] bottomRates = getRateMatrix(models[k], bottomAge, node);
+    		
+    		double topDerivative = 0, bottomDerivative = 0;
+    		for (int p = 0; p < patternCount; p++) {
+    			double likelihood = 0, top = 0, bottom = 0;
+    			for (int c = 0; c < categoryCount; c++) {
+    				final int offset = (c * patternCount + p) * stateCount;
+    				final double[] matrix = gradientMatrices[c];
+    				
+    				// P D and Q P D
+    				multiplyRow(matrix, gradientPartials, offset, gradientTopRow, stateCount);
+    				multiplyRow(topRates, gradientTopRow, 0, gradientRateRow, stateCount);
+    				double l = 0, t = 0;
+    				for (int i = 0; i < stateCount; i++) {
+    					l += outside[offset + i] * gradientTopRow[i];
+    					t += outside[offset + i] * gradientRateRow[i];
+    				}
+    				likelihood += l;
+    				top += gradientCategoryRates[c] * t;
+    				
+    				// P Q D, which is the same as Q P D if one model covers the whole piece
+    				if (bottomRates == topRates) {
+    					bottom += gradientCategoryRates[c] * t;
+    				} else {
+    					multiplyRow(bottomRates, gradientPartials, offset, gradientRateRow, stateCount);
+    					multiplyRow(matrix, gradientRateRow, 0, gradientBottomRow, stateCount);
+    					double b = 0;
+    					for (int i = 0; i < stateCount; i++) {
+    						b += outside[offset + i] * gradientBottomRow[i];
+    					}
+    					bottom += gradientCategoryRates[c] * b;
+    				}
+    				
+    				// Carry the outside down to the bottom of the piece
+    				for (int j = 0; j < stateCount; j++) {
+    					double sum = 0;
+    					for (int i = 0; i < stateCount; i++) {
+    						sum += outside[offset + i] * matrix[i * stateCount + j];
+    					}
+    					gradientBottomRow[j] = sum;
+    				}
+    				System.arraycopy(gradientBottomRow, 0, outside, offset, stateCount);
+    			}
+    			if (likelihood > 0) {
+    				topDerivative += gradientPatternWeights[p] * top / likelihood;
+    				bottomDerivative += gradientPatternWeights[p] * bottom / likelihood;
+    			}
+    		}
+    		
+    		if (k == endEpoch) {
+    			heightGradient[parent.getNr()] += topDerivative;
+    		} else {
+    			dateGradient[k] += topDerivative;
+    		}
+    		if (k == startEpoch) {
+    			heightGradient[nodeNr] -= bottomDerivative;
+    		} else {
+    			dateGradient[k-1] -= bottomDerivative;
+    		}
+    	}
+    }
+    
+    
+    /**
+     * Get the matrices of a piece of the branch above node, and the partials at its bottom, into the gradient buffers
+     * @param index of the piece in the core
+     */
+    private void getGradientPieceData(Node node, int index) {
+    	final int stateCount = dataInput.get().getMaxStateCount();
+    	final int patternCount = dataInput.get().getPatternCount();
+    	final int categoryCount = m_siteModel.getCategoryCount();
+    	for (int c = 0; c < categoryCount; c++) {
+    		likelihoodCore.getNodeMatrix(index, c, gradientMatrices[c]);
+    	}
+    	if (index != node.getNr() || !node.isLeaf() || m_useAmbiguities.get() || m_useTipLikelihoods.get()) {
+    		likelihoodCore.getNodePartials(index, gradientPartials);
+    		return;
+    	}
+    	
+    	// Leaves with states have partials of one, for the observed state or for all if it is unknown
+    	likelihoodCore.getNodeStates(index, gradientStates);
+    	for (int p = 0; p < patternCount; p++) {
+    		int state = gradientStates[p];
+    		for (int i = 0; i < stateCount; i++) {
+    			gradientPartials[p * stateCount + i] = state >= stateCount || state == i ? 1.0 : 0.0;
+    		}
+    	}
+    	for (int c = 1; c < categoryCount; c++) {
+    		System.arraycopy(gradientPartials, 0, gradientPartials, c * patternCount * stateCount, patternCount * stateCount);
+    	}
+    }
+    
+    
+    /**
+     * Rate matrix of a model at an age, which for a resub model is that of the alphabet epoch at this age.
+     * Rate matrices are shared by pieces with the same eigen decomposition during one calculation of the gradients
+     */
+    private double[] getRateMatrix(SubstitutionModel model, double age, Node node) {
+    	EigenDecomposition eigenDecomposition;
+    	if (model instanceof EpochEigenSubstitutionModel) {
+    		EpochEigenSubstitutionModel epochModel = (EpochEigenSubstitutionModel) model;
+    		eigenDecomposition = epochModel.getEpochEigenDecomposition(epochModel.getEpochEigenIndex(age));
+    	} else {
+    		eigenDecomposition = model.getEigenDecomposition(node);
+    	}
+    	if (eigenDecomposition == null) {
+    		throw new UnsupportedOperationException("Gradients need the eigen decomposition of " + model.getClass().getSimpleName());
+    	}
+    	for (int i = 0; i < rateMatrixCount; i++) {
+    		if (rateMatrixEigens[i] == eigenDecomposition) {
+    			return rateMatrices[i];
+    		}
+    	}
+    	if (rateMatrixCount == rateMatrices.length) {
+    		rateMatrices = Arrays.copyOf(rateMatrices, rateMatrixCount * 2);
+    		rateMatrixEigens = Arrays.copyOf(rateMatrixEigens, rateMatrixCount * 2);
+    	}
+    	final int stateCount = dataInput.get().getMaxStateCount();
+    	if (rateMatrices[rateMatrixCount] == null) {
+    		rateMatrices[rateMatrixCount] = new double[stateCount * stateCount];
+    	}
+    	ResubMathUtil.getRateMatrix(eigenDecomposition, rateMatrices[rateMatrixCount], stateCount);
+    	rateMatrixEigens[rateMatrixCount] = eigenDecomposition;
+    	return rateMatrices[rateMatrixCount++];
+    }
+    
+    
+    /**
+     * out = matrix * partials, for the row of one pattern and category of partials starting at offset
+     */
+    private static void multiplyRow(double[] matrix, double[] partials, int offset, double[] out, int stateCount) {
+    	for (int i = 0; i < stateCount; i++) {
+    		double sum = 0;
+    		for (int j = 0; j < stateCount; j++) {
+    			sum += matrix[i * stateCount + j] * partials[offset + j];
+    		}
+    		out[i] = sum;
+    	}
+    }
+    
+    
+    private void initGradientBuffers() {
+    	if (outsideBuffers != null) {
+    		return;
+    	}
+    	final int stateCount = dataInput.get().getMaxStateCount();
+    	final int patternCount = dataInput.get().getPatternCount();
+    	final int categoryCount = m_siteModel.getCategoryCount();
+    	outsideBuffers = new double[treeInput.get().getNodeCount()][];
+    	gradientPartials = new double[categoryCount * patternCount * stateCount];
+    	gradientMatrices = new double[categoryCount][stateCount * stateCount];
+    	gradientStates = new int[patternCount];
+    	gradientPatternWeights = new double[patternCount];
+    	gradientInvariants = new double[patternCount];
+    	gradientCategoryRates = new double[categoryCount];
+    	gradientTopRow = new double[stateCount];
+    	gradientRateRow = new double[stateCount];
+    	gradientBottomRow = new double[stateCount];
+    	rateMatrixEigens = new EigenDecomposition[models.length + 1];
+    	rateMatrices = new double[models.length + 1][];
+    }
+    
+    
+    private double[] getOutsideBuffer(int depth) {
+    	if (outsideBuffers[depth] == null) {
+    		outsideBuffers[depth] = new double[gradientPartials.length];
+    	}
+    	return outsideBuffers[depth];
+    }
+    
+    
+    /**
+     * @return the index of the epoch that an age lies in, as in traverse
+     */
+    private int getEpoch(double age) {
+    	int epoch = Arrays.binarySearch(epochDatesArray, age);
+    	if (epoch < 0) {
+    		epoch = -epoch-1;
+    	}
+    	return epoch;
+    }
+    
+    
+    protected void initBranchIndex(int nodeCount) {
+    	branchIndex = new BranchIntervalIndex(nodeCount);
+    	thresholdBranches = new int[nodeCount];
+    	treeChangedSinceStore = false;
+    }
+    
+    
+    /**
+     * Flag the branch index as out of date if node heights have changed
+     */
+    protected void checkTreeDirtiness() {
+    	if (treeInput.get().somethingIsDirty()) {
+    		branchIndex.setDirty();
+    		treeChangedSinceStore = true;
+    	}
+    }
+    
+    
+    /**
+     * Mark all branches that overlap the interval between the old and new value of an epoch date as requiring 
+     * the transition matrix to be updated. This is done by setting its m_branchLengths to -1.
+     * Their ancestors above the interval are updated by the traversal.
+     * @return the number of branches marked
+     */
+    protected int markThresholdBranches(double t, double t2) {
+    	if (branchIndex.isDirty()) {
+    		branchIndex.refresh(treeInput.get().getNodesAsArray());
+    	}
+    	int count = branchIndex.query(Math.min(t, t2), Math.max(t, t2) + 1e-10, thresholdBranches);
+    	for (int j = 0; j < count; j++) {
+    		m_branchLengths[thresholdBranches[j]] = -1;
+    	}
+    	return count;
+    }
+    
+    
+    /**
+     * Hand out or release the slots of a branch, so that it has a slot at the top of each epoch it crosses
+     */
+    protected void updateEpochSlots(int nodeNr, int startEpoch, int endEpoch) {
+    	for (int k = 0; k < epochDatesArray.length; k++) {
+    		int i = nodeNr * epochDatesArray.length + k;
+    		boolean crosses = k >= startEpoch && k < endEpoch;
+    		if (crosses && epochSlots[i] < 0) {
+    			int slot = freeSlots[--freeSlotCount];
+    			if (!slotHasPartials[slot]) {
+    				likelihoodCore.createNodePartials(slot);
+    				slotHasPartials[slot] = true;
+    				createdSlotCount++;
+    			}
+    			allocatedSlots[allocatedSlotCount++] = slot;
+    			epochSlots[i] = slot;
+    		} else if (!crosses && epochSlots[i] >= 0) {
+    			
+    			// The stored state may still need this slot, so it is not reused until the next store
+    			releasedSlots[releasedSlotCount++] = epochSlots[i];
+    			epochSlots[i] = -1;
+    		}
+    	}
     }
 
 
@@ -215,10 +905,6 @@ public class EpochTreeLikelihood extends TreeLikelihood {
         for (int i = 0;i < epochDatesArray.length; i++) {
         	epochDatesArray[i] = epochDates.getArrayValue(i);
         }
-        for (int i = 0; i < nodeCount; i++) {
-        	partialsMap[i] = i;
-        }
-        
         try {
         	if (traverse(tree.getRoot()) != Tree.IS_CLEAN)
         		calcLogP();
@@ -245,8 +931,10 @@ public class EpochTreeLikelihood extends TreeLikelihood {
             hasDirt = Tree.IS_FILTHY;
             traverse(tree.getRoot());
             calcLogP();
+            calculateRequestedGradients();
             return logP;
         }
+        calculateRequestedGradients();
         return logP;
     }
 
@@ -279,24 +967,18 @@ public class EpochTreeLikelihood extends TreeLikelihood {
     			endEpoch = -endEpoch-1;
     		}
 
-    		if (endEpoch != startEpoch) {
-    			int childNum1 = nodeIndex;
-        		for (int k = startEpoch; k < endEpoch; k++) {
-                    likelihoodCore.setNodeMatrixForUpdate(childNum1);
-                    for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
-                        final double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
-                        models[k].getTransitionProbabilities(node, epochDatesArray[k], startTime, jointBranchRate, probabilities);
-                        //System.out.println(node.getNr() + " " + Arrays.toString(m_fProbabilities));
-                        likelihoodCore.setNodeMatrix(childNum1, i, probabilities);
-                    }    			
-                    startTime = epochDatesArray[k];
-                	likelihoodCore.setNodePartialsForUpdate(nodeIndex + (k+1) * nodeCount);
-                	reportP(nodeIndex + (k+1) * nodeCount);
-                    report(childNum1, (epochDatesArray.length+1)*nodeCount, nodeIndex + (k+1) * nodeCount);
-                    likelihoodCore.calculatePartials(childNum1, (epochDatesArray.length+1)*nodeCount, nodeIndex + (k+1) * nodeCount);
-                    childNum1 = nodeIndex + (k+1) * nodeCount;
-        		}
-        		nodeIndex = childNum1; 
+    		updateEpochSlots(nodeIndex, startEpoch, endEpoch);
+    		
+    		// The matrix of the node covers the part of the branch in its own epoch, and the matrix of each slot covers the epoch above that slot
+    		for (int k = startEpoch; k < endEpoch; k++) {
+                likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
+                for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+                    final double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
+                    models[k].getTransitionProbabilities(node, epochDatesArray[k], startTime, jointBranchRate, probabilities);
+                    likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
+                }    			
+                startTime = epochDatesArray[k];
+                nodeIndex = epochSlots[node.getNr() * epochDatesArray.length + k];
     		}
     		partialsMap[node.getNr()] = nodeIndex;
     		
@@ -307,6 +989,7 @@ public class EpochTreeLikelihood extends TreeLikelihood {
                 //System.out.println(node.getNr() + " " + Arrays.toString(m_fProbabilities));
                 likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
             }
+            nodeIndex = node.getNr();
             update |= Tree.IS_DIRTY;
         }
 
@@ -333,6 +1016,9 @@ public class EpochTreeLikelihood extends TreeLikelihood {
                     likelihoodCore.setNodeStatesForUpdate(nodeIndex);
                 }
 
+                if (activeStatesCore != null) {
+                	activeStatesCore.setActiveStates(nodeIndex, getActiveStates(node));
+                }
                 if (m_siteModel.integrateAcrossCategories()) {
                     likelihoodCore.calculatePartials(partialsMap[childNum1], partialsMap[childNum2], nodeIndex);
                     report(childNum1, childNum2, nodeIndex);
@@ -365,10 +1051,41 @@ public class EpochTreeLikelihood extends TreeLikelihood {
 
             }
         }
+        
+        // Carry the partials of this node up through the epochs that its branch crosses
+        if (update != Tree.IS_CLEAN && partialsMap[nodeIndex] != nodeIndex) {
+        	int childIndex = nodeIndex;
+        	for (int k = 0; k < epochDatesArray.length; k++) {
+        		int slot = epochSlots[nodeIndex * epochDatesArray.length + k];
+        		if (slot >= 0) {
+        			likelihoodCore.setNodePartialsForUpdate(slot);
+        			reportP(slot);
+        			report(childIndex, unknownIndex, slot);
+        			likelihoodCore.calculatePartials(childIndex, unknownIndex, slot);
+        			childIndex = slot;
+        		}
+        	}
+        }
+        
         return update;
     } // traverse
 
     
+    /**
+     * @return the alphabet of a node in the oldest epoch, or null if all states are needed
+     */
+    private int[] getActiveStates(Node node) {
+    	int epoch = Arrays.binarySearch(epochDatesArray, node.getHeight());
+    	if (epoch < 0) {
+    		epoch = -epoch-1;
+    	}
+    	if (epoch != models.length-1) {
+    		return null;
+    	}
+    	return reducedAlphabetModel.getActiveStates(node.getHeight());
+    }
+    
+    
     private void reportP(int i) {
 //		System.err.println("flip " + i); 	
     }
@@ -387,12 +1104,29 @@ public class EpochTreeLikelihood extends TreeLikelihood {
         }
         
         
+        boolean recalculate = super.requiresRecalculation();
+        
+        // the substitution models are not part of the site model, so check them here
+        for (SubstitutionModel model : models) {
+        	if (((CalculationNode) model).isDirtyCalculation()) {
+        		hasDirt |= Tree.IS_DIRTY;
+        		recalculate = true;
+        	}
+        }
+        
+        // only branches that overlap the interval between the old and new epoch date need new matrices
+        checkTreeDirtiness();
         if (InputUtil.isDirty(epochDatesInput)) {
-        	hasDirt |= Tree.IS_DIRTY;
-        	return super.requiresRecalculation() || true;
+        	for (int i = 0; i < epochDatesArray.length; i++) {
+        		double t = epochDates.getArrayValue(i);
+        		if (t != epochDatesArray[i]) {
+        			markThresholdBranches(t, epochDatesArray[i]);
+        			recalculate = true;
+        		}
+        	}
         }
         
-        return super.requiresRecalculation();
+        return recalculate;
     }
 
     @Override
@@ -403,6 +1137,21 @@ public class EpochTreeLikelihood extends TreeLikelihood {
             return;
         }
         super.store();
+        treeChangedSinceStore = false;
+        if (epochSlots == null) {
+        	// EpochBeagleTreeLikelihood manages its own buffers
+        	return;
+        }
+        System.arraycopy(epochDatesArray, 0, storedEpochDatesArray, 0, epochDatesArray.length);
+        
+        // Slots that were released by the previous state can now be reused
+        for (int i = 0; i < releasedSlotCount; i++) {
+        	freeSlots[freeSlotCount++] = releasedSlots[i];
+        }
+        releasedSlotCount = 0;
+        allocatedSlotCount = 0;
+        System.arraycopy(epochSlots, 0, storedEpochSlots, 0, epochSlots.length);
+        System.arraycopy(partialsMap, 0, storedPartialsMap, 0, partialsMap.length);
     }
 
     @Override
@@ -413,6 +1162,31 @@ public class EpochTreeLikelihood extends TreeLikelihood {
             return;
         }
         super.restore();
+        
+        // the branch index may have been refreshed with the heights of the rejected tree
+        if (treeChangedSinceStore) {
+        	branchIndex.setDirty();
+        	treeChangedSinceStore = false;
+        }
+        if (epochSlots == null) {
+        	return;
+        }
+        double [] tmpDates = epochDatesArray;
+        epochDatesArray = storedEpochDatesArray;
+        storedEpochDatesArray = tmpDates;
+        
+        // Return the slots that were handed out to the rejected state
+        for (int i = 0; i < allocatedSlotCount; i++) {
+        	freeSlots[freeSlotCount++] = allocatedSlots[i];
+        }
+        allocatedSlotCount = 0;
+        releasedSlotCount = 0;
+        int [] tmp = epochSlots;
+        epochSlots = storedEpochSlots;
+        storedEpochSlots = tmp;
+        tmp = partialsMap;
+        partialsMap = storedPartialsMap;
+        storedPartialsMap = tmp;
     }
 
     
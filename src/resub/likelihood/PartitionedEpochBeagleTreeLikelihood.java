@@ -0,0 +1,1008 @@
+package resub.likelihood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import beagle.Beagle;
+import beagle.BeagleFactory;
+import beagle.InstanceDetails;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.sitemodel.SiteModelInterface;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import resub.likelihood.EpochBeagleTreeLikelihood.BufferIndexHelper;
+import resub.math.ResubMathUtil;
+import resub.substitutionmodel.EpochEigenSubstitutionModel;
+
+
+
+@Description("Epoch tree likelihood of several alignments, each with its own tree and site model, that share the same substitution models and epoch dates. "
+		+ "All partitions are calculated by a single BEAGLE instance, so the shared eigen decompositions are uploaded once, "
+		+ "and the transition matrices, partials and root likelihoods of all partitions are each done in one call. "
+		+ "Invariant sites are handled as a category with rate zero, and once an under-/over-flow is seen the partials are rescaled for the rest of the run. "
+		+ "Ascertained alignments are not supported")
+public class PartitionedEpochBeagleTreeLikelihood extends Distribution {
+
+
+	final public Input<List<Alignment>> dataInput = new Input<>("data", "sequence data of each partition", new ArrayList<>());
+	final public Input<List<TreeInterface>> treeInput = new Input<>("tree", "phylogenetic tree of each partition, in the same order as the data", new ArrayList<>());
+	final public Input<List<SiteModelInterface>> siteModelInput = new Input<>("siteModel", "site model of each partition, in the same order as the data", new ArrayList<>());
+	final public Input<List<BranchRateModel.Base>> branchRateModelInput = new Input<>("branchRateModel", "branch rate model of each partition, in the same order as the data. "
+			+ "If none are specified, a strict clock is used for all partitions", new ArrayList<>());
+	final public Input<List<SubstitutionModel>> modelsInput = new Input<>("model", "substitution models that apply for certain time intervals, shared by all partitions", new ArrayList<>());
+	final public Input<Function> epochDatesInput = new Input<>("epochDates", "list of threshold dates, shared by all partitions. " +
+			"The list indicates the dates at which substitution models are switched.", Validate.REQUIRED);
+	final public Input<Boolean> useEpochEigenInput = new Input<>("useEpochEigen", "flag to let BEAGLE exponentiate branches that lie entirely inside one alphabet epoch of a resub model, "
+			+ "using the eigen decomposition of that epoch. "
+			+ "Off by default, because BEAGLE does not renormalise the rows of these matrices or reset blank states as the Java path does", false);
+	final public Input<Boolean> useAmbiguitiesInput = new Input<>("useAmbiguities", "flag to indicate that sites containing ambiguous states should be handled instead of ignored (the default)", false);
+
+
+	private SubstitutionModel [] models;
+	private Function epochDates;
+	private double [] epochDatesArray;
+	private double [] currentThresholds;
+	private double [] storedThresholds;
+	private int epochCount;
+	private int stateCount;
+	private int categoryCount;
+	private int partitionCount;
+	private int totalPatternCount;
+	private Partition [] partitions;
+
+	// the first eigen buffer of each epoch, shared by all partitions
+	private int [] eigenOffsets;
+	private int eigenCount;
+	private boolean useEpochEigen;
+	private BufferIndexHelper eigenBufferHelper;
+	private boolean updateSubstitutionModel;
+	private double substModelThreshold;
+
+	// branches that BEAGLE exponentiates, from all partitions
+	private int [] eigenIndices;
+	private int [] categoryRateIndices;
+	private int [] probabilityIndices;
+	private double [] edgeLengths;
+	private int updateCount;
+
+	// branches whose matrices are computed in Java, from all partitions
+	private double [] matrices;
+	private int [] matrixIndices;
+	private double [] matrixPaddedValues;
+	private int matrixCount;
+	private double [] probabilities;
+	private double [] epochMatrix;
+	private double [] chainedMatrix;
+
+	// partials operations of all partitions, bucketed by the epoch of the node, and merged into a single list
+	private int [][] operations;
+	private int [] operationCount;
+	private int [] allOperations;
+
+	// arguments of calculateRootLogLikelihoodsByPartition
+	private int [] rootIndices;
+	private int [] partitionIndices;
+	private int [] cumulativeScaleIndices;
+	private double [] partitionLogLikelihoods;
+	private double [] storedPartitionLogLikelihoods;
+	private double [] sumLogLikelihood = new double[1];
+
+	// scale factors are switched on after the first under-/over-flow, and then recomputed for every updated node
+	private boolean useScaleFactors = false;
+
+	private Beagle beagle;
+
+	// one likelihood per partition, used when BEAGLE is not available
+	private List<EpochTreeLikelihood> javaLikelihoods;
+
+
+
+	/**
+	 * The buffers of one partition, which are disjoint ranges of the buffers of the shared BEAGLE instance
+	 */
+	private class Partition {
+
+		final int nr;
+		final Alignment data;
+		final TreeInterface tree;
+		final SiteModel.Base siteModel;
+		final BranchRateModel.Base branchRateModel;
+		final int nodeCount;
+		final int tipCount;
+		final int internalNodeCount;
+		final int patternOffset;
+		final int patternCount;
+
+		// first BEAGLE buffer of the tips, internal nodes, matrices and scale factors of this partition
+		int tipOffset;
+		int internalOffset;
+		int matrixOffset;
+		int scaleOffset;
+
+		final BufferIndexHelper partialBufferHelper;
+		final BufferIndexHelper matrixBufferHelper;
+		final BufferIndexHelper scaleBufferHelper;
+
+		double [] branchLengths;
+		double [] storedBranchLengths;
+		int [] scaleBufferIndices;
+		int [] storedScaleBufferIndices;
+
+		final BranchIntervalIndex branchIndex;
+		final int [] thresholdBranches;
+		boolean treeChangedSinceStore;
+		int hasDirt = Tree.IS_FILTHY;
+
+		// category rates and weights of the site model, and the values that were last uploaded to BEAGLE
+		final double [] siteCategoryRates;
+		final double [] siteCategoryWeights;
+		boolean siteCategoriesKnown;
+		final double [] currentCategoryRates;
+		final double [] currentCategoryWeights;
+		final double [] currentFreqs;
+
+
+		Partition(int nr, Alignment data, TreeInterface tree, SiteModel.Base siteModel, BranchRateModel.Base branchRateModel, int patternOffset) {
+			this.nr = nr;
+			this.data = data;
+			this.tree = tree;
+			this.siteModel = siteModel;
+			this.branchRateModel = branchRateModel;
+			this.nodeCount = tree.getNodeCount();
+			this.tipCount = tree.getLeafNodeCount();
+			this.internalNodeCount = nodeCount - tipCount;
+			this.patternOffset = patternOffset;
+			this.patternCount = data.getPatternCount();
+
+			partialBufferHelper = new BufferIndexHelper(nodeCount, tipCount);
+			matrixBufferHelper = new BufferIndexHelper(nodeCount, 0);
+			scaleBufferHelper = new BufferIndexHelper(internalNodeCount + 1, 0);
+
+			branchLengths = new double[nodeCount];
+			storedBranchLengths = new double[nodeCount];
+			scaleBufferIndices = new int[internalNodeCount];
+			storedScaleBufferIndices = new int[internalNodeCount];
+
+			branchIndex = new BranchIntervalIndex(nodeCount);
+			thresholdBranches = new int[nodeCount];
+
+			int categories = siteModel.getCategoryCount();
+			siteCategoryRates = new double[categories];
+			siteCategoryWeights = new double[categories];
+			currentCategoryRates = new double[categories];
+			currentCategoryWeights = new double[categories];
+			currentFreqs = new double[stateCount];
+			siteCategoriesKnown = false;
+		}
+
+
+		int getPartialsIndex(int nodeNr) {
+			if (nodeNr < tipCount) {
+				return tipOffset + nodeNr;
+			}
+			return internalOffset + partialBufferHelper.getOffsetIndex(nodeNr) - tipCount;
+		}
+
+		int getMatrixIndex(int nodeNr) {
+			return matrixOffset + matrixBufferHelper.getOffsetIndex(nodeNr);
+		}
+
+		int getScaleIndex(int i) {
+			return scaleOffset + scaleBufferHelper.getOffsetIndex(i);
+		}
+
+
+		/**
+		 * Copy the category rates and weights of the site model, unless they are known already
+		 */
+		void updateSiteCategories() {
+			if (siteCategoriesKnown) return;
+			System.arraycopy(siteModel.getCategoryRates(null), 0, siteCategoryRates, 0, siteCategoryRates.length);
+			System.arraycopy(siteModel.getCategoryProportions(null), 0, siteCategoryWeights, 0, siteCategoryWeights.length);
+			siteCategoriesKnown = true;
+		}
+
+
+		/**
+		 * Mark the branches of this tree that overlap the interval swept out by an epoch date that moved from t2 to t
+		 */
+		boolean markThresholdBranches(double t, double t2) {
+			if (branchIndex.isDirty()) {
+				branchIndex.refresh(tree.getNodesAsArray());
+			}
+			double maxTime = Math.max(t, t2) + 1e-10;
+			int count = branchIndex.query(Math.min(t, t2), maxTime, thresholdBranches);
+			Node [] nodes = tree.getNodesAsArray();
+			for (int j = 0; j < count; j++) {
+				Node node = nodes[thresholdBranches[j]];
+				while (!node.isRoot() && node.getHeight() <= maxTime) {
+					branchLengths[node.getNr()] = -1;
+					node = node.getParent();
+				}
+			}
+			return count > 0;
+		}
+
+	}
+
+
+
+	@Override
+	public void initAndValidate() {
+
+		models = modelsInput.get().toArray(new SubstitutionModel[] {});
+		epochDates = epochDatesInput.get();
+		if (models.length != epochDates.getDimension() + 1) {
+			throw new IllegalArgumentException("The number of epoch dates should be one less than the number of substitution models");
+		}
+		epochCount = models.length;
+		epochDatesArray = new double[epochDates.getDimension()];
+		currentThresholds = new double[epochDates.getDimension()];
+		storedThresholds = new double[epochDates.getDimension()];
+
+		partitionCount = dataInput.get().size();
+		if (partitionCount == 0) {
+			throw new IllegalArgumentException("At least one alignment should be specified");
+		}
+		if (treeInput.get().size() != partitionCount || siteModelInput.get().size() != partitionCount) {
+			throw new IllegalArgumentException("There should be one tree and one site model for each alignment");
+		}
+		if (branchRateModelInput.get().size() != 0 && branchRateModelInput.get().size() != partitionCount) {
+			throw new IllegalArgumentException("There should be either no branch rate models, or one for each alignment");
+		}
+		for (int p = 0; p < partitionCount; p++) {
+			if (!(siteModelInput.get().get(p) instanceof SiteModel.Base)) {
+				throw new IllegalArgumentException("siteModel input should be of type SiteModel.Base");
+			}
+			if (dataInput.get().get(p).getTaxonCount() != treeInput.get().get(p).getLeafNodeCount()) {
+				throw new IllegalArgumentException("The number of leaves in tree " + (p+1) + " does not match the number of sequences in its alignment");
+			}
+		}
+
+
+		beagle = null;
+		javaLikelihoods = null;
+		if (!Boolean.valueOf(System.getProperty("java.only"))) {
+			initialize();
+		}
+		if (beagle == null) {
+
+			// one java likelihood per partition
+			Log.warning.println("  " + getID() + ": BEAGLE is not available, so the partitions are calculated one at a time in Java");
+			javaLikelihoods = new ArrayList<>();
+			for (int p = 0; p < partitionCount; p++) {
+				EpochTreeLikelihood likelihood = new EpochTreeLikelihood();
+				likelihood.initByName("data", dataInput.get().get(p), "tree", treeInput.get().get(p), "siteModel", siteModelInput.get().get(p),
+						"branchRateModel", branchRateModelInput.get().size() > 0 ? branchRateModelInput.get().get(p) : null,
+						"useAmbiguities", useAmbiguitiesInput.get(),
+						"epochDates", epochDates,
+						"useEpochEigen", useEpochEigenInput.get(),
+						"model", modelsInput.get());
+				javaLikelihoods.add(likelihood);
+			}
+		}
+
+	}
+
+
+	private void initialize() {
+
+		stateCount = dataInput.get().get(0).getMaxStateCount();
+		categoryCount = ((SiteModel.Base) siteModelInput.get().get(0)).getCategoryCount();
+		totalPatternCount = 0;
+		partitions = new Partition[partitionCount];
+		for (int p = 0; p < partitionCount; p++) {
+			Alignment data = dataInput.get().get(p);
+			SiteModel.Base siteModel = (SiteModel.Base) siteModelInput.get().get(p);
+			siteModel.setDataType(data.getDataType());
+			if (data.getMaxStateCount() != stateCount) {
+				throw new IllegalArgumentException("All alignments should have the same number of states");
+			}
+			if (siteModel.getCategoryCount() != categoryCount) {
+				throw new IllegalArgumentException("All site models should have the same number of categories");
+			}
+			if (data.isAscertained) {
+				throw new IllegalArgumentException("Ascertained alignments are not supported by " + getClass().getSimpleName());
+			}
+			BranchRateModel.Base branchRateModel = branchRateModelInput.get().size() > 0 ? branchRateModelInput.get().get(p) : new StrictClockModel();
+			partitions[p] = new Partition(p, data, treeInput.get().get(p), siteModel, branchRateModel, totalPatternCount);
+			totalPatternCount += partitions[p].patternCount;
+		}
+
+
+		// Tips of all partitions come first, followed by two buffers for each internal node of each partition
+		int tipCount = 0;
+		for (Partition partition : partitions) {
+			partition.tipOffset = tipCount;
+			tipCount += partition.tipCount;
+		}
+		int partialsCount = tipCount;
+		int matrixBufferCount = 0;
+		int scaleBufferCount = 0;
+		int nodeCount = 0;
+		int internalNodeCount = 0;
+		for (Partition partition : partitions) {
+			partition.internalOffset = partialsCount;
+			partialsCount += partition.partialBufferHelper.getBufferCount() - partition.tipCount;
+			partition.matrixOffset = matrixBufferCount;
+			matrixBufferCount += partition.matrixBufferHelper.getBufferCount();
+			partition.scaleOffset = scaleBufferCount;
+			scaleBufferCount += partition.scaleBufferHelper.getBufferCount();
+			nodeCount += partition.nodeCount;
+			internalNodeCount += partition.internalNodeCount;
+		}
+
+
+		// one eigen decomposition per epoch, or one per alphabet epoch for resub models
+		useEpochEigen = useEpochEigenInput.get();
+		eigenOffsets = new int[epochCount];
+		eigenCount = 0;
+		for (int i = 0; i < epochCount; i++) {
+			eigenOffsets[i] = eigenCount;
+			eigenCount += getEigenCount(models[i]);
+		}
+		eigenBufferHelper = new BufferIndexHelper(eigenCount, 0);
+
+		// category rates, category weights and frequencies are indexed by partition, and share the eigen buffer count
+		int eigenBufferCount = Math.max(eigenBufferHelper.getBufferCount(), partitionCount);
+
+
+		try {
+			beagle = BeagleFactory.loadBeagleInstance(
+					tipCount,
+					partialsCount,
+					useAmbiguitiesInput.get() ? 0 : tipCount,
+					stateCount,
+					totalPatternCount,
+					eigenBufferCount,
+					matrixBufferCount,
+					categoryCount,
+					scaleBufferCount,
+					null,
+					0,
+					0
+			);
+		} catch (Exception e) {
+			beagle = null;
+		}
+		if (beagle == null) {
+			return;
+		}
+		InstanceDetails instanceDetails = beagle.getDetails();
+		if (instanceDetails == null) {
+			beagle = null;
+			return;
+		}
+		Log.info.println("  " + getID() + ": " + partitionCount + " partitions with " + totalPatternCount + " unique site patterns in one BEAGLE instance, "
+				+ "with instance flags: " + instanceDetails.toString());
+
+
+		// Each pattern belongs to one partition, and the tips of the other partitions are missing data for it
+		double [] patternWeights = new double[totalPatternCount];
+		int [] patternPartitions = new int[totalPatternCount];
+		for (Partition partition : partitions) {
+			for (int i = 0; i < partition.patternCount; i++) {
+				patternWeights[partition.patternOffset + i] = partition.data.getPatternWeight(i);
+				patternPartitions[partition.patternOffset + i] = partition.nr;
+			}
+			Node [] nodes = partition.tree.getNodesAsArray();
+			for (int i = 0; i < partition.tipCount; i++) {
+				int taxon = getTaxonIndex(nodes[i].getID(), partition.data);
+				if (useAmbiguitiesInput.get()) {
+					setPartials(partition, i, taxon);
+				} else {
+					setStates(partition, i, taxon);
+				}
+			}
+		}
+		beagle.setPatternWeights(patternWeights);
+		beagle.setPatternPartitions(partitionCount, patternPartitions);
+
+
+		probabilities = new double[(stateCount + 1) * (stateCount + 1)];
+		Arrays.fill(probabilities, 1.0);
+		epochMatrix = new double[probabilities.length];
+		chainedMatrix = new double[probabilities.length];
+		matrices = new double[nodeCount * stateCount * stateCount * categoryCount];
+		matrixIndices = new int[nodeCount];
+		matrixPaddedValues = new double[nodeCount];
+		Arrays.fill(matrixPaddedValues, 1.0);
+
+		eigenIndices = new int[nodeCount];
+		categoryRateIndices = new int[nodeCount];
+		probabilityIndices = new int[nodeCount];
+		edgeLengths = new double[nodeCount];
+
+		operations = new int[epochCount][internalNodeCount * Beagle.PARTITION_OPERATION_TUPLE_SIZE];
+		operationCount = new int[epochCount];
+		allOperations = new int[internalNodeCount * Beagle.PARTITION_OPERATION_TUPLE_SIZE];
+
+		rootIndices = new int[partitionCount];
+		partitionIndices = new int[partitionCount];
+		cumulativeScaleIndices = new int[partitionCount];
+		partitionLogLikelihoods = new double[partitionCount];
+		storedPartitionLogLikelihoods = new double[partitionCount];
+		for (int p = 0; p < partitionCount; p++) {
+			partitionIndices[p] = p;
+		}
+
+		// some subst models (e.g. WAG) never become dirty, so set up subst models right now
+		setUpSubstModel();
+		for (Partition partition : partitions) {
+			partition.updateSiteCategories();
+			beagle.setCategoryRatesWithIndex(partition.nr, partition.siteCategoryRates);
+			System.arraycopy(partition.siteCategoryRates, 0, partition.currentCategoryRates, 0, categoryCount);
+		}
+
+	}
+
+
+	/**
+	 * Set the states of a tip for the patterns of its own partition
+	 */
+	private void setStates(Partition partition, int tipNr, int taxon) {
+		int [] states = new int[totalPatternCount];
+		Arrays.fill(states, stateCount);
+		for (int i = 0; i < partition.patternCount; i++) {
+			int code = partition.data.getPattern(taxon, i);
+			int [] statesForCode = partition.data.getDataType().getStatesForCode(code);
+			if (statesForCode.length == 1) {
+				states[partition.patternOffset + i] = statesForCode[0];
+			} else {
+				states[partition.patternOffset + i] = code; // Causes ambiguous states to be ignored.
+			}
+		}
+		beagle.setTipStates(partition.getPartialsIndex(tipNr), states);
+	}
+
+
+	/**
+	 * Set the partials of a tip for the patterns of its own partition, and all ones for the others
+	 */
+	private void setPartials(Partition partition, int tipNr, int taxon) {
+		double [] partials = new double[totalPatternCount * stateCount * categoryCount];
+		Arrays.fill(partials, 0, totalPatternCount * stateCount, 1.0);
+		for (int i = 0; i < partition.patternCount; i++) {
+			boolean [] stateSet = partition.data.getStateSet(partition.data.getPattern(taxon, i));
+			int v = (partition.patternOffset + i) * stateCount;
+			for (int state = 0; state < stateCount; state++) {
+				partials[v + state] = stateSet[state] ? 1.0 : 0.0;
+			}
+		}
+
+		// replicate the partials for each category
+		int n = totalPatternCount * stateCount;
+		for (int i = 1; i < categoryCount; i++) {
+			System.arraycopy(partials, 0, partials, i * n, n);
+		}
+		beagle.setPartials(partition.getPartialsIndex(tipNr), partials);
+	}
+
+
+	private int getTaxonIndex(String taxon, Alignment data) {
+		int taxonIndex = data.getTaxonIndex(taxon);
+		if (taxonIndex == -1) {
+			if (taxon.startsWith("'") || taxon.startsWith("\"")) {
+				taxonIndex = data.getTaxonIndex(taxon.substring(1, taxon.length() - 1));
+			}
+			if (taxonIndex == -1) {
+				throw new RuntimeException("Could not find sequence " + taxon + " in the alignment");
+			}
+		}
+		return taxonIndex;
+	}
+
+
+	/**
+	 * Upload the eigen decompositions of all epochs, which are shared by all partitions
+	 */
+	private void setUpSubstModel() {
+		for (int i = 0; i < epochCount; i++) {
+			if (!models[i].canReturnComplexDiagonalization()) {
+				setEigenDecomposition(eigenOffsets[i], models[i].getEigenDecomposition(null));
+			} else if (useEpochEigen && models[i] instanceof EpochEigenSubstitutionModel) {
+				EpochEigenSubstitutionModel model = (EpochEigenSubstitutionModel) models[i];
+				for (int j = 0; j < model.getEpochEigenCount(); j++) {
+					setEigenDecomposition(eigenOffsets[i] + j, model.getEpochEigenDecomposition(j));
+				}
+			}
+		}
+	}
+
+
+	private void setEigenDecomposition(int eigenIndex, EigenDecomposition ed) {
+		eigenBufferHelper.flipOffset(eigenIndex);
+		beagle.setEigenDecomposition(eigenBufferHelper.getOffsetIndex(eigenIndex),
+				ed.getEigenVectors(), ed.getInverseEigenVectors(), ed.getEigenValues());
+	}
+
+
+	private int getEigenCount(SubstitutionModel model) {
+		if (model.canReturnComplexDiagonalization() && useEpochEigen && model instanceof EpochEigenSubstitutionModel) {
+			return ((EpochEigenSubstitutionModel) model).getEpochEigenCount();
+		}
+		return 1;
+	}
+
+
+	/**
+	 * @return the eigen buffer that BEAGLE can use to exponentiate a branch that lies entirely inside this epoch,
+	 * or -1 if the transition probabilities must be computed in Java
+	 */
+	private int getEigenIndex(int epoch, double startAge, double endAge) {
+		if (!models[epoch].canReturnComplexDiagonalization()) {
+			return eigenOffsets[epoch];
+		}
+		if (useEpochEigen && models[epoch] instanceof EpochEigenSubstitutionModel) {
+			int index = ((EpochEigenSubstitutionModel) models[epoch]).getEpochEigenIndex(startAge, endAge);
+			if (index >= 0) {
+				return eigenOffsets[epoch] + index;
+			}
+		}
+		return -1;
+	}
+
+
+	private int getEpoch(double time) {
+		int epoch = Arrays.binarySearch(epochDatesArray, time);
+		if (epoch < 0) {
+			epoch = -epoch-1;
+		}
+		return epoch;
+	}
+
+
+
+	@Override
+	public double calculateLogP() {
+
+		if (beagle == null) {
+			logP = 0;
+			for (EpochTreeLikelihood likelihood : javaLikelihoods) {
+				logP += likelihood.calculateLogP();
+			}
+			return logP;
+		}
+
+
+		reset();
+		for (Partition partition : partitions) {
+			traverse(partition, partition.tree.getRoot(), true);
+		}
+
+		if (updateSubstitutionModel) {
+			setUpSubstModel();
+		}
+
+		for (Partition partition : partitions) {
+			partition.updateSiteCategories();
+			if (!Arrays.equals(partition.siteCategoryRates, partition.currentCategoryRates)) {
+				beagle.setCategoryRatesWithIndex(partition.nr, partition.siteCategoryRates);
+				System.arraycopy(partition.siteCategoryRates, 0, partition.currentCategoryRates, 0, categoryCount);
+			}
+		}
+		updateTransitionMatrices();
+
+
+		double logL;
+		boolean done;
+		boolean firstRescaleAttempt = true;
+		do {
+
+			// the epochs of a tree are processed from young to old, and the partitions do not depend on each other
+			int count = 0;
+			for (int i = 0; i < epochCount; i++) {
+				System.arraycopy(operations[i], 0, allOperations, count * Beagle.PARTITION_OPERATION_TUPLE_SIZE, operationCount[i] * Beagle.PARTITION_OPERATION_TUPLE_SIZE);
+				count += operationCount[i];
+			}
+			if (count > 0) {
+				beagle.updatePartialsByPartition(allOperations, count);
+			}
+
+
+			for (Partition partition : partitions) {
+
+				cumulativeScaleIndices[partition.nr] = Beagle.NONE;
+				if (useScaleFactors) {
+					partition.scaleBufferHelper.flipOffset(partition.internalNodeCount);
+					int cumulativeScaleIndex = partition.getScaleIndex(partition.internalNodeCount);
+					beagle.resetScaleFactorsByPartition(cumulativeScaleIndex, partition.nr);
+					beagle.accumulateScaleFactorsByPartition(partition.scaleBufferIndices, partition.internalNodeCount, cumulativeScaleIndex, partition.nr);
+					cumulativeScaleIndices[partition.nr] = cumulativeScaleIndex;
+				}
+
+				// compare with copies of the uploaded values, as the site model may hand out its own arrays
+				if (!Arrays.equals(partition.siteCategoryWeights, partition.currentCategoryWeights)) {
+					beagle.setCategoryWeights(partition.nr, partition.siteCategoryWeights);
+					System.arraycopy(partition.siteCategoryWeights, 0, partition.currentCategoryWeights, 0, categoryCount);
+				}
+				double [] frequencies = getRootFrequencies(partition.tree.getRoot().getHeight());
+				if (!Arrays.equals(frequencies, partition.currentFreqs)) {
+					beagle.setStateFrequencies(partition.nr, frequencies);
+					System.arraycopy(frequencies, 0, partition.currentFreqs, 0, stateCount);
+				}
+
+				rootIndices[partition.nr] = partition.getPartialsIndex(partition.tree.getRoot().getNr());
+			}
+
+			beagle.calculateRootLogLikelihoodsByPartition(rootIndices, partitionIndices, partitionIndices, cumulativeScaleIndices,
+					partitionIndices, partitionCount, 1, partitionLogLikelihoods, sumLogLikelihood);
+			logL = sumLogLikelihood[0];
+
+
+			if (Double.isNaN(logL) || Double.isInfinite(logL)) {
+				logL = Double.NEGATIVE_INFINITY;
+				if (firstRescaleAttempt && !useScaleFactors) {
+
+					// we have had a potential under/over flow, so switch on scaling for good and recompute all partials,
+					// overwriting the last attempt without flipping the partials buffers
+					Log.warning.println("  " + getID() + ": under-/over-flow, switching on rescaling");
+					useScaleFactors = true;
+					reset();
+					for (Partition partition : partitions) {
+						partition.hasDirt = Tree.IS_FILTHY;
+						traverse(partition, partition.tree.getRoot(), false);
+					}
+					updateTransitionMatrices();
+					done = false;
+					firstRescaleAttempt = false;
+				} else {
+					done = true;
+				}
+			} else {
+				done = true;
+			}
+
+		} while (!done);
+
+		updateSubstitutionModel = false;
+		logP = logL;
+		return logL;
+	}
+
+
+	/**
+	 * @return the frequencies of the oldest epoch that is younger than the root
+	 */
+	private double [] getRootFrequencies(double rootHeight) {
+		for (int i = epochCount-1; i > 0; i--) {
+			if (epochDatesArray[i-1] <= rootHeight) {
+				return models[i].getFrequencies();
+			}
+		}
+		return models[0].getFrequencies();
+	}
+
+
+	private void reset() {
+		Arrays.fill(operationCount, 0);
+		updateCount = 0;
+		matrixCount = 0;
+		for (int i = 0; i < epochDatesArray.length; i++) {
+			epochDatesArray[i] = epochDates.getArrayValue(i);
+		}
+	}
+
+
+	/**
+	 * Let BEAGLE exponentiate the queued branches of all partitions in one call, with the category rates of their own partition,
+	 * and upload the matrices that were computed in Java in another
+	 */
+	private void updateTransitionMatrices() {
+		if (updateCount > 0) {
+			beagle.updateTransitionMatricesWithMultipleModels(eigenIndices, categoryRateIndices, probabilityIndices, null, null, edgeLengths, updateCount);
+			updateCount = 0;
+		}
+		if (matrixCount > 0) {
+			beagle.setTransitionMatrices(matrixIndices, matrices, matrixPaddedValues, matrixCount);
+			matrixCount = 0;
+		}
+	}
+
+
+	/**
+	 * Traverse the tree of a partition, queueing its transition matrices and partials operations
+	 */
+	private int traverse(Partition partition, Node node, boolean flip) {
+
+		int nodeNum = node.getNr();
+		int update = (node.isDirty() | partition.hasDirt);
+		if (!node.isRoot() && node.getParent().getHeight() >= substModelThreshold) {
+			update |= Tree.IS_DIRTY;
+		}
+
+		final double branchRate = partition.branchRateModel.getRateForBranch(node);
+		final double branchTime = node.getLength() * branchRate;
+		int epoch = getEpoch(node.getHeight());
+
+		if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != partition.branchLengths[nodeNum])) {
+			partition.branchLengths[nodeNum] = branchTime;
+			if (branchTime < 0.0) {
+				throw new RuntimeException("Negative branch length: " + branchTime);
+			}
+
+			double endTime = node.getParent().getHeight();
+			int endEpoch = getEpoch(endTime);
+			if (flip) {
+				partition.matrixBufferHelper.flipOffset(nodeNum);
+			}
+
+			final int eigenIndex = (epoch == endEpoch) ? getEigenIndex(epoch, endTime, node.getHeight()) : -1;
+			if (eigenIndex >= 0) {
+				// let BEAGLE exponentiate this matrix
+				eigenIndices[updateCount] = eigenBufferHelper.getOffsetIndex(eigenIndex);
+				categoryRateIndices[updateCount] = partition.nr;
+				probabilityIndices[updateCount] = partition.getMatrixIndex(nodeNum);
+				edgeLengths[updateCount] = branchTime;
+				updateCount++;
+			} else {
+				final int matrixSize = stateCount * stateCount;
+				final int offset = matrixCount * matrixSize * categoryCount;
+				for (int i = 0; i < categoryCount; i++) {
+					final double jointBranchRate = partition.siteModel.getRateForCategory(i, node) * branchRate;
+					getTransitionProbabilities(endEpoch, epoch, node, endTime, node.getHeight(), jointBranchRate, probabilities);
+					System.arraycopy(probabilities, 0, matrices, offset + matrixSize * i, matrixSize);
+				}
+				matrixIndices[matrixCount] = partition.getMatrixIndex(nodeNum);
+				matrixCount++;
+			}
+
+			update |= Tree.IS_DIRTY;
+		}
+
+
+		// If the node is internal, update the partial likelihoods.
+		if (!node.isLeaf()) {
+
+			Node child1 = node.getLeft();
+			final int update1 = traverse(partition, child1, flip);
+			Node child2 = node.getRight();
+			final int update2 = traverse(partition, child2, flip);
+
+			// If either child node was updated then update this node too
+			if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
+
+				int x = operationCount[epoch] * Beagle.PARTITION_OPERATION_TUPLE_SIZE;
+				if (flip) {
+					partition.partialBufferHelper.flipOffset(nodeNum);
+				}
+
+				final int[] operations = this.operations[epoch];
+				operations[x] = partition.getPartialsIndex(nodeNum);
+				if (useScaleFactors) {
+					// recompute the scale factor of this node into its other buffer
+					int n = nodeNum - partition.tipCount;
+					partition.scaleBufferHelper.flipOffset(n);
+					partition.scaleBufferIndices[n] = partition.getScaleIndex(n);
+					operations[x + 1] = partition.scaleBufferIndices[n];
+				} else {
+					operations[x + 1] = Beagle.NONE;
+				}
+				operations[x + 2] = Beagle.NONE;
+				operations[x + 3] = partition.getPartialsIndex(child1.getNr());
+				operations[x + 4] = partition.getMatrixIndex(child1.getNr());
+				operations[x + 5] = partition.getPartialsIndex(child2.getNr());
+				operations[x + 6] = partition.getMatrixIndex(child2.getNr());
+				operations[x + 7] = partition.nr;
+				operations[x + 8] = Beagle.NONE;
+
+				operationCount[epoch]++;
+				update |= (update1 | update2);
+			}
+		}
+
+		return update;
+	}
+
+
+	private void getTransitionProbabilities(int startEpoch, int endEpoch, Node node, double startTime, double endTime,
+			double jointBranchRate, double[] probabilities) {
+		final double [] p2 = epochMatrix;
+		final double [] p3 = chainedMatrix;
+		for (int k = startEpoch; k > endEpoch; k--) {
+			if (k < startEpoch) {
+				models[k].getTransitionProbabilities(node, startTime, epochDatesArray[k-1], jointBranchRate, p2);
+				System.arraycopy(probabilities, 0, p3, 0, probabilities.length);
+				ResubMathUtil.multiplyMatrices(p3, p2, probabilities, stateCount);
+			} else {
+				models[k].getTransitionProbabilities(node, startTime, epochDatesArray[k-1], jointBranchRate, probabilities);
+			}
+			startTime = epochDatesArray[k-1];
+		}
+
+		if (startEpoch != endEpoch) {
+			models[endEpoch].getTransitionProbabilities(node, startTime, endTime, jointBranchRate, p2);
+			System.arraycopy(probabilities, 0, p3, 0, probabilities.length);
+			ResubMathUtil.multiplyMatrices(p3, p2, probabilities, stateCount);
+		} else {
+			models[endEpoch].getTransitionProbabilities(node, startTime, endTime, jointBranchRate, probabilities);
+		}
+	}
+
+
+
+	@Override
+	protected boolean requiresRecalculation() {
+
+		if (beagle == null) {
+			boolean recalculate = false;
+			for (EpochTreeLikelihood likelihood : javaLikelihoods) {
+				recalculate |= likelihood.requiresRecalculation();
+			}
+			return recalculate;
+		}
+
+		boolean recalculate = false;
+		substModelThreshold = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < models.length; i++) {
+			if (((CalculationNode) models[i]).isDirtyCalculation()) {
+				updateSubstitutionModel = true;
+				substModelThreshold = Math.min(i == 0 ? 0 : epochDatesArray[i-1], substModelThreshold);
+				recalculate = true;
+			}
+		}
+
+		for (Partition partition : partitions) {
+			partition.hasDirt = Tree.IS_CLEAN;
+			if (partition.tree.somethingIsDirty()) {
+				partition.branchIndex.setDirty();
+				partition.treeChangedSinceStore = true;
+				recalculate = true;
+			}
+			if (partition.data.isDirtyCalculation()) {
+				partition.hasDirt = Tree.IS_FILTHY;
+				recalculate = true;
+			}
+			if (partition.siteModel.isDirtyCalculation()) {
+				partition.hasDirt |= Tree.IS_DIRTY;
+				partition.siteCategoriesKnown = false;
+				recalculate = true;
+			}
+			if (partition.branchRateModel.isDirtyCalculation()) {
+				recalculate = true;
+			}
+		}
+
+		// make sure branches crossing thresholds that changed get updated
+		for (int i = 0; i < epochDates.getDimension(); i++) {
+			double t = epochDates.getArrayValue(i);
+			double t2 = currentThresholds[i];
+			if (t2 != t) {
+				for (Partition partition : partitions) {
+					recalculate |= partition.markThresholdBranches(t, t2);
+				}
+				currentThresholds[i] = t;
+			}
+		}
+
+		return recalculate;
+	}
+
+
+	@Override
+	public void store() {
+		if (beagle == null) {
+			for (EpochTreeLikelihood likelihood : javaLikelihoods) {
+				likelihood.store();
+			}
+			super.store();
+			return;
+		}
+
+		eigenBufferHelper.storeState();
+		for (Partition partition : partitions) {
+			partition.partialBufferHelper.storeState();
+			partition.matrixBufferHelper.storeState();
+			partition.scaleBufferHelper.storeState();
+			System.arraycopy(partition.scaleBufferIndices, 0, partition.storedScaleBufferIndices, 0, partition.internalNodeCount);
+			System.arraycopy(partition.branchLengths, 0, partition.storedBranchLengths, 0, partition.nodeCount);
+			partition.treeChangedSinceStore = false;
+		}
+		System.arraycopy(currentThresholds, 0, storedThresholds, 0, currentThresholds.length);
+		System.arraycopy(partitionLogLikelihoods, 0, storedPartitionLogLikelihoods, 0, partitionCount);
+		super.store();
+	}
+
+
+	@Override
+	public void restore() {
+		if (beagle == null) {
+			for (EpochTreeLikelihood likelihood : javaLikelihoods) {
+				likelihood.restore();
+			}
+			super.restore();
+			return;
+		}
+
+		eigenBufferHelper.restoreState();
+		for (Partition partition : partitions) {
+			partition.partialBufferHelper.restoreState();
+			partition.matrixBufferHelper.restoreState();
+			partition.scaleBufferHelper.restoreState();
+			int [] tmp = partition.storedScaleBufferIndices;
+			partition.storedScaleBufferIndices = partition.scaleBufferIndices;
+			partition.scaleBufferIndices = tmp;
+			double [] tmp2 = partition.storedBranchLengths;
+			partition.storedBranchLengths = partition.branchLengths;
+			partition.branchLengths = tmp2;
+			if (partition.treeChangedSinceStore) {
+				partition.branchIndex.setDirty();
+			}
+
+			// the category rates are uploaded again if they differ from the restored site model
+			partition.siteCategoriesKnown = false;
+		}
+		double [] tmp = currentThresholds;
+		currentThresholds = storedThresholds;
+		storedThresholds = tmp;
+		tmp = partitionLogLikelihoods;
+		partitionLogLikelihoods = storedPartitionLogLikelihoods;
+		storedPartitionLogLikelihoods = tmp;
+		super.restore();
+	}
+
+
+
+	/**
+	 * @return the log likelihood of each partition at the last calculation
+	 */
+	public double [] getPartitionLogLikelihoods() {
+		if (beagle == null) {
+			double [] logLikelihoods = new double[partitionCount];
+			for (int p = 0; p < partitionCount; p++) {
+				logLikelihoods[p] = javaLikelihoods.get(p).getCurrentLogP();
+			}
+			return logLikelihoods;
+		}
+		return partitionLogLikelihoods;
+	}
+
+
+	public Beagle getBeagle() {
+		return beagle;
+	}
+
+
+	@Override
+	public List<String> getArguments() {
+		List<String> arguments = new ArrayList<>();
+		for (Alignment data : dataInput.get()) {
+			arguments.add(data.getID());
+		}
+		return arguments;
+	}
+
+
+	@Override
+	public List<String> getConditions() {
+		List<String> conditions = new ArrayList<>();
+		for (SiteModelInterface siteModel : siteModelInput.get()) {
+			conditions.add(((SiteModel.Base) siteModel).getID());
+		}
+		return conditions;
+	}
+
+
+	@Override
+	public void sample(State state, Random random) {
+		throw new UnsupportedOperationException("Can't sample from a " + getClass().getSimpleName());
+	}
+
+
+}
@@ -0,0 +1,115 @@
+package resub.likelihood;
+
+import java.util.Arrays;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+
+
+/**
+ * Likelihood core that only calculates the partials of a node for the states in its alphabet, when that alphabet
+ * is smaller than the full one (eg. in the old epochs of a resub model, where merged and removed states are blank).
+ * The partials of the other states are set to zero, and sums over the states of a child are restricted to the alphabet of that child.
+ * This is exact as long as there is no probability of moving from a state in the alphabet of the parent
+ * into a state outside the alphabet of the child, and the root frequencies of states outside the alphabet are zero.
+ * The alphabet of each node is kept with its partials buffer, so it is stored and restored along with the partials.
+ */
+public class ReducedAlphabetLikelihoodCore extends BeerLikelihoodCore implements ActiveStatesCore {
+
+
+	// Alphabet of the next calculation of each node, and of the partials in each of its two buffers (null for all states)
+	private int[][] nextActiveStates;
+	private int[][][] activeStates;
+	private int[] allStates;
+
+
+	public ReducedAlphabetLikelihoodCore(int stateCount) {
+		super(stateCount);
+	}
+
+
+	@Override
+	public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+		super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+		nextActiveStates = new int[nodeCount][];
+		activeStates = new int[2][nodeCount][];
+		allStates = new int[nrOfStates];
+		for (int i = 0; i < nrOfStates; i ++) {
+			allStates[i] = i;
+		}
+	}
+
+
+	@Override
+	public void setActiveStates(int nodeIndex, int[] activeStates) {
+		nextActiveStates[nodeIndex] = activeStates;
+	}
+
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+		int[] active = nextActiveStates[nodeIndex3];
+		activeStates[currentPartialsIndex[nodeIndex3]][nodeIndex3] = active;
+		if (active == null) {
+			super.calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3);
+			return;
+		}
+
+		double[] partials3 = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+		Arrays.fill(partials3, 0.0);
+		calculateChildPartials(nodeIndex1, active, partials3, true);
+		calculateChildPartials(nodeIndex2, active, partials3, false);
+
+		if (useScaling) {
+			scalePartials(nodeIndex3);
+		}
+	}
+
+
+	/**
+	 * Calculate the probability of the data below a child for each state of the parent in its alphabet,
+	 * and set (for the first child) or multiply these into the partials of the parent
+	 */
+	private void calculateChildPartials(int childIndex, int[] active, double[] partials3, boolean first) {
+		final double[] matrices1 = matrices[currentMatrixIndex[childIndex]][childIndex];
+		final int[] states1 = states[childIndex];
+
+		if (states1 != null) {
+			for (int l = 0; l < nrOfMatrices; l ++) {
+				int w = l * matrixSize;
+				for (int k = 0; k < nrOfPatterns; k ++) {
+					int state = states1[k];
+					int u = (l * nrOfPatterns + k) * nrOfStates;
+					for (int i : active) {
+
+						// A gap or unknown state does not contribute
+						double value = state < nrOfStates ? matrices1[w + i * nrOfStates + state] : 1.0;
+						partials3[u + i] = first ? value : partials3[u + i] * value;
+					}
+				}
+			}
+			return;
+		}
+
+		final double[] partials1 = partials[currentPartialsIndex[childIndex]][childIndex];
+		int[] childActive = activeStates[currentPartialsIndex[childIndex]][childIndex];
+		if (childActive == null) {
+			childActive = allStates;
+		}
+		for (int l = 0; l < nrOfMatrices; l ++) {
+			int w = l * matrixSize;
+			for (int k = 0; k < nrOfPatterns; k ++) {
+				int u = (l * nrOfPatterns + k) * nrOfStates;
+				for (int i : active) {
+					int row = w + i * nrOfStates;
+					double sum = 0.0;
+					for (int j : childActive) {
+						sum += matrices1[row + j] * partials1[u + j];
+					}
+					partials3[u + i] = first ? sum : partials3[u + i] * sum;
+				}
+			}
+		}
+	}
+
+
+}
@@ -0,0 +1,376 @@
+package resub.likelihood;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.evolution.likelihood.LikelihoodCore;
+
+
+/**
+ * Likelihood core that splits the site patterns into contiguous blocks, each with its own likelihood core.
+ * Matrices and buffer flips are passed on to every block straight away, while partials calculations are queued
+ * and run for all blocks in parallel on a shared executor when the root partials are integrated.
+ * Each block core does its own store/restore, so the semantics are the same as for a single core.
+ * This core holds no partials or matrices itself, so it implements LikelihoodCore directly.
+ */
+public class ThreadedLikelihoodCore extends LikelihoodCore implements ActiveStatesCore {
+
+
+	// Shared by all threaded likelihoods
+	private static ExecutorService executor;
+
+
+	final private LikelihoodCore[] cores;
+	final private int stateCount;
+
+	// Pattern block i covers patterns blockStart[i] to blockStart[i+1]-1
+	private int[] blockStart;
+	private int patternCount;
+	private int matrixCount;
+
+	// Queued calculatePartials calls, as triplets of node indices
+	private int[] operations;
+	private int operationCount;
+
+	// Temporary arrays that are initialised only once to save time
+	private double[][] blockRootPartials;
+	private double[][] blockLogLikelihoods;
+	private Future<?>[] futures;
+
+
+	/**
+	 * @param stateCount
+	 * @param cores one (uninitialised) core per pattern block
+	 */
+	public ThreadedLikelihoodCore(int stateCount, LikelihoodCore[] cores) {
+		this.stateCount = stateCount;
+		this.cores = cores;
+		this.futures = new Future<?>[cores.length];
+	}
+
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "resub-likelihood");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+
+	public int getBlockCount() {
+		return cores.length;
+	}
+
+
+	@Override
+	public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+		this.patternCount = patternCount;
+		this.matrixCount = matrixCount;
+		this.blockStart = new int[cores.length + 1];
+		for (int i = 0; i <= cores.length; i ++) {
+			blockStart[i] = (int) ((long) i * patternCount / cores.length);
+		}
+
+		blockRootPartials = new double[cores.length][];
+		blockLogLikelihoods = new double[cores.length][];
+		for (int i = 0; i < cores.length; i ++) {
+			int blockSize = blockStart[i+1] - blockStart[i];
+			cores[i].initialize(nodeCount, blockSize, matrixCount, integrateCategories, useAmbiguities);
+			blockRootPartials[i] = new double[blockSize * stateCount];
+			blockLogLikelihoods[i] = new double[blockSize];
+		}
+
+		operations = new int[nodeCount * 3];
+		operationCount = 0;
+	}
+
+
+	@Override
+	public void finalize() throws Throwable {
+		for (LikelihoodCore core : cores) {
+			core.finalize();
+		}
+	}
+
+
+	@Override
+	public void setUseScaling(double scale) {
+		for (LikelihoodCore core : cores) {
+			core.setUseScaling(scale);
+		}
+	}
+
+
+	@Override
+	public boolean getUseScaling() {
+		return cores[0].getUseScaling();
+	}
+
+
+	@Override
+	public double getLogScalingFactor(int patternIndex) {
+		int block = getBlock(patternIndex);
+		return cores[block].getLogScalingFactor(patternIndex - blockStart[block]);
+	}
+
+
+	private int getBlock(int patternIndex) {
+		int block = Arrays.binarySearch(blockStart, patternIndex);
+		if (block < 0) {
+			block = -block - 2;
+		}
+
+		// Skip over empty blocks
+		while (blockStart[block+1] == patternIndex && block < cores.length - 1) {
+			block++;
+		}
+		return block;
+	}
+
+
+	@Override
+	public void createNodePartials(int nodeIndex) {
+		for (LikelihoodCore core : cores) {
+			core.createNodePartials(nodeIndex);
+		}
+	}
+
+
+	/**
+	 * Partials are either patternCount*stateCount long, or that times the number of categories
+	 */
+	@Override
+	public void setNodePartials(int nodeIndex, double[] partials) {
+		int categoryCount = partials.length / (patternCount * stateCount);
+		for (int i = 0; i < cores.length; i ++) {
+			int blockSize = blockStart[i+1] - blockStart[i];
+			double[] blockPartials = new double[blockSize * stateCount * categoryCount];
+			for (int c = 0; c < categoryCount; c ++) {
+				System.arraycopy(partials, (c * patternCount + blockStart[i]) * stateCount, blockPartials, c * blockSize * stateCount, blockSize * stateCount);
+			}
+			cores[i].setNodePartials(nodeIndex, blockPartials);
+		}
+	}
+
+
+	@Override
+	public void getNodePartials(int nodeIndex, double[] partials) {
+		flush();
+		int categoryCount = partials.length / (patternCount * stateCount);
+		for (int i = 0; i < cores.length; i ++) {
+			int blockSize = blockStart[i+1] - blockStart[i];
+			double[] blockPartials = new double[blockSize * stateCount * categoryCount];
+			cores[i].getNodePartials(nodeIndex, blockPartials);
+			for (int c = 0; c < categoryCount; c ++) {
+				System.arraycopy(blockPartials, c * blockSize * stateCount, partials, (c * patternCount + blockStart[i]) * stateCount, blockSize * stateCount);
+			}
+		}
+	}
+
+
+	@Override
+	public void setNodeStates(int nodeIndex, int[] states) {
+		for (int i = 0; i < cores.length; i ++) {
+			cores[i].setNodeStates(nodeIndex, Arrays.copyOfRange(states, blockStart[i], blockStart[i+1]));
+		}
+	}
+
+
+	@Override
+	public void getNodeStates(int nodeIndex, int[] states) {
+		for (int i = 0; i < cores.length; i ++) {
+			int[] blockStates = new int[blockStart[i+1] - blockStart[i]];
+			cores[i].getNodeStates(nodeIndex, blockStates);
+			System.arraycopy(blockStates, 0, states, blockStart[i], blockStates.length);
+		}
+	}
+
+
+	@Override
+	public void setActiveStates(int nodeIndex, int[] activeStates) {
+		for (LikelihoodCore core : cores) {
+			if (core instanceof ActiveStatesCore) {
+				((ActiveStatesCore) core).setActiveStates(nodeIndex, activeStates);
+			}
+		}
+	}
+
+
+	@Override
+	public void setNodeMatrixForUpdate(int nodeIndex) {
+		for (LikelihoodCore core : cores) {
+			core.setNodeMatrixForUpdate(nodeIndex);
+		}
+	}
+
+
+	@Override
+	public void setNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+		for (LikelihoodCore core : cores) {
+			core.setNodeMatrix(nodeIndex, matrixIndex, matrix);
+		}
+	}
+
+
+	@Override
+	public void getNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+		cores[0].getNodeMatrix(nodeIndex, matrixIndex, matrix);
+	}
+
+
+	@Override
+	public void setNodePartialsForUpdate(int nodeIndex) {
+		for (LikelihoodCore core : cores) {
+			core.setNodePartialsForUpdate(nodeIndex);
+		}
+	}
+
+
+	@Override
+	public void setNodeStatesForUpdate(int nodeIndex) {
+		for (LikelihoodCore core : cores) {
+			core.setNodeStatesForUpdate(nodeIndex);
+		}
+	}
+
+
+	/**
+	 * Queue the calculation. It is run for all blocks when the root partials are integrated
+	 */
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+		if (operationCount * 3 == operations.length) {
+			operations = Arrays.copyOf(operations, operations.length * 2);
+		}
+		operations[operationCount * 3] = nodeIndex1;
+		operations[operationCount * 3 + 1] = nodeIndex2;
+		operations[operationCount * 3 + 2] = nodeIndex3;
+		operationCount++;
+	}
+
+
+	/**
+	 * Run all queued partials calculations, with each block on its own thread
+	 */
+	private void flush() {
+		if (operationCount == 0) return;
+
+		ExecutorService executor = getExecutor();
+		for (int i = 1; i < cores.length; i ++) {
+			final LikelihoodCore core = cores[i];
+			futures[i] = executor.submit(() -> calculatePartials(core));
+		}
+
+		// The first block runs on this thread
+		calculatePartials(cores[0]);
+
+		try {
+			for (int i = 1; i < cores.length; i ++) {
+				futures[i].get();
+				futures[i] = null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			operationCount = 0;
+		}
+
+	}
+
+
+	private void calculatePartials(LikelihoodCore core) {
+		for (int k = 0; k < operationCount; k ++) {
+			core.calculatePartials(operations[k * 3], operations[k * 3 + 1], operations[k * 3 + 2]);
+		}
+	}
+
+
+	@Override
+	public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
+		flush();
+		for (int i = 0; i < cores.length; i ++) {
+			cores[i].integratePartials(nodeIndex, proportions, blockRootPartials[i]);
+			System.arraycopy(blockRootPartials[i], 0, outPartials, blockStart[i] * stateCount, blockRootPartials[i].length);
+		}
+	}
+
+
+	/**
+	 * Integrates partials across categories, for partials laid out over all patterns as in integratePartials.
+	 * integratePartials itself leaves this to the block cores, which work on their own buffers
+	 */
+	@Override
+	protected void calculateIntegratePartials(double[] inPartials, double[] proportions, double[] outPartials) {
+		int u = 0;
+		int v = 0;
+		for (int k = 0; k < patternCount; k++) {
+			for (int i = 0; i < stateCount; i++) {
+				outPartials[u] = inPartials[v] * proportions[0];
+				u++;
+				v++;
+			}
+		}
+
+		for (int l = 1; l < matrixCount; l++) {
+			u = 0;
+			for (int k = 0; k < patternCount; k++) {
+				for (int i = 0; i < stateCount; i++) {
+					outPartials[u] += inPartials[v] * proportions[l];
+					u++;
+					v++;
+				}
+			}
+		}
+	}
+
+
+	@Override
+	public void calculateLogLikelihoods(double[] partials, double[] frequencies, double[] outLogLikelihoods) {
+		for (int i = 0; i < cores.length; i ++) {
+			System.arraycopy(partials, blockStart[i] * stateCount, blockRootPartials[i], 0, blockRootPartials[i].length);
+			cores[i].calculateLogLikelihoods(blockRootPartials[i], frequencies, blockLogLikelihoods[i]);
+			System.arraycopy(blockLogLikelihoods[i], 0, outLogLikelihoods, blockStart[i], blockLogLikelihoods[i].length);
+		}
+	}
+
+
+	@Override
+	public void store() {
+		for (LikelihoodCore core : cores) {
+			core.store();
+		}
+	}
+
+
+	@Override
+	public void unstore() {
+		operationCount = 0;
+		for (LikelihoodCore core : cores) {
+			core.unstore();
+		}
+	}
+
+
+	@Override
+	public void restore() {
+		operationCount = 0;
+		for (LikelihoodCore core : cores) {
+			core.restore();
+		}
+	}
+
+
+}
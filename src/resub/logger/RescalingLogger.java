@@ -0,0 +1,56 @@
+package resub.logger;
+
+import java.io.PrintStream;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.core.Input.Validate;
+import resub.likelihood.EpochBeagleTreeLikelihood;
+import resub.likelihood.EpochTreeLikelihood;
+
+@Description("Logs how often a BEAGLE epoch tree likelihood had to rescale its partials, how many full traversals that took, "
+		+ "the time spent in them and the current interval between recomputations of the scale factors")
+public class RescalingLogger extends BEASTObject implements Loggable {
+	final public Input<EpochTreeLikelihood> likelihoodInput = new Input<>("likelihood", "epoch tree likelihood to report on", Validate.REQUIRED);
+
+
+	private EpochBeagleTreeLikelihood likelihood;
+
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get().getBeagleLikelihood();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		String id = likelihoodInput.get().getID();
+		out.append(id + ".rescaleEvents\t");
+		out.append(id + ".fullTraversals\t");
+		out.append(id + ".rescaleTime\t");
+		out.append(id + ".rescaleInterval\t");
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+
+		// the java likelihood core does not rescale this way
+		if (likelihood == null) {
+			out.print("0\t0\t0.0\t0\t");
+			return;
+		}
+
+		out.print(likelihood.getRescaleEventCount() + "\t");
+		out.print(likelihood.getFullTraversalCount() + "\t");
+		out.print(likelihood.getRescaleTime() + "\t");
+		out.print(likelihood.getRescalingFrequency() + "\t");
+	}
+
+	@Override
+	public void close(PrintStream out) {
+
+	}
+
+}
@@ -88,8 +88,7 @@ public class AlphabetEpochPrior extends Distribution {
 	    		
 	    			
 				// Check that alpha is not pointing to an invalid state
-				String stateNameInEpoch = epoch.getStateNames().get(epoch.getAlpha());
-				if (stateNameInEpoch.equals(AlphabetEpoch.BLANK_STATE)) {
+				if (epoch.isBlank(epoch.getAlpha())) {
 					logP = Double.NEGATIVE_INFINITY;
 					//Log.warning("Reject: alpha is pointing to a deleted state");
 	    			return logP;
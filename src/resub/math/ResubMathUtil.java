@@ -1,39 +1,54 @@
 package resub.math;
 
+import java.util.Arrays;
+
 import beast.base.core.Log;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 
 public class ResubMathUtil {
 	
 	/**
-	 * Compute result = left * right
+	 * Compute result = left * right, where all three are dim*dim row-major matrices.
+	 * The loops run in i-k-j order so that the innermost loop walks along contiguous
+	 * rows of right and result, which the JIT can vectorise. Two rows of right are 
+	 * accumulated per pass to halve the loads and stores of result, and zero elements 
+	 * of left (eg. in the sparse transport matrices) are skipped.
+	 * Because of this skip, an infinite or NaN element of right does not propagate through 
+	 * a zero element of left (0 * Inf), unlike the plain row-by-column product. All callers 
+	 * multiply probability matrices, whose elements are finite.
+	 * result must not be the same array as left or right.
 	 **/
 	public static void multiplyMatrices(double[] left, double[] right, double[] result, int dim) {
 		
 		
-		int index3 = 0;
 		for (int rowNum = 0; rowNum < dim; rowNum ++) {
 			
-			for (int colNum = 0; colNum < dim; colNum ++) {
-				
-				double sum = 0;
+			final int rowOffset = rowNum * dim;
+			Arrays.fill(result, rowOffset, rowOffset + dim, 0.0);
+			
+			// Add the rows of right, weighted by the corresponding elements of this row of left 
+			int pos = 0;
+			for (; pos + 1 < dim; pos += 2) {
+				final double term1 = left[rowOffset + pos];
+				final double term2 = left[rowOffset + pos + 1];
+				if (term1 == 0 && term2 == 0) continue;
 				
-				// Move along the columns of left and rows of right 
-				int index1 = rowNum * dim;
-				int index2 = colNum;
-				for (int pos = 0; pos < dim; pos++) {
-					double term1 = left[index1];
-					double term2 = right[index2]; 
-					sum += term1*term2;
-
-					index1 ++;
-					index2 += dim;
-					
+				final int posOffset1 = pos * dim;
+				final int posOffset2 = posOffset1 + dim;
+				for (int colNum = 0; colNum < dim; colNum ++) {
+					result[rowOffset + colNum] += term1 * right[posOffset1 + colNum] + term2 * right[posOffset2 + colNum];
 				}
-
-				result[index3] = sum;
-				index3 ++;
-				
 			}
+			
+			// Odd dimension
+			if (pos < dim) {
+				final double term1 = left[rowOffset + pos];
+				final int posOffset1 = pos * dim;
+				for (int colNum = 0; colNum < dim; colNum ++) {
+					result[rowOffset + colNum] += term1 * right[posOffset1 + colNum];
+				}
+			}
+			
 		}
 		
 		
@@ -63,6 +78,35 @@ public class ResubMathUtil {
 	}
 	
 	
+	/**
+	 * Compute the rate matrix E * diag(eigenvalues) * E^-1 of a real eigen decomposition, 
+	 * so that the transition probabilities over a distance d are exp(rateMatrix * d)
+	 * @param eigenDecomposition
+	 * @param rateMatrix dim*dim row-major matrix to fill in
+	 * @param dim
+	 */
+	public static void getRateMatrix(EigenDecomposition eigenDecomposition, double[] rateMatrix, int dim) {
+		
+		double[] eigenValues = eigenDecomposition.getEigenValues();
+		if (eigenValues.length != dim) {
+			throw new IllegalArgumentException("Rate matrices can only be calculated from real eigen decompositions");
+		}
+		double[] eigenVectors = eigenDecomposition.getEigenVectors();
+		double[] inverseEigenVectors = eigenDecomposition.getInverseEigenVectors();
+		Arrays.fill(rateMatrix, 0, dim * dim, 0.0);
+		for (int i = 0; i < dim; i ++) {
+			for (int k = 0; k < dim; k ++) {
+				final double term = eigenVectors[i * dim + k] * eigenValues[k];
+				if (term == 0) continue;
+				for (int j = 0; j < dim; j ++) {
+					rateMatrix[i * dim + j] += term * inverseEigenVectors[k * dim + j];
+				}
+			}
+		}
+		
+	}
+	
+	
 	public static void printProbabilityMatrix(double[] matrix, int dim) {
 		
 		
@@ -79,25 +123,35 @@ public class ResubMathUtil {
 	}
 	
 
+	/**
+	 * Index of the rate from 'from' to 'to' in a list of off-diagonal rates, which are ordered by row (to) and
+	 * then by column (from), skipping the diagonal
+	 * @return the index, or -1 if from == to or either is not a state
+	 */
+	public static int getRateIndex(int to, int from, int ndim) {
+		if (from == to || to < 0 || from < 0 || to >= ndim || from >= ndim) return -1;
+		return to * (ndim - 1) + (from < to ? from : from - 1);
+	}
+	
+	
 	public static void setRate(double[] rates, int to, int from, double value, int ndim) {
-		
-		if (from == to) return;
-		
-		
-		int k = 0;
-		for (int i = 0; i < ndim; i ++) {
-			for (int j = 0; j < ndim; j ++) {
-				if (i == j) continue;
-				if (i == to && j == from) {
-					rates[k] = value;
-					return;
-				}
-				k ++;
-			}
+		int k = getRateIndex(to, from, ndim);
+		if (k >= 0) {
+			rates[k] = value;
 		}
 	}
 	
 	
+	/**
+	 * @return the rate from 'from' to 'to', -1 if from == to, or -2 if either is not a state
+	 */
+	public static double getRate(double[] rates, int to, int from, int ndim) {
+		if (from == to) return -1;
+		int k = getRateIndex(to, from, ndim);
+		return k >= 0 ? rates[k] : -2;
+	}
+	
+	
 	
 	public static double[] convertRatesToSymmetric(double[] ratesIn, int ndim) {
 		
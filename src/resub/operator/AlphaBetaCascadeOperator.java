@@ -83,8 +83,7 @@ public class AlphaBetaCascadeOperator extends Operator {
 		
 		if (alpha == beta) return false;
 		
-		String stateNameInEpoch = epoch.getStateNames().get(alpha);
-		if (stateNameInEpoch.equals(AlphabetEpoch.BLANK_STATE)) {
+		if (epoch.isBlank(alpha)) {
 			return false;
 		}
 		
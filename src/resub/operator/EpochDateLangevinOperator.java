@@ -0,0 +1,200 @@
+package resub.operator;
+
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Evaluator;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.inference.util.InputUtil;
+import beast.base.util.Randomizer;
+import resub.likelihood.EpochTreeLikelihood;
+
+
+@Description("Moves all epoch dates at once along the gradient of the tree likelihood (Metropolis adjusted Langevin algorithm), "
+		+ "so that each step can move further than a random walk. The gradient is calculated by the likelihoods from their partials, "
+		+ "at the current dates and, with one evaluation, at the proposed dates")
+public class EpochDateLangevinOperator extends Operator {
+	final public Input<RealParameter> parameterInput = new Input<>("parameter", "the epoch dates of the epoch tree likelihoods", Validate.REQUIRED);
+	final public Input<List<EpochTreeLikelihood>> likelihoodInput = new Input<>("likelihood", "epoch tree likelihoods with these epoch dates whose gradient drives the proposal. "
+			+ "Models that read the same parameter, and priors on the dates, are not part of the drift, but still part of the acceptance probability", 
+			new ArrayList<>(), Validate.REQUIRED);
+	public final Input<Double> stepSizeInput = new Input<>("stepSize", "standard deviation of the proposal: larger means more bold proposals", 0.1);
+	final public Input<Boolean> optimiseInput = new Input<>("optimise", "flag to indicate that the step size is automatically changed in order to achieve a good acceptance rate (default true)", true);
+
+
+	double stepSize;
+
+	@Override
+	public void initAndValidate() {
+		for (EpochTreeLikelihood likelihood : likelihoodInput.get()) {
+			if (likelihood.epochDatesInput.get() != parameterInput.get()) {
+				throw new IllegalArgumentException("The parameter should be the epoch dates of each likelihood");
+			}
+			if (likelihood.getBeagleLikelihood() != null) {
+				throw new IllegalArgumentException(getClass().getSimpleName() + " needs the gradient of the java likelihood core, "
+						+ "but " + likelihood.getID() + " uses BEAGLE. Set the java.only property to use the java likelihood core");
+			}
+		}
+		stepSize = stepSizeInput.get();
+	}
+
+
+	/**
+	 * Without an evaluator the proposed dates cannot be calculated, so neither can the drift of the reverse move.
+	 * The proposal is then a Gaussian random walk on all dates with the same step size.
+	 */
+	@Override
+	public double proposal() {
+		return proposal(null);
+	}
+
+
+	@Override
+	public double proposal(Evaluator evaluator) {
+
+		RealParameter param = (RealParameter) InputUtil.get(parameterInput, this);
+		List<EpochTreeLikelihood> likelihoods = likelihoodInput.get();
+		int dim = param.getDimension();
+		double [] values = new double[dim];
+		for (int i = 0; i < dim; i++) {
+			values[i] = param.getValue(i);
+		}
+
+		// Langevin proposal: drift half a squared step along the gradient, then add noise
+		double [] gradient = evaluator == null ? new double[dim] : getGradient(likelihoods, false);
+		double [] newValues = new double[dim];
+		double logForward = 0;
+		for (int i = 0; i < dim; i++) {
+			double mean = values[i] + stepSize * stepSize / 2.0 * gradient[i];
+			double z = Randomizer.nextGaussian();
+			newValues[i] = mean + stepSize * z;
+			logForward -= z * z / 2.0;
+			if (Double.isNaN(newValues[i]) || newValues[i] < param.getLower() || newValues[i] > param.getUpper()) {
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+
+		// the likelihoods need the dates in increasing order
+		for (int i = 1; i < dim; i++) {
+			if (!(newValues[i-1] < newValues[i])) {
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+		setValues(param, newValues);
+
+		// the gradient at the new dates gives the probability of the reverse move. The evaluator puts back the dates and
+		// the calculation nodes afterwards, so the new dates are set again
+		double [] newGradient = new double[dim];
+		if (evaluator != null) {
+			for (EpochTreeLikelihood likelihood : likelihoods) {
+				likelihood.requestGradients();
+			}
+			evaluator.evaluate();
+			newGradient = getGradient(likelihoods, true);
+			setValues(param, newValues);
+		}
+		double logBackward = 0;
+		for (int i = 0; i < dim; i++) {
+			double z = (values[i] - newValues[i] - stepSize * stepSize / 2.0 * newGradient[i]) / stepSize;
+			logBackward -= z * z / 2.0;
+		}
+
+		double logHR = logBackward - logForward;
+		return Double.isNaN(logHR) ? Double.NEGATIVE_INFINITY : logHR;
+	}
+
+
+	/**
+	 * Summed gradient of the log likelihoods with respect to the epoch dates
+	 * @param likelihoods
+	 * @param requested whether to take the gradients that were requested for the last evaluation, 
+	 * instead of those at the current dates. A likelihood that was not calculated does not contribute
+	 * @return the gradient, with one entry per epoch date
+	 */
+	public static double [] getGradient(List<EpochTreeLikelihood> likelihoods, boolean requested) {
+		double [] gradient = null;
+		for (EpochTreeLikelihood likelihood : likelihoods) {
+			double [] g = requested ? likelihood.getRequestedEpochDateGradient() : likelihood.getEpochDateGradient();
+			if (g == null) {
+				continue;
+			}
+			if (gradient == null) {
+				gradient = g;
+			} else {
+				for (int i = 0; i < gradient.length; i++) {
+					gradient[i] += g[i];
+				}
+			}
+		}
+		return gradient != null ? gradient : new double[likelihoods.get(0).epochDatesInput.get().getDimension()];
+	}
+
+
+	private static void setValues(RealParameter param, double [] values) {
+		for (int i = 0; i < values.length; i++) {
+			if (param.getValue(i) != values[i]) {
+				param.setValue(i, values[i]);
+			}
+		}
+	}
+
+
+	@Override
+	public double getCoercableParameterValue() {
+		return stepSize;
+	}
+
+	@Override
+	public void setCoercableParameterValue(double value) {
+		stepSize = value;
+	}
+
+	@Override
+	public void optimize(double logAlpha) {
+		if (optimiseInput.get()) {
+			double delta = calcDelta(logAlpha);
+			delta += Math.log(stepSize);
+			stepSize = Math.exp(delta);
+		}
+	}
+
+	@Override
+	public double getTargetAcceptanceProbability() {
+		return 0.574;
+	}
+
+
+	@Override
+	public List<StateNode> listStateNodes() {
+		List<StateNode> nodes = new ArrayList<>();
+		nodes.add(parameterInput.get());
+		return nodes;
+	}
+
+
+	@Override
+	public String getPerformanceSuggestion() {
+		double prob = m_nNrAccepted / (m_nNrAccepted + m_nNrRejected + 0.0);
+		double targetProb = getTargetAcceptanceProbability();
+
+		double ratio = prob / targetProb;
+		if (ratio > 2.0) ratio = 2.0;
+		if (ratio < 0.5) ratio = 0.5;
+
+		// new step size
+		double newStepSize = getCoercableParameterValue() * ratio;
+
+		DecimalFormat formatter = new DecimalFormat("#.###");
+		if (prob < 0.40 || prob > 0.75) {
+			return "Try setting step size to about " + formatter.format(newStepSize);
+		} else return "";
+	}
+
+}
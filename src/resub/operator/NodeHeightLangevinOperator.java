@@ -0,0 +1,206 @@
+package resub.operator;
+
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Evaluator;
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.inference.util.InputUtil;
+import beast.base.util.Randomizer;
+import resub.likelihood.EpochTreeLikelihood;
+
+
+@Description("Moves the heights of all internal nodes at once along the gradient of the tree likelihood (Metropolis adjusted Langevin algorithm), "
+		+ "including the gradient through the epoch-chained transition probabilities. Leaves stay where they are. "
+		+ "The gradient is calculated by the likelihoods from their partials, at the current heights and, with one evaluation, at the proposed heights")
+public class NodeHeightLangevinOperator extends Operator {
+	final public Input<Tree> treeInput = new Input<>("tree", "the tree of the epoch tree likelihoods", Validate.REQUIRED);
+	final public Input<List<EpochTreeLikelihood>> likelihoodInput = new Input<>("likelihood", "epoch tree likelihoods on this tree whose gradient drives the proposal. "
+			+ "Priors on the node heights are not part of the drift, but still part of the acceptance probability", new ArrayList<>(), Validate.REQUIRED);
+	public final Input<Double> stepSizeInput = new Input<>("stepSize", "standard deviation of the proposal: larger means more bold proposals", 0.01);
+	final public Input<Boolean> optimiseInput = new Input<>("optimise", "flag to indicate that the step size is automatically changed in order to achieve a good acceptance rate (default true)", true);
+
+
+	double stepSize;
+
+	@Override
+	public void initAndValidate() {
+		for (EpochTreeLikelihood likelihood : likelihoodInput.get()) {
+			if (likelihood.treeInput.get() != treeInput.get()) {
+				throw new IllegalArgumentException("The tree should be the tree of each likelihood");
+			}
+			if (likelihood.getBeagleLikelihood() != null) {
+				throw new IllegalArgumentException(getClass().getSimpleName() + " needs the gradient of the java likelihood core, "
+						+ "but " + likelihood.getID() + " uses BEAGLE. Set the java.only property to use the java likelihood core");
+			}
+		}
+		stepSize = stepSizeInput.get();
+	}
+
+
+	/**
+	 * Without an evaluator the proposed heights cannot be calculated, so neither can the drift of the reverse move.
+	 * The proposal is then a Gaussian random walk on all internal nodes with the same step size.
+	 */
+	@Override
+	public double proposal() {
+		return proposal(null);
+	}
+
+
+	@Override
+	public double proposal(Evaluator evaluator) {
+
+		// the evaluator restores the tree, which swaps its node arrays, so nodes are looked up by number each time
+		Tree tree = (Tree) InputUtil.get(treeInput, this);
+		List<EpochTreeLikelihood> likelihoods = likelihoodInput.get();
+		int nodeCount = tree.getNodeCount();
+		double [] heights = new double[nodeCount];
+		for (int nr = 0; nr < nodeCount; nr++) {
+			heights[nr] = tree.getNode(nr).getHeight();
+		}
+
+		// Langevin proposal for each internal node: drift half a squared step along the gradient, then add noise
+		double [] gradient = evaluator == null ? new double[nodeCount] : getGradient(likelihoods, false);
+		double [] newHeights = heights.clone();
+		double logForward = 0;
+		for (int nr = 0; nr < nodeCount; nr++) {
+			if (!tree.getNode(nr).isLeaf()) {
+				double z = Randomizer.nextGaussian();
+				newHeights[nr] = heights[nr] + stepSize * stepSize / 2.0 * gradient[nr] + stepSize * z;
+				logForward -= z * z / 2.0;
+			}
+		}
+
+		// every node should stay above its children
+		for (int nr = 0; nr < nodeCount; nr++) {
+			Node node = tree.getNode(nr);
+			if (!node.isRoot() && !(newHeights[nr] < newHeights[node.getParent().getNr()])) {
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+		setHeights(tree, newHeights);
+
+		// the gradient at the new heights gives the probability of the reverse move. The evaluator puts back the tree and
+		// the calculation nodes afterwards, so the new heights are set again
+		double [] newGradient = new double[nodeCount];
+		if (evaluator != null) {
+			for (EpochTreeLikelihood likelihood : likelihoods) {
+				likelihood.requestGradients();
+			}
+			evaluator.evaluate();
+			newGradient = getGradient(likelihoods, true);
+			setHeights(tree, newHeights);
+		}
+		double logBackward = 0;
+		for (int nr = 0; nr < nodeCount; nr++) {
+			if (!tree.getNode(nr).isLeaf()) {
+				double z = (heights[nr] - newHeights[nr] - stepSize * stepSize / 2.0 * newGradient[nr]) / stepSize;
+				logBackward -= z * z / 2.0;
+			}
+		}
+
+		double logHR = logBackward - logForward;
+		return Double.isNaN(logHR) ? Double.NEGATIVE_INFINITY : logHR;
+	}
+
+
+	/**
+	 * Summed gradient of the log likelihoods with respect to the height of each node
+	 * @param likelihoods
+	 * @param requested whether to take the gradients that were requested for the last evaluation, 
+	 * instead of those at the current heights. A likelihood that was not calculated does not contribute
+	 * @return the gradient, indexed by node number
+	 */
+	public static double [] getGradient(List<EpochTreeLikelihood> likelihoods, boolean requested) {
+		double [] gradient = null;
+		for (EpochTreeLikelihood likelihood : likelihoods) {
+			double [] g = requested ? likelihood.getRequestedNodeHeightGradient() : likelihood.getNodeHeightGradient();
+			if (g == null) {
+				continue;
+			}
+			if (gradient == null) {
+				gradient = g;
+			} else {
+				for (int i = 0; i < gradient.length; i++) {
+					gradient[i] += g[i];
+				}
+			}
+		}
+		return gradient != null ? gradient : new double[likelihoods.get(0).treeInput.get().getNodeCount()];
+	}
+
+
+	/**
+	 * Set the heights of the internal nodes of the live tree, leaving nodes that are already at their height untouched
+	 */
+	private static void setHeights(Tree tree, double [] heights) {
+		for (int nr = 0; nr < heights.length; nr++) {
+			Node node = tree.getNode(nr);
+			if (!node.isLeaf() && node.getHeight() != heights[nr]) {
+				node.setHeight(heights[nr]);
+			}
+		}
+	}
+
+
+	@Override
+	public double getCoercableParameterValue() {
+		return stepSize;
+	}
+
+	@Override
+	public void setCoercableParameterValue(double value) {
+		stepSize = value;
+	}
+
+	@Override
+	public void optimize(double logAlpha) {
+		if (optimiseInput.get()) {
+			double delta = calcDelta(logAlpha);
+			delta += Math.log(stepSize);
+			stepSize = Math.exp(delta);
+		}
+	}
+
+	@Override
+	public double getTargetAcceptanceProbability() {
+		return 0.574;
+	}
+
+
+	@Override
+	public List<StateNode> listStateNodes() {
+		List<StateNode> nodes = new ArrayList<>();
+		nodes.add(treeInput.get());
+		return nodes;
+	}
+
+
+	@Override
+	public String getPerformanceSuggestion() {
+		double prob = m_nNrAccepted / (m_nNrAccepted + m_nNrRejected + 0.0);
+		double targetProb = getTargetAcceptanceProbability();
+
+		double ratio = prob / targetProb;
+		if (ratio > 2.0) ratio = 2.0;
+		if (ratio < 0.5) ratio = 0.5;
+
+		// new step size
+		double newStepSize = getCoercableParameterValue() * ratio;
+
+		DecimalFormat formatter = new DecimalFormat("#.###");
+		if (prob < 0.40 || prob > 0.75) {
+			return "Try setting step size to about " + formatter.format(newStepSize);
+		} else return "";
+	}
+
+}
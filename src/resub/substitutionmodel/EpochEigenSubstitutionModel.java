@@ -0,0 +1,44 @@
+package resub.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+
+
+/**
+ * A substitution model that is made up of several alphabet epochs, each of which has its own eigen decomposition.
+ * These models cannot be diagonalised as a whole, but a branch that lies entirely inside one epoch can still
+ * be exponentiated directly (eg. by BEAGLE) from the eigen decomposition of that epoch.
+ */
+public interface EpochEigenSubstitutionModel {
+
+
+	/**
+	 * @return the number of eigen decompositions, which is fixed for the lifetime of the model
+	 */
+	public int getEpochEigenCount();
+
+
+	/**
+	 * @param index
+	 * @return the eigen decomposition of the epoch at this index
+	 */
+	public EigenDecomposition getEpochEigenDecomposition(int index);
+
+
+	/**
+	 * Find the epoch that a branch lies entirely within
+	 * @param startAge the age at the top of the branch
+	 * @param endAge the age at the bottom of the branch
+	 * @return the index of the eigen decomposition for this branch, or -1 if the branch crosses an epoch boundary
+	 */
+	public int getEpochEigenIndex(double startAge, double endAge);
+
+
+	/**
+	 * Find the epoch that applies at an age, eg. for the rate matrix at one end of a branch
+	 * @param age
+	 * @return the index of the eigen decomposition of the epoch at this age
+	 */
+	public int getEpochEigenIndex(double age);
+
+
+}
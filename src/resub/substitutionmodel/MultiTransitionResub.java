@@ -1,6 +1,7 @@
 package resub.substitutionmodel;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -17,9 +18,10 @@ import resub.substitutionmodel.epochs.AlphabetEpochs;
 
 
 @Description("Assumes multiple coding epochs, where 2 states coalesce at each transition")
-public class MultiTransitionResub extends SubstitutionModel.Base implements Loggable {
+public class MultiTransitionResub extends SubstitutionModel.Base implements Loggable, EpochEigenSubstitutionModel {
 	
 	final public Input<AlphabetEpochs> epochsInput = new Input<>("epochs", "vector of alphabet epochs", Input.Validate.REQUIRED);
+	final public Input<Integer> cacheSizeInput = new Input<>("cacheSize", "maximum number of chained probability matrices of epoch crossing branches to cache (0 for no caching)", 2048);
 
 	
 	AlphabetEpochs alphabetEpochs;
@@ -37,6 +39,33 @@ public class MultiTransitionResub extends SubstitutionModel.Base implements Logg
 	double[] epochTransitionAges;
 	
 	
+	// Least recently used cache of chained matrices, which are valid for one version of the alphabet epochs.
+	// Entries are kept in preallocated arrays, with a hash table of chains and a list from the newest to the oldest entry,
+	// so that neither hits nor misses allocate once the cache is full
+	int cacheSize;
+	int cacheCount;
+	double[] cacheStartAges;
+	double[] cacheEndAges;
+	double[] cacheRates;
+	double[][] cacheMatrices;
+	int[] cacheBuckets;
+	int[] cacheNextInBucket;
+	int[] cacheOlder;
+	int[] cacheNewer;
+	int cacheNewest;
+	int cacheOldest;
+	long cacheVersion;
+	
+	// Since the start, so that each logger reports the same hit rate
+	long cacheLookups;
+	long cacheHits;
+	
+	
+	// Non-blank states of the alphabet epoch at each rank, for one version of the alphabet epochs
+	int[][] activeStatesByRank;
+	long activeStatesVersion = -1;
+	
+	
 	@Override
 	public void initAndValidate() {
 		
@@ -55,6 +84,21 @@ public class MultiTransitionResub extends SubstitutionModel.Base implements Logg
 		this.tmpMatrixTransported = new double[(this.nrOfStates+1)*(this.nrOfStates+1)];
 		this.epochTransitionAges = new double[this.alphabetEpochs.getNOldEpochs()];
 		
+		this.cacheSize = cacheSizeInput.get();
+		if (this.cacheSize > 0) {
+			int bucketCount = Integer.highestOneBit(Math.max(1, 2 * this.cacheSize - 1)) << 1;
+			this.cacheStartAges = new double[this.cacheSize];
+			this.cacheEndAges = new double[this.cacheSize];
+			this.cacheRates = new double[this.cacheSize];
+			this.cacheMatrices = new double[this.cacheSize][];
+			this.cacheBuckets = new int[bucketCount];
+			this.cacheNextInBucket = new int[this.cacheSize];
+			this.cacheOlder = new int[this.cacheSize];
+			this.cacheNewer = new int[this.cacheSize];
+			clearCache();
+		}
+		this.cacheVersion = -1;
+		
 		update();
 		
 	}
@@ -134,6 +178,24 @@ public class MultiTransitionResub extends SubstitutionModel.Base implements Logg
 		//System.out.println(this.getClass().getSimpleName() + " " + bottomEpochStartAge);
 		
 		
+		// Has this branch been chained before?
+		if (cacheSize > 0) {
+			long version = alphabetEpochs.getVersion();
+			if (version != cacheVersion) {
+				clearCache();
+				cacheVersion = version;
+			}
+			cacheLookups++;
+			int entry = findCacheEntry(startAge, endAge, rate);
+			if (entry >= 0) {
+				cacheHits++;
+				moveToNewest(entry);
+				ResubMathUtil.copy(cacheMatrices[entry], outMatrix);
+				return;
+			}
+		}
+		
+		
 		// For each epoch, ranked in decreasing order of age. rank=-1 is the present day full alphabet
 		// We will start from the oldest epoch and work our way down
 		// This means that the probability matrices are chained together in the forward time direction
@@ -163,42 +225,53 @@ public class MultiTransitionResub extends SubstitutionModel.Base implements Logg
 			double h1 = Math.max(endAge, epochEndAge);
 			
 			
-			// Get the substitution model and transformer matrix for this epoch
-			GeneralSubstitutionModel substModelEpoch = epochRank == -1 ? this.substModel : alphabetEpochs.getEpochSubstitionModelByRank(epochRank);
+			// Does this branch have a second epoch?
+			boolean thereIsAnotherEpoch = epochRank >= 0 && endAge <= epochEndAge + 1e-16;
+			
 			
-			//System.out.println("reduced rate matrix:");
-			//substModelEpoch.doUpdate();
+			// The transport matrix into the next epoch is already folded into the eigen decomposition of this epoch
+			if (thereIsAnotherEpoch && alphabetEpochs.getEpochByRank(epochRank).getTransportedTransitionProbabilities(h0, h1, rate, tmpMatrixEpoch)) {
+				ResubMathUtil.tidyAndValidateProbs(tmpMatrixEpoch, "transported matrix at rank " + epochRank, this.nrOfStates, -1);
+			}
 			
-			// Get the probability matrix for this epoch
-			substModelEpoch.getTransitionProbabilities(node, h0, h1, rate, tmpMatrixEpoch);
-			ResubMathUtil.tidyAndValidateProbs(tmpMatrixEpoch, "reduced matrix at rank " + epochRank, this.nrOfStates, indexBeingDropped);
+			// Complex eigen decompositions, and epochs that the branch does not leave, use the transition probabilities directly
+			else {
+				
+				// Get the substitution model and transformer matrix for this epoch
+				GeneralSubstitutionModel substModelEpoch = epochRank == -1 ? this.substModel : alphabetEpochs.getEpochSubstitionModelByRank(epochRank);
 			
+				//System.out.println("reduced rate matrix:");
+				//substModelEpoch.doUpdate();
 			
-			//ResubMathUtil.printProbabilityMatrix(substModelEpoch.getRateMatrix());
+				// Get the probability matrix for this epoch
+				substModelEpoch.getTransitionProbabilities(node, h0, h1, rate, tmpMatrixEpoch);
+				ResubMathUtil.tidyAndValidateProbs(tmpMatrixEpoch, "reduced matrix at rank " + epochRank, this.nrOfStates, indexBeingDropped);
 			
 			
-			//System.out.println("reduced matrix:");
-			//ResubMathUtil.printProbabilityMatrix(tmpMatrixEpoch, this.nrOfStates);
+				//ResubMathUtil.printProbabilityMatrix(substModelEpoch.getRateMatrix());
 			
-			// Does this branch have a second epoch?
-			boolean thereIsAnotherEpoch = epochRank >= 0 && endAge <= epochEndAge + 1e-16;
-			if (thereIsAnotherEpoch) {
+			
+				//System.out.println("reduced matrix:");
+				//ResubMathUtil.printProbabilityMatrix(tmpMatrixEpoch, this.nrOfStates);
+			
+				if (thereIsAnotherEpoch) {
 				
-				// Multiply by transporter matrix
-				double[] transportMatrix = alphabetEpochs.getEpochTransportMatrixByRank(epochRank);
+					// Multiply by transporter matrix
+					double[] transportMatrix = alphabetEpochs.getEpochTransportMatrixByRank(epochRank);
 				
-//				ResubMathUtil.tidyAndValidateProbs(transportMatrix, "transport matrix at rank " + epochRank, this.nrOfStates, -1);
-//				System.out.println("transportMatrix:");
-//				ResubMathUtil.printProbabilityMatrix(transportMatrix, this.nrOfStates);
-//				
+//					ResubMathUtil.tidyAndValidateProbs(transportMatrix, "transport matrix at rank " + epochRank, this.nrOfStates, -1);
+//					System.out.println("transportMatrix:");
+//					ResubMathUtil.printProbabilityMatrix(transportMatrix, this.nrOfStates);
+//					
 				
-				ResubMathUtil.multiplyMatrices(tmpMatrixEpoch, transportMatrix, tmpMatrixTransported, this.nrOfStates);
-				ResubMathUtil.tidyAndValidateProbs(tmpMatrixTransported, "transported matrix at rank " + epochRank, this.nrOfStates, -1);
-				ResubMathUtil.copy(tmpMatrixTransported, tmpMatrixEpoch);
+					ResubMathUtil.multiplyMatrices(tmpMatrixEpoch, transportMatrix, tmpMatrixTransported, this.nrOfStates);
+					ResubMathUtil.tidyAndValidateProbs(tmpMatrixTransported, "transported matrix at rank " + epochRank, this.nrOfStates, -1);
+					ResubMathUtil.copy(tmpMatrixTransported, tmpMatrixEpoch);
 				
-//				System.out.println("tmpMatrixEpoch:");
-//				ResubMathUtil.printProbabilityMatrix(tmpMatrixEpoch, this.nrOfStates);
-//			
+//					System.out.println("tmpMatrixEpoch:");
+//					ResubMathUtil.printProbabilityMatrix(tmpMatrixEpoch, this.nrOfStates);
+//				
+				}
 			}
 			
 			
@@ -225,6 +298,11 @@ public class MultiTransitionResub extends SubstitutionModel.Base implements Logg
 		}
 		
 		
+		if (cacheSize > 0) {
+			addCacheEntry(startAge, endAge, rate, outMatrix);
+		}
+		
+		
 				
 		
 	}
@@ -234,12 +312,18 @@ public class MultiTransitionResub extends SubstitutionModel.Base implements Logg
 
 	@Override
 	public void init(PrintStream out) {
-		
+		if (cacheSize > 0) {
+			out.print(this.getID() + ".cacheHitRate\t");
+		}
 	}
 
 	@Override
 	public void log(long sample, PrintStream out) {
 		
+		// Proportion of chained matrices that were found in the cache since the start
+		if (cacheSize > 0) {
+			out.print((cacheLookups == 0 ? 0 : (double) cacheHits / cacheLookups) + "\t");
+		}
 	}
 
 	@Override
@@ -259,6 +343,193 @@ public class MultiTransitionResub extends SubstitutionModel.Base implements Logg
 		return null;
 	}
 	
+	
+	@Override
+	public int getEpochEigenCount() {
+		
+		// Index 0 is the present day full alphabet, and index rank+1 is the epoch at this rank
+		return this.alphabetEpochs.getNOldEpochs() + 1;
+	}
+	
+	
+	@Override
+	public EigenDecomposition getEpochEigenDecomposition(int index) {
+		if (index == 0) {
+			return this.substModel.getEigenDecomposition(null);
+		}
+		return alphabetEpochs.getEpochSubstitionModelByRank(index-1).getEigenDecomposition(null);
+	}
+	
+	
+	@Override
+	public int getEpochEigenIndex(double startAge, double endAge) {
+		
+		update();
+		
+		// Same as the full-alphabet case in getTransitionProbabilities
+		if (nOldActiveEpochs == 0 || startAge <= this.epochTransitionAges[0]) {
+			return this.substModel.canReturnComplexDiagonalization() ? -1 : 0;
+		}
+		
+		// Find the oldest epoch that this branch crosses, and check that the branch does not continue into a younger epoch
+		for (int epochRank = nOldActiveEpochs-1; epochRank >= 0; epochRank--) {
+			double epochEndAge = this.epochTransitionAges[epochRank];
+			if (startAge >= epochEndAge) {
+				boolean thereIsAnotherEpoch = endAge <= epochEndAge + 1e-16;
+				return thereIsAnotherEpoch ? -1 : epochRank + 1;
+			}
+		}
+		
+		return -1;
+	}
+	
+	
+	@Override
+	public int getEpochEigenIndex(double age) {
+		
+		update();
+		if (nOldActiveEpochs == 0 || age <= this.epochTransitionAges[0]) {
+			return 0;
+		}
+		for (int epochRank = nOldActiveEpochs-1; epochRank >= 0; epochRank--) {
+			if (age > this.epochTransitionAges[epochRank]) {
+				return epochRank + 1;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * The states that are not blank in the alphabet at this age. A node at exactly the age of a transition
+	 * gets the larger alphabet of the younger epoch, which is always safe.
+	 * @param age
+	 * @return state indices in increasing order, or null if the full alphabet applies
+	 */
+	public int[] getActiveStates(double age) {
+		
+		update();
+		if (nOldActiveEpochs == 0 || age <= this.epochTransitionAges[0] + 1e-16) {
+			return null;
+		}
+		
+		long version = alphabetEpochs.getVersion();
+		if (version != activeStatesVersion) {
+			
+			// New arrays, as likelihood cores may still hold on to the previous ones for their stored partials
+			activeStatesByRank = new int[alphabetEpochs.getNOldEpochs()][];
+			for (int rank = 0; rank < nOldActiveEpochs; rank++) {
+				AlphabetEpoch epoch = alphabetEpochs.getEpochByRank(rank);
+				int[] active = new int[this.nrOfStates];
+				int count = 0;
+				for (int i = 0; i < this.nrOfStates; i++) {
+					if (!epoch.isBlank(i)) active[count++] = i;
+				}
+				activeStatesByRank[rank] = Arrays.copyOf(active, count);
+			}
+			activeStatesVersion = version;
+		}
+		
+		for (int rank = nOldActiveEpochs-1; rank >= 0; rank--) {
+			if (age > this.epochTransitionAges[rank] + 1e-16) {
+				return activeStatesByRank[rank];
+			}
+		}
+		return null;
+	}
+	
+	
+	private void clearCache() {
+		Arrays.fill(cacheBuckets, -1);
+		cacheCount = 0;
+		cacheNewest = -1;
+		cacheOldest = -1;
+	}
+	
+	
+	/**
+	 * Ages and rates are compared exactly
+	 */
+	private static int getCacheHash(double startAge, double endAge, double rate) {
+		long bits = Double.doubleToLongBits(startAge);
+		bits = 31 * bits + Double.doubleToLongBits(endAge);
+		bits = 31 * bits + Double.doubleToLongBits(rate);
+		int hash = (int) (bits ^ (bits >>> 32));
+		return hash ^ (hash >>> 16);
+	}
+	
+	
+	private int findCacheEntry(double startAge, double endAge, double rate) {
+		int entry = cacheBuckets[getCacheHash(startAge, endAge, rate) & (cacheBuckets.length - 1)];
+		while (entry >= 0) {
+			if (Double.compare(cacheStartAges[entry], startAge) == 0 && Double.compare(cacheEndAges[entry], endAge) == 0 
+					&& Double.compare(cacheRates[entry], rate) == 0) {
+				return entry;
+			}
+			entry = cacheNextInBucket[entry];
+		}
+		return -1;
+	}
+	
+	
+	/**
+	 * Store a copy of the matrix, in a new entry while the cache fills up and in place of the least recently used one after that
+	 */
+	private void addCacheEntry(double startAge, double endAge, double rate, double[] matrix) {
+		int entry;
+		if (cacheCount < cacheSize) {
+			entry = cacheCount++;
+		} else {
+			entry = cacheOldest;
+			unlink(entry);
+			int bucket = getCacheHash(cacheStartAges[entry], cacheEndAges[entry], cacheRates[entry]) & (cacheBuckets.length - 1);
+			if (cacheBuckets[bucket] == entry) {
+				cacheBuckets[bucket] = cacheNextInBucket[entry];
+			} else {
+				int previous = cacheBuckets[bucket];
+				while (cacheNextInBucket[previous] != entry) {
+					previous = cacheNextInBucket[previous];
+				}
+				cacheNextInBucket[previous] = cacheNextInBucket[entry];
+			}
+		}
+		if (cacheMatrices[entry] == null || cacheMatrices[entry].length != matrix.length) {
+			cacheMatrices[entry] = new double[matrix.length];
+		}
+		ResubMathUtil.copy(matrix, cacheMatrices[entry]);
+		cacheStartAges[entry] = startAge;
+		cacheEndAges[entry] = endAge;
+		cacheRates[entry] = rate;
+		int bucket = getCacheHash(startAge, endAge, rate) & (cacheBuckets.length - 1);
+		cacheNextInBucket[entry] = cacheBuckets[bucket];
+		cacheBuckets[bucket] = entry;
+		linkAsNewest(entry);
+	}
+	
+	
+	private void moveToNewest(int entry) {
+		if (entry != cacheNewest) {
+			unlink(entry);
+			linkAsNewest(entry);
+		}
+	}
+	
+	
+	private void unlink(int entry) {
+		int older = cacheOlder[entry];
+		int newer = cacheNewer[entry];
+		if (older >= 0) cacheNewer[older] = newer; else cacheOldest = newer;
+		if (newer >= 0) cacheOlder[newer] = older; else cacheNewest = older;
+	}
+	
+	
+	private void linkAsNewest(int entry) {
+		cacheOlder[entry] = cacheNewest;
+		cacheNewer[entry] = -1;
+		if (cacheNewest >= 0) cacheNewer[cacheNewest] = entry; else cacheOldest = entry;
+		cacheNewest = entry;
+	}
+	
+	
 	@Override
     public boolean canReturnComplexDiagonalization() {
 		
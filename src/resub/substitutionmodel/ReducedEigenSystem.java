@@ -0,0 +1,119 @@
+package resub.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.DefaultEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.EigenSystem;
+
+
+/**
+ * Eigen system for rate matrices in which some states are blank, ie. their rows and columns are all zero,
+ * as in the epochs of a resub model where states have been merged or removed.
+ * Only the k x k sub-matrix of the other states is decomposed, and the result is embedded back into the full layout,
+ * with eigenvalue 0 and unit eigenvectors for the blank states. Exponentiating this decomposition gives the same
+ * transition probabilities as the full one, but the decomposition costs (n/k)^3 less and avoids the degenerate eigenvalues of the blank states.
+ */
+public class ReducedEigenSystem implements EigenSystem {
+
+
+	private final int stateCount;
+
+	// eigen systems of the sub-matrices and the sub-matrices themselves, by their dimension
+	private final EigenSystem [] subSystems;
+	private final double [][][] subMatrices;
+	private final boolean [] active;
+	private final int [] activeStates;
+
+
+	public ReducedEigenSystem(int stateCount) {
+		this.stateCount = stateCount;
+		this.subSystems = new EigenSystem[stateCount + 1];
+		this.subMatrices = new double[stateCount + 1][][];
+		this.active = new boolean[stateCount];
+		this.activeStates = new int[stateCount];
+	}
+
+
+	@Override
+	public EigenDecomposition decomposeMatrix(double[][] matrix) {
+
+		// A state is blank if it has no rates to or from any other state
+		int k = 0;
+		for (int i = 0; i < stateCount; i ++) {
+			active[i] = false;
+			for (int j = 0; j < stateCount && !active[i]; j ++) {
+				active[i] = i != j && (matrix[i][j] != 0 || matrix[j][i] != 0);
+			}
+			if (active[i]) k ++;
+		}
+		if (k == stateCount) {
+			return getSubSystem(stateCount).decomposeMatrix(matrix);
+		}
+
+		for (int i = 0, a = 0; i < stateCount; i ++) {
+			if (active[i]) activeStates[a++] = i;
+		}
+
+		// the decomposition is new every time, because callers cache results by its identity
+		double [] evec = new double[stateCount * stateCount];
+		double [] ievc = new double[stateCount * stateCount];
+		double [] subEval = null;
+		if (k > 1) {
+			if (subMatrices[k] == null) {
+				subMatrices[k] = new double[k][k];
+			}
+			double [][] subMatrix = subMatrices[k];
+			for (int a = 0; a < k; a ++) {
+				for (int b = 0; b < k; b ++) {
+					subMatrix[a][b] = matrix[activeStates[a]][activeStates[b]];
+				}
+			}
+			EigenDecomposition sub = getSubSystem(k).decomposeMatrix(subMatrix);
+			double [] subEvec = sub.getEigenVectors();
+			double [] subIevc = sub.getInverseEigenVectors();
+			subEval = sub.getEigenValues();
+			for (int a = 0; a < k; a ++) {
+				for (int b = 0; b < k; b ++) {
+					evec[activeStates[a] * stateCount + activeStates[b]] = subEvec[a * k + b];
+					ievc[activeStates[a] * stateCount + activeStates[b]] = subIevc[a * k + b];
+				}
+			}
+		}
+
+		// Complex decompositions have the imaginary parts after the real parts of the eigenvalues
+		boolean complex = subEval != null && subEval.length == 2 * k;
+		double [] eval = new double[complex ? 2 * stateCount : stateCount];
+		for (int i = 0; i < stateCount; i ++) {
+			if (!active[i] || k < 2) {
+				evec[i * stateCount + i] = 1;
+				ievc[i * stateCount + i] = 1;
+			}
+		}
+		if (subEval != null) {
+			for (int a = 0; a < k; a ++) {
+				eval[activeStates[a]] = subEval[a];
+				if (complex) {
+					eval[stateCount + activeStates[a]] = subEval[k + a];
+				}
+			}
+		}
+
+		return new EigenDecomposition(evec, ievc, eval);
+	}
+
+
+	private EigenSystem getSubSystem(int dimension) {
+		if (subSystems[dimension] == null) {
+			subSystems[dimension] = createSubSystem(dimension);
+		}
+		return subSystems[dimension];
+	}
+
+
+	/**
+	 * @return the eigen system that decomposes sub-matrices of this dimension
+	 */
+	protected EigenSystem createSubSystem(int dimension) {
+		return new DefaultEigenSystem(dimension);
+	}
+
+}
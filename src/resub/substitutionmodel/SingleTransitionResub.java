@@ -26,7 +26,7 @@ import resub.math.ResubMathUtil;
 @Citation(value = "Douglas, J., Bouckaert, R., Carter Jr, C. W., & Wills, P. R. (2025). Reduced amino acid substitution matrices find traces of ancient coding alphabets in modern day proteins. bioRxiv, 2025-02.",
 year = 2025, firstAuthorSurname = "Douglas")
 
-public class SingleTransitionResub extends SubstitutionModel.Base implements Loggable {
+public class SingleTransitionResub extends SubstitutionModel.Base implements Loggable, EpochEigenSubstitutionModel {
 	
 	//fix this
 	final private static boolean EXPAND_FREQS_RENORM = true;
@@ -126,9 +126,9 @@ public class SingleTransitionResub extends SubstitutionModel.Base implements Log
         freqsTopInput = new Frequencies();
         freqsTopInput.initByName("frequencies", freqsTopRealParameterInput);
         
-        // Init small subst model
+        // Init small subst model, which only decomposes the rates between the states that are not blank
         substModelSmall = new GeneralSubstitutionModel();
-        substModelSmall.initByName("rates", ratesTopInput, "frequencies", freqsTopInput);
+        substModelSmall.initByName("rates", ratesTopInput, "frequencies", freqsTopInput, "eigenSystem", ReducedEigenSystem.class.getName());
         
 
         
@@ -562,42 +562,13 @@ public class SingleTransitionResub extends SubstitutionModel.Base implements Log
 	
 
 	private void setRate(double[] rates, int to, int from, double value) {
-		
-		if (from == to) return;
-		
-		
-		int k = 0;
-		for (int i = 0; i < this.nrOfStates; i ++) {
-			for (int j = 0; j < this.nrOfStates; j ++) {
-				if (i == j) continue;
-				if (i == to && j == from) {
-					rates[k] = value;
-					return;
-				}
-				k ++;
-			}
-		}
+		ResubMathUtil.setRate(rates, to, from, value, this.nrOfStates);
 	}
 	
 	
 	
 	private double getRate(double[] rates, int to, int from) {
-		
-		if (from == to) return -1;
-		
-		
-		int k = 0;
-		for (int i = 0; i < this.nrOfStates; i ++) {
-			for (int j = 0; j < this.nrOfStates; j ++) {
-				if (i == j) continue;
-				if (i == to && j == from) {
-					return rates[k];
-				}
-				k ++;
-			}
-		}
-		
-		return -2;
+		return ResubMathUtil.getRate(rates, to, from, this.nrOfStates);
 	}
 	
 	
@@ -792,6 +763,46 @@ public class SingleTransitionResub extends SubstitutionModel.Base implements Log
 	public EigenDecomposition getEigenDecomposition(Node arg0) {
 		return null;
 	}
+	
+	
+	@Override
+	public int getEpochEigenCount() {
+		
+		// 0: the full alphabet, 1: the reduced alphabet above the transition
+		return 2;
+	}
+	
+	
+	@Override
+	public EigenDecomposition getEpochEigenDecomposition(int index) {
+		if (index == 0) {
+			return this.substModel.getEigenDecomposition(null);
+		}
+		update();
+		return this.substModelSmall.getEigenDecomposition(null);
+	}
+	
+	
+	@Override
+	public int getEpochEigenIndex(double startHeight, double endHeight) {
+		
+		// The same cases as in getTransitionProbabilities
+		double transitionHeight = this.transitionHeightInput.get().getValue();
+		if (!useResubInput.get().getValue() || startHeight < transitionHeight) {
+			return this.substModel.canReturnComplexDiagonalization() ? -1 : 0;
+		}
+		if (endHeight > transitionHeight) {
+			return 1;
+		}
+		return -1;
+	}
+	
+	
+	@Override
+	public int getEpochEigenIndex(double height) {
+		double transitionHeight = this.transitionHeightInput.get().getValue();
+		return useResubInput.get().getValue() && height > transitionHeight ? 1 : 0;
+	}
 
 	@Override
 	public boolean canHandleDataType(DataType dataType) {
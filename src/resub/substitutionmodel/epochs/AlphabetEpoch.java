@@ -6,11 +6,13 @@ import java.util.Collections;
 import java.util.List;
 
 import beast.base.evolution.substitutionmodel.ComplexSubstitutionModel;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import resub.math.ResubMathUtil;
+import resub.substitutionmodel.ReducedEigenSystem;
 
 
 /**
@@ -29,8 +31,12 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 	IntegerParameter indicator;
 	
 	int rank;
-	List<String> statesAtThisEpoch;
-	List<String> statesAtPrevEpoch;
+	
+	// The alphabet of this epoch and of the one before it, as one bitmask of original states per slot (0 for a blank slot).
+	// The names of the states are only built when they are asked for
+	int[] statesAtThisEpoch;
+	int[] statesAtPrevEpoch;
+	private List<String> stateNames;
 	int nStatesAtEpoch, nStatesAtPrevEpoch;
 	
 	// Subst model terms
@@ -38,6 +44,12 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 	private double[] relativeRates;
 	double[] transportMatrix;
 	
+	// Inverse eigenvectors multiplied by the transport matrix, and the decomposition they were calculated from
+	double[] transportedInverseEigenVectors;
+	double[] transportedIexp;
+	EigenDecomposition transportedEigenDecomposition;
+	boolean complexEigen;
+	
 	
 	// Inputs to the subst model
 	RealParameter substModelFrequencies;
@@ -54,6 +66,7 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 		this.rank = -1;
 		this.frequencies = null;
 		this.nStatesFullAlphabet = nStatesFullAlphabet;
+		this.complexEigen = complexEigen;
 		
 		initSubstModel(complexEigen);
 		
@@ -89,11 +102,19 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
         	substModel = new GeneralSubstitutionModel();
         }
         
-        substModel.initByName("rates", substModelRates, "frequencies", freqsTopInput);
+        if (complexEigen) {
+        	substModel.initByName("rates", substModelRates, "frequencies", freqsTopInput);
+        } else {
+        	// only decompose the rates between the states in the alphabet of this epoch
+        	substModel.initByName("rates", substModelRates, "frequencies", freqsTopInput, "eigenSystem", ReducedEigenSystem.class.getName());
+        }
         
         
         // Prepare the transformer matrix
         this.transportMatrix = new double[(this.nStatesFullAlphabet+1)*(this.nStatesFullAlphabet+1)];
+        this.transportedInverseEigenVectors = new double[this.nStatesFullAlphabet*this.nStatesFullAlphabet];
+        this.transportedIexp = new double[this.nStatesFullAlphabet*this.nStatesFullAlphabet];
+        this.transportedEigenDecomposition = null;
         
 
 		
@@ -101,23 +122,41 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 
 
 	// Full list of epochs is required to know this
-	protected void setStatesAtEpoch(List<String> statesAtEpoch, List<String> statesAtPrevEpoch) {
+	protected void setStatesAtEpoch(int[] statesAtEpoch, int[] statesAtPrevEpoch) {
 		this.statesAtThisEpoch = statesAtEpoch;
 		this.statesAtPrevEpoch = statesAtPrevEpoch;
+		this.stateNames = null;
 		
 		this.nStatesAtEpoch = 0;
-		for (int i = 0; i < statesAtThisEpoch.size(); i ++) {
-			if (!statesAtThisEpoch.get(i).equals(AlphabetEpoch.BLANK_STATE)) nStatesAtEpoch++;
+		for (int i = 0; i < statesAtThisEpoch.length; i ++) {
+			if (statesAtThisEpoch[i] != 0) nStatesAtEpoch++;
 		}
 		
 		this.nStatesAtPrevEpoch = 0;
-		for (int i = 0; i < statesAtPrevEpoch.size(); i ++) {
-			if (!statesAtPrevEpoch.get(i).equals(AlphabetEpoch.BLANK_STATE)) nStatesAtPrevEpoch++;
+		for (int i = 0; i < statesAtPrevEpoch.length; i ++) {
+			if (statesAtPrevEpoch[i] != 0) nStatesAtPrevEpoch++;
 		}
 		
 		
 	}
 	
+	
+	/**
+	 * @param mask bitmask of original states
+	 * @return the names of the states separated by '/', or BLANK_STATE if there are none
+	 */
+	public static String getStateName(int mask) {
+		if (mask == 0) return BLANK_STATE;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < AlphabetEpochs.states.length(); i ++) {
+			if ((mask & (1 << i)) != 0) {
+				if (sb.length() > 0) sb.append("/");
+				sb.append(AlphabetEpochs.states.charAt(i));
+			}
+		}
+		return sb.toString();
+	}
+	
 	public int getNStatesAtEpoch() {
 		return nStatesAtEpoch;
 	}
@@ -171,13 +210,13 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 	
 	public String getAlphaState() {
 		int alpha = this.getAlpha();
-		return this.statesAtPrevEpoch.get(alpha);
+		return getStateName(this.statesAtPrevEpoch[alpha]);
 	}
 	
 	
 	public String getAlphaStateSorted() {
 		int alpha = this.getAlpha();
-		String s = this.statesAtPrevEpoch.get(alpha);
+		String s = getStateName(this.statesAtPrevEpoch[alpha]);
 		String[] parts = s.split("/");
 		Arrays.sort(parts);
 		return String.join("/", parts);
@@ -186,12 +225,12 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 	
 	public String getBetaState() {
 		int beta = this.getBeta();
-		return this.statesAtPrevEpoch.get(beta);
+		return getStateName(this.statesAtPrevEpoch[beta]);
 	}
 	
 	public String getBetaStateSorted() {
 		int beta = this.getBeta();
-		String s = this.statesAtPrevEpoch.get(beta);
+		String s = getStateName(this.statesAtPrevEpoch[beta]);
 		String[] parts = s.split("/");
 		Arrays.sort(parts);
 		return String.join("/", parts);
@@ -306,21 +345,23 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 	
 	public String getFrequencyString() {
 		String str = "epoch " + this.rank + "\n";
+		List<String> names = getStateNames();
 		for (int i = 0; i < nStatesFullAlphabet; i++) {
-			if (statesAtThisEpoch.get(i).equals(BLANK_STATE)) continue;
-			str += this.statesAtThisEpoch.get(i) + "=" + this.frequencies[i] + "\n";
+			if (isBlank(i)) continue;
+			str += names.get(i) + "=" + this.frequencies[i] + "\n";
 		}
 		return str;
 	}
 	
 	public String getRateString() {
 		String str = "epoch " + this.rank + "\n";
+		List<String> names = getStateNames();
 		int index = 0;
 		for (int i = 0; i < nStatesFullAlphabet; i++) {
 			for (int j = 0; j < nStatesFullAlphabet; j++) {
 				if (i == j) continue;
-				if (j > i && !statesAtThisEpoch.get(i).equals(BLANK_STATE) && !statesAtThisEpoch.get(j).equals(BLANK_STATE)) {
-					str += this.statesAtThisEpoch.get(i) + "<=>" + this.statesAtThisEpoch.get(j) + ":" + this.relativeRates[index] + "\n";
+				if (j > i && !isBlank(i) && !isBlank(j)) {
+					str += names.get(i) + "<=>" + names.get(j) + ":" + this.relativeRates[index] + "\n";
 				}
 				index++;
 			}
@@ -329,9 +370,31 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 	}
 	
 	public List<String> getStateNames(){
+		if (this.stateNames == null) {
+			this.stateNames = new ArrayList<>(statesAtThisEpoch.length);
+			for (int mask : statesAtThisEpoch) {
+				this.stateNames.add(getStateName(mask));
+			}
+		}
+		return this.stateNames;
+	}
+	
+	
+	/**
+	 * @return the alphabet of this epoch, as a bitmask of original states per slot (0 for a blank slot)
+	 */
+	public int[] getStateMasks() {
 		return this.statesAtThisEpoch;
 	}
 	
+	
+	/**
+	 * @return whether this slot has no state in the alphabet of this epoch
+	 */
+	public boolean isBlank(int slot) {
+		return this.statesAtThisEpoch[slot] == 0;
+	}
+	
 
 	
 	public double[] getFrequencies() {
@@ -422,6 +485,7 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 				
 			}
 		}
+		this.transportedEigenDecomposition = null;
 		
 		
 //		System.out.print("f after: ");
@@ -442,6 +506,58 @@ public class AlphabetEpoch implements Comparable<AlphabetEpoch> {
 	public double[] getTransportMatrix() {
 		return this.transportMatrix;
 	}
+	
+	
+	/**
+	 * Transition probabilities over this epoch followed by the transport matrix into the next (younger) epoch, ie. P(t) * T,
+	 * where the row and column of beta in P(t) are identity as in ResubMathUtil.tidyAndValidateProbs.
+	 * T without its beta row is folded into the inverse eigenvectors once per model update, so that E * exp(Dt) * (E^-1 * T)
+	 * costs the same as P(t) alone. Each entry is then a single entry of P(t) scaled by a probability, so taking the absolute
+	 * value after the transport is the same as before it. The beta row is set to the beta row of T afterwards
+	 * @return false if the eigen decomposition is complex, in which case the matrix is not calculated
+	 */
+	public boolean getTransportedTransitionProbabilities(double startAge, double endAge, double rate, double[] matrix) {
+		if (this.complexEigen || this.getSubstitionModel() == null) return false;
+		
+		int n = this.nStatesFullAlphabet;
+		EigenDecomposition eigenDecomposition = this.substModel.getEigenDecomposition(null);
+		int betaIndex = this.getBeta();
+		if (eigenDecomposition != this.transportedEigenDecomposition) {
+			double[] Ievc = eigenDecomposition.getInverseEigenVectors();
+			for (int i = 0; i < n; i ++) {
+				for (int j = 0; j < n; j ++) {
+					double sum = 0;
+					for (int k = 0; k < n; k ++) {
+						if (k != betaIndex) {
+							sum += Ievc[i*n + k] * this.transportMatrix[ResubMathUtil.getIndex(k, j, n)];
+						}
+					}
+					this.transportedInverseEigenVectors[i*n + j] = sum;
+				}
+			}
+			this.transportedEigenDecomposition = eigenDecomposition;
+		}
+		
+		
+		// Same as GeneralSubstitutionModel.getTransitionProbabilities, but with the transported inverse eigenvectors
+		double distance = (startAge - endAge) * rate;
+		double[] Evec = eigenDecomposition.getEigenVectors();
+		double[] Eval = eigenDecomposition.getEigenValues();
+		for (int i = 0; i < n; i ++) {
+			double temp = Math.exp(distance * Eval[i]);
+			for (int j = 0; j < n; j ++) {
+				this.transportedIexp[i*n + j] = this.transportedInverseEigenVectors[i*n + j] * temp;
+			}
+		}
+		ResubMathUtil.multiplyMatrices(Evec, this.transportedIexp, matrix, n);
+		for (int u = 0; u < n*n; u ++) {
+			matrix[u] = Math.abs(matrix[u]);
+		}
+		for (int j = 0; j < n; j ++) {
+			matrix[betaIndex*n + j] = this.transportMatrix[ResubMathUtil.getIndex(betaIndex, j, n)];
+		}
+		return true;
+	}
 
 
 	
@@ -20,6 +20,7 @@ import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.inference.util.InputUtil;
 import beast.base.util.Randomizer;
+import resub.math.ResubMathUtil;
 
 
 @Description("Several epochs amino acid alphabets")
@@ -49,7 +50,17 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 	//final public Input<DataType> datatypeInput = new Input<>("datatype", "type of data", new Aminoacid() );
 	
 	
-	boolean needsUpdate;
+	boolean needsUpdate, storedNeedsUpdate;
+	
+	// Versions are never handed out twice, so that a version that is restored cannot collide with one built in a rejected proposal
+	long version, storedVersion, lastVersion;
+	
+	// The index, alpha, beta and indicator of the epoch that each rank was last built from, and the number of ranks 
+	// whose build is still valid. The substitution model of a rank depends on the present model and on the transitions at
+	// that rank and all younger ranks, so only the ranks from the youngest changed one onwards are rebuilt
+	int[][] rankSignatures;
+	int validRanks;
+	boolean presentChanged, presentChangedSinceStore, ranksChangedSinceStore;
 	int nepochs;
 	int nOldEpochs;
 	final DataType datatype = new Aminoacid();
@@ -186,6 +197,8 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 		
 		
 		// Update the epochs
+		this.rankSignatures = new int[this.nOldEpochs][4];
+		this.validRanks = 0;
 		this.needsUpdate = true;
 		update();
 		
@@ -197,42 +210,77 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 		
 		
 		if (!needsUpdate) return true; 
+		version = ++lastVersion;
 		
 		
 		// Sort epochs by age, such that the inactive epochs are at the end
 		Collections.sort(epochs);
+		for(int i = 0; i < this.epochs.size(); i ++) {
+			if (this.epochs.get(i).getAlpha() == this.epochs.get(i).getBeta()) {
+				ranksChangedSinceStore = true;
+				return false;
+			}
+		}
+		
 		
-		// Present day alphabet
-		List<String> stateListLarge = new ArrayList<>(stateList);
-		double[] ratesCurrentEpoch = getSubstRatesPresent();
-		double[] freqsCurrentEpoch = getFrequenciesPresent();
+		// Find the youngest rank that has to be rebuilt
+		int firstRank = presentChanged ? 0 : validRanks;
+		for(int i = 0; i < firstRank; i ++) {
+			if (!hasSignature(i, this.epochs.get(i))) {
+				firstRank = i;
+				break;
+			}
+		}
+		if (presentChanged) {
+			presentChangedSinceStore = true;
+			presentChanged = false;
+		}
+		if (firstRank < this.epochs.size()) {
+			ranksChangedSinceStore = true;
+		}
+		
+		
+		// Start from the present day alphabet, or from the alphabet at the end of the last valid rank
+		int[] stateListLarge;
+		double[] ratesCurrentEpoch;
+		double[] freqsCurrentEpoch;
+		if (firstRank == 0) {
+			stateListLarge = new int[stateList.size()];
+			for (int i = 0; i < stateListLarge.length; i ++) {
+				stateListLarge[i] = 1 << i;
+			}
+			ratesCurrentEpoch = getSubstRatesPresent();
+			freqsCurrentEpoch = getFrequenciesPresent();
+		} else {
+			AlphabetEpoch prevEpoch = this.epochs.get(firstRank-1);
+			stateListLarge = prevEpoch.getStateMasks();
+			ratesCurrentEpoch = prevEpoch.getRelativeRates();
+			freqsCurrentEpoch = prevEpoch.getFrequencies();
+		}
 		
 		
 		//Log.warning("____");
 		
 		
 		// Set the alphabet of each epoch
-		for(int i = 0; i < this.epochs.size(); i ++) {
+		for(int i = firstRank; i < this.epochs.size(); i ++) {
 			AlphabetEpoch epoch = this.epochs.get(i);
-			
-			
-			
-			if (epoch.getAlpha() == epoch.getBeta()) return false;
+			validRanks = i;
 			
 			//Log.warning("epoch " + i + " alpha=" + epoch.getAlpha() + "  beta=" + epoch.getBeta() + " I=" + epoch.getIndicator());
 			
 			
 			double pStay = 1;
-			List<String> stateListSmall = new ArrayList<>(stateListLarge);
+			int[] stateListSmall = stateListLarge.clone();
 			if (epoch.isActive()) {
 				
 				
-				String alphaState = stateListLarge.get(epoch.getAlpha());
-				String betaState = stateListLarge.get(epoch.getBeta());
+				int alphaState = stateListLarge[epoch.getAlpha()];
+				int betaState = stateListLarge[epoch.getBeta()];
 				
 				
 				// Invalid state
-				if (alphaState.equals(AlphabetEpoch.BLANK_STATE) || betaState.equals(AlphabetEpoch.BLANK_STATE)) {
+				if (alphaState == 0 || betaState == 0) {
 					//System.out.println("invalid because of " + alphaState + " " + betaState + " epoch rank " + i);
 					return false;
 				}
@@ -249,15 +297,14 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 						//Log.warning("refinement");
 						
 						// Update subst model
-						ratesCurrentEpoch = mergeRates(epoch.getAlpha(), epoch.getBeta(), ratesCurrentEpoch, freqsCurrentEpoch, stateListSmall.size());
+						ratesCurrentEpoch = mergeRates(epoch.getAlpha(), epoch.getBeta(), ratesCurrentEpoch, freqsCurrentEpoch, stateListSmall.length);
 						
 						// Update frequencies
 						freqsCurrentEpoch = mergeFrequencies(epoch.getAlpha(), epoch.getBeta(), freqsCurrentEpoch);
 						
-						// Merge the two state names
-						String mergedStateName = alphaState + "/" + betaState;
-						stateListSmall.set(stateListSmall.indexOf(alphaState), mergedStateName);
-						stateListSmall.set(stateListSmall.indexOf(betaState), AlphabetEpoch.BLANK_STATE);
+						// Merge the two states
+						stateListSmall[epoch.getAlpha()] = alphaState | betaState;
+						stateListSmall[epoch.getBeta()] = 0;
 						
 						
 					}
@@ -269,14 +316,14 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 						//Log.warning("expansion");
 						
 						// Update subst model
-						ratesCurrentEpoch = removeState(epoch.getBeta(), ratesCurrentEpoch, stateListSmall.size());
+						ratesCurrentEpoch = removeState(epoch.getBeta(), ratesCurrentEpoch, stateListSmall.length);
 						
 						// Update frequencies
 						freqsCurrentEpoch = removeFrequency(epoch.getBeta(), freqsCurrentEpoch);
 						//freqsCurrentEpoch = mergeFrequencies(epoch.getAlpha(), epoch.getBeta(), freqsCurrentEpoch);
 						
 						// Remove a state from the state list
-						stateListSmall.set(stateListSmall.indexOf(betaState), AlphabetEpoch.BLANK_STATE);
+						stateListSmall[epoch.getBeta()] = 0;
 							
 					}
 					
@@ -289,9 +336,11 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 			
 			
 			
+			// Neither alphabet is modified after this, so the epoch can keep them
 			epoch.setRank(i);
-			epoch.setStatesAtEpoch(new ArrayList<>(stateListSmall), new ArrayList<>(stateListLarge));
+			epoch.setStatesAtEpoch(stateListSmall, stateListLarge);
 			epoch.prepareSubstitionModel(ratesCurrentEpoch, freqsCurrentEpoch, pStay);
+			setSignature(i, epoch);
 			stateListLarge = stateListSmall;
 			
 			//System.out.println(epoch);
@@ -305,12 +354,28 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 		}
 		
 		
+		validRanks = this.epochs.size();
 		needsUpdate = false;
 		return true;
 		
 	}
 	
 	
+	private boolean hasSignature(int rank, AlphabetEpoch epoch) {
+		int[] signature = rankSignatures[rank];
+		return signature[0] == epoch.getIndex() && signature[1] == epoch.getAlpha() && signature[2] == epoch.getBeta() && signature[3] == epoch.getIndicator();
+	}
+	
+	
+	private void setSignature(int rank, AlphabetEpoch epoch) {
+		int[] signature = rankSignatures[rank];
+		signature[0] = epoch.getIndex();
+		signature[1] = epoch.getAlpha();
+		signature[2] = epoch.getBeta();
+		signature[3] = epoch.getIndicator();
+	}
+	
+	
 
 	/**
 	 * Return amino acid subst rates in the youngest epoch, if available
@@ -375,6 +440,16 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 	public int getNOldEpochs() {
 		return this.nOldEpochs;
 	}
+	
+	
+	/**
+	 * @return a number that changes whenever the epochs are rebuilt, so that anything derived from them can be invalidated.
+	 * It goes back to the stored number when a proposal is rejected without any rank having been rebuilt
+	 */
+	public long getVersion() {
+		this.update();
+		return this.version;
+	}
 
 	@Override
 	public void init(PrintStream out) {
@@ -405,6 +480,10 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 	
 	@Override
     public void store() {
+		presentChangedSinceStore = false;
+		ranksChangedSinceStore = false;
+		storedVersion = version;
+		storedNeedsUpdate = needsUpdate;
 		for(int i = 0; i < this.epochs.size(); i ++) {
 			this.getEpochSubstitionModelByRank(i).store();
 		}
@@ -415,7 +494,17 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 	
 	@Override
 	public void restore() {
-		this.needsUpdate = true;
+		
+		// The signatures describe what the epochs were last built from, so the ranks that changed in the 
+		// rejected proposal are rebuilt, and the younger ones are kept. If no rank changed, the epochs are
+		// still those of the stored version, and only the ages may have moved, which are restored with te
+		this.presentChanged = presentChangedSinceStore;
+		if (ranksChangedSinceStore) {
+			this.needsUpdate = true;
+		} else {
+			this.needsUpdate = storedNeedsUpdate;
+			this.version = storedVersion;
+		}
 		for(int i = 0; i < this.epochs.size(); i ++) {
 			this.getEpochSubstitionModelByRank(i).restore();
 		}
@@ -612,41 +701,16 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 	
 	
 	private void setRate(double[] rates, int to, int from, double value) {
-		
-		if (from == to) return;
-		
-		int k = 0;
-		for (int i = 0; i < this.getNStatesTotal(); i ++) {
-			for (int j = 0; j < this.getNStatesTotal(); j ++) {
-				if (i == j) continue;
-				if (i == to && j == from) {
-					rates[k] = value;
-					return;
-				}
-				k ++;
-			}
-		}
+		ResubMathUtil.setRate(rates, to, from, value, this.getNStatesTotal());
 	}
 	
 	
 	private double getRate(double[] rates, int to, int from) {
-		
-		if (from == to) return -1;
-		
-		int k = 0;
-		for (int i = 0; i < this.getNStatesTotal(); i ++) {
-			for (int j = 0; j < this.getNStatesTotal(); j ++) {
-				if (i == j) continue;
-				if (i == to && j == from) {
-					return rates[k];
-				}
-				k ++;
-			}
+		double rate = ResubMathUtil.getRate(rates, to, from, this.getNStatesTotal());
+		if (rate == -2) {
+			Log.warning("Dev error 26297 cannot find rate at i=" + to + " j=" + from);
 		}
-		
-		
-		Log.warning("Dev error 26297 cannot find rate at i=" + to + " j=" + from);
-		return -2;
+		return rate;
 	}
 	
 
@@ -664,8 +728,10 @@ public class AlphabetEpochs extends CalculationNode implements Loggable, Functio
 		if (InputUtil.isDirty(indicatorInput)) needsUpdate = true;
 		if (InputUtil.isDirty(teInput)) needsUpdate = true;
 		
-		if (InputUtil.isDirty(substModelInput)) needsUpdate = true;
-		if (InputUtil.isDirty(frequenciesInput)) needsUpdate = true;
+		if (InputUtil.isDirty(substModelInput) || InputUtil.isDirty(frequenciesInput)) {
+			needsUpdate = true;
+			presentChanged = true;
+		}
 		
 		return needsUpdate;
 		
@@ -0,0 +1,63 @@
+package resub.likelihood;
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Compares the speed of BranchIntervalIndex.query with a scan over all nodes, for epoch date moves on a large tree.
+ * Not a unit test: run the main method by hand
+ */
+public class BranchIntervalIndexBenchmark {
+
+	public static final int TAXA = 500;
+	public static final int WARMUP_MOVES = 20000;
+	public static final int MOVES = 100000;
+
+
+	public static void main(String[] args) {
+
+		Random random = new Random(1234);
+		int nodeCount = 2 * TAXA - 1;
+		double [] heights = new double[nodeCount];
+		int [] parents = new int[nodeCount];
+		double rootHeight = BranchIntervalIndexTest.randomTree(random, heights, parents);
+
+		BranchIntervalIndex index = new BranchIntervalIndex(nodeCount);
+		BranchIntervalIndexTest.setBranches(index, heights, parents);
+		index.rebuild();
+
+		int [] found = new int[nodeCount];
+		boolean [] dirty = new boolean[nodeCount];
+		double t = rootHeight / 2;
+		long indexTime = 0, scanTime = 0;
+		int timedMoves = 0;
+		for (int move = 0; move < WARMUP_MOVES + MOVES; move ++) {
+			double t2 = t;
+			t = Math.max(0, Math.min(rootHeight, t + random.nextGaussian() * rootHeight / 50));
+
+			// Let the JIT compile both searches before timing them
+			boolean timed = move >= WARMUP_MOVES;
+
+			long start = System.nanoTime();
+			Arrays.fill(dirty, false);
+			BranchIntervalIndexTest.scan(heights, parents, t, t2, dirty);
+			if (timed) scanTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Arrays.fill(dirty, false);
+			int count = index.query(Math.min(t, t2), Math.max(t, t2) + 1e-10, found);
+			for (int j = 0; j < count; j ++) {
+				dirty[found[j]] = true;
+			}
+			if (timed) {
+				indexTime += System.nanoTime() - start;
+				timedMoves ++;
+			}
+		}
+		System.out.println(TAXA + " taxa: scan " + (scanTime / timedMoves) + "ns, index " + (indexTime / timedMoves) + "ns per epoch date move");
+
+	}
+
+}
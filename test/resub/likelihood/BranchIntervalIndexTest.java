@@ -0,0 +1,139 @@
+package resub.likelihood;
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class BranchIntervalIndexTest {
+
+	public static final int TAXA = 500;
+	public static final int MOVES = 2000;
+
+
+
+	@Test
+    public void testEpochDateMoves() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testEpochDateMoves");
+
+		Random random = new Random(1234);
+		int nodeCount = 2 * TAXA - 1;
+		double [] heights = new double[nodeCount];
+		int [] parents = new int[nodeCount];
+		double rootHeight = randomTree(random, heights, parents);
+
+		BranchIntervalIndex index = new BranchIntervalIndex(nodeCount);
+		setBranches(index, heights, parents);
+		index.rebuild();
+
+
+		// Epoch date only moves, comparing the index with a scan over all nodes that walks up to the root from each crossing
+		int [] found = new int[nodeCount];
+		boolean [] expected = new boolean[nodeCount];
+		boolean [] actual = new boolean[nodeCount];
+		double t = rootHeight / 2;
+		for (int move = 0; move < MOVES; move ++) {
+			double t2 = t;
+			t = Math.max(0, Math.min(rootHeight, t + random.nextGaussian() * rootHeight / 50));
+			if (t == t2) continue;
+
+			Arrays.fill(expected, false);
+			scan(heights, parents, t, t2, expected);
+			Arrays.fill(actual, false);
+			int count = index.query(Math.min(t, t2), Math.max(t, t2) + 1e-10, found);
+			for (int j = 0; j < count; j ++) {
+				actual[found[j]] = true;
+			}
+			Assert.assertTrue(Arrays.equals(expected, actual));
+		}
+
+
+		// Small height changes followed by a refresh
+		for (int rep = 0; rep < 100; rep ++) {
+			int nodeNr = TAXA + random.nextInt(TAXA - 1);
+			double lower = 0, upper = rootHeight * 2;
+			for (int i = 0; i < nodeCount; i ++) {
+				if (parents[i] == nodeNr) lower = Math.max(lower, heights[i]);
+			}
+			if (parents[nodeNr] >= 0) upper = heights[parents[nodeNr]];
+			heights[nodeNr] = lower + random.nextDouble() * (upper - lower);
+
+			setBranches(index, heights, parents);
+			index.rebuild();
+
+			double t2 = random.nextDouble() * rootHeight;
+			t = random.nextDouble() * rootHeight;
+			Arrays.fill(expected, false);
+			scan(heights, parents, t, t2, expected);
+			Arrays.fill(actual, false);
+			int count = index.query(Math.min(t, t2), Math.max(t, t2) + 1e-10, found);
+			for (int j = 0; j < count; j ++) {
+				actual[found[j]] = true;
+			}
+			Assert.assertTrue(Arrays.equals(expected, actual));
+		}
+
+	}
+
+
+	/**
+	 * Coalescent-like random tree with the leaves numbered first. Returns the root height
+	 */
+	static double randomTree(Random random, double [] heights, int [] parents) {
+		int leafCount = (heights.length + 1) / 2;
+		int [] lineages = new int[leafCount];
+		for (int i = 0; i < leafCount; i ++) {
+			lineages[i] = i;
+			heights[i] = 0;
+		}
+		Arrays.fill(parents, -1);
+		int lineageCount = leafCount;
+		double height = 0;
+		for (int nodeNr = leafCount; nodeNr < heights.length; nodeNr ++) {
+			height += -Math.log(random.nextDouble()) / (lineageCount * (lineageCount - 1) / 2.0);
+			int a = random.nextInt(lineageCount);
+			int child1 = lineages[a];
+			lineages[a] = lineages[--lineageCount];
+			int b = random.nextInt(lineageCount);
+			int child2 = lineages[b];
+			lineages[b] = nodeNr;
+			parents[child1] = nodeNr;
+			parents[child2] = nodeNr;
+			heights[nodeNr] = height;
+		}
+		return height;
+	}
+
+
+	static void setBranches(BranchIntervalIndex index, double [] heights, int [] parents) {
+		for (int i = 0; i < heights.length; i ++) {
+			index.setBranch(i, heights[i], parents[i] < 0 ? Double.NEGATIVE_INFINITY : heights[parents[i]]);
+		}
+	}
+
+
+	/**
+	 * The original search in EpochBeagleTreeLikelihood.requiresRecalculation, used as a reference.
+	 * The root has no branch, so it is left out
+	 */
+	static void scan(double [] heights, int [] parents, double t, double t2, boolean [] dirty) {
+    	double maxTime = Math.max(t, t2) + 1e-10;
+		for (int i = 0; i < heights.length; i ++) {
+			int p = parents[i];
+			if (p >= 0 && ((heights[i] <= t && heights[p] >= t) || (heights[i] <= t2 && heights[p] >= t2))) {
+				int node = i;
+				while (parents[node] >= 0 && heights[node] <= maxTime) {
+					dirty[node] = true;
+					node = parents[node];
+				}
+			}
+		}
+	}
+
+
+}
@@ -0,0 +1,95 @@
+package resub.likelihood;
+
+
+import java.lang.management.ManagementFactory;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.RealParameter;
+import com.sun.management.ThreadMXBean;
+import resub.substitutionmodel.MultiTransitionResub;
+import resub.substitutionmodel.SVSGeneralSubstitutionModel;
+
+
+/**
+ * Measures the bytes allocated and the time per call of the chained epoch path of EpochBeagleTreeLikelihood, on a
+ * branch that crosses the epoch date and the alphabet epochs above it, and of the resub model on cache misses.
+ * The present day model is measured on its own as a baseline: whatever it allocates itself is not chaining overhead,
+ * so the chained and resub lines should allocate no more than the baseline times the number of present day calls.
+ * Not a unit test: run the main method by hand
+ */
+public class ChainedEpochAllocationBenchmark {
+
+	public static final int WARMUP_CALLS = 200000;
+	public static final int CALLS = 1000000;
+	public static final double START_TIME = 1.3;
+	public static final double END_TIME = 0.05;
+
+
+	public static void main(String[] args) {
+
+		Alignment data = EpochLikelihoodTestUtil.getAlignment(30, EpochLikelihoodTestUtil.SEED);
+		Tree tree = EpochLikelihoodTestUtil.getTree(data);
+		Frequencies frequencies = EpochLikelihoodTestUtil.getFrequencies();
+		SVSGeneralSubstitutionModel substModel = EpochLikelihoodTestUtil.getSubstModel(frequencies);
+		MultiTransitionResub resub = EpochLikelihoodTestUtil.getResubModel(EpochLikelihoodTestUtil.getAlphabetEpochs(substModel, frequencies), frequencies);
+
+		// The scratch matrices are set up before BEAGLE is loaded, so this runs without BEAGLE too
+		EpochBeagleTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(new EpochBeagleTreeLikelihood(), data, tree,
+				substModel, resub, new RealParameter("" + EpochLikelihoodTestUtil.EPOCH_DATE), 0.0);
+		likelihood.epochDatesArray[0] = EpochLikelihoodTestUtil.EPOCH_DATE;
+		int nrOfStates = frequencies.getFreqs().length;
+		double [] probabilities = new double[(nrOfStates + 1) * (nrOfStates + 1)];
+
+		// More distinct branch rates than the cache holds, so that each call misses
+		double [] missRates = new double[2 * resub.cacheSizeInput.get() + 1];
+		for (int i = 0; i < missRates.length; i ++) {
+			missRates[i] = 0.5 + (double) i / missRates.length;
+		}
+
+		measure("present day model", calls -> {
+			for (int i = 0; i < calls; i ++) {
+				substModel.getTransitionProbabilities(null, START_TIME, END_TIME, 1.0, probabilities);
+			}
+		});
+		measure("chained, resub cache hits", calls -> {
+			for (int i = 0; i < calls; i ++) {
+				likelihood.getTransitionProbabilities(1, 0, null, START_TIME, END_TIME, 1.0, probabilities);
+			}
+		});
+		measure("resub cache misses", calls -> {
+			for (int i = 0; i < calls; i ++) {
+				resub.getTransitionProbabilities(null, START_TIME, EpochLikelihoodTestUtil.EPOCH_DATE, missRates[i % missRates.length], probabilities);
+			}
+		});
+		measure("chained, resub cache misses", calls -> {
+			for (int i = 0; i < calls; i ++) {
+				likelihood.getTransitionProbabilities(1, 0, null, START_TIME, END_TIME, missRates[i % missRates.length], probabilities);
+			}
+		});
+
+	}
+
+
+	private interface Calls {
+		void run(int calls);
+	}
+
+
+	private static void measure(String name, Calls calls) {
+		ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		// Let the JIT compile the path, and escape analysis remove what it can, before measuring it
+		calls.run(WARMUP_CALLS);
+
+		long bytes = bean.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		calls.run(CALLS);
+		long time = System.nanoTime() - start;
+		bytes = bean.getThreadAllocatedBytes(thread) - bytes;
+		System.out.println(name + ": " + ((double) bytes / CALLS) + " bytes, " + (time / CALLS) + "ns per call");
+	}
+
+}
@@ -0,0 +1,91 @@
+package resub.likelihood;
+
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import beast.base.inference.State;
+
+
+public class EpochBeagleTreeLikelihoodTest {
+
+	public static final double PRECISION = 1e-6;
+	public static final double SINGLE_PRECISION = 1e-2;
+	public static final int SITES = 60;
+
+
+
+	@Test
+    public void testBeagleGivesSameLikelihoodAsJava() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testBeagleGivesSameLikelihoodAsJava");
+
+		compare(0.0);
+		compare(0.2);
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	@Test
+    public void testPrecisionCheck() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testPrecisionCheck");
+
+		// a tolerance of zero switches to double precision at the second calculation, which is a proposal that gets rejected
+		EpochLikelihoodTestUtil.setJavaOnly(false);
+		EpochTreeLikelihood beagle = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.2, "precision", EpochTreeLikelihood.Precision.singlePrecision,
+				"precisionCheckInterval", 2, "precisionTolerance", 0.0);
+		Assume.assumeTrue("Single precision BEAGLE is not available", beagle.getBeagleLikelihood() != null
+				&& beagle.getBeagleLikelihood().getPrecision() == EpochTreeLikelihood.Precision.singlePrecision);
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			EpochTreeLikelihood java = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.2);
+			double[] heights = new double[] { 0.45, 0.65, 0.2, 1.2 };
+			boolean[] accepts = new boolean[] { false, true, false, true };
+			State beagleState = EpochLikelihoodTestUtil.compare(java, beagle, heights, accepts, SINGLE_PRECISION, "single precision check, ");
+
+			// after the switch, the accepted states are calculated in double precision from buffers that are filled again after the rejection
+			Assert.assertEquals(EpochTreeLikelihood.Precision.doublePrecision, beagle.getBeagleLikelihood().getPrecision());
+			Assert.assertEquals(java.getCurrentLogP(), beagle.getCurrentLogP(), PRECISION);
+			Assert.assertEquals(java.getCurrentLogP(), beagleState.robustlyCalcPosterior(beagle), PRECISION);
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Compare the likelihood calculated by BEAGLE through EpochTreeLikelihood with the java likelihood core,
+	 * over accepted and rejected moves, which go through the delegating store and restore
+	 */
+	private void compare(double proportionInvariant) {
+
+		EpochLikelihoodTestUtil.setJavaOnly(false);
+		EpochTreeLikelihood beagle = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant);
+		Assume.assumeTrue("BEAGLE is not available", beagle.getBeagleLikelihood() != null);
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			EpochTreeLikelihood java = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant);
+			EpochLikelihoodTestUtil.compare(java, beagle, EpochLikelihoodTestUtil.MOVE_HEIGHTS, PRECISION, "pInv " + proportionInvariant + ", ");
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+	}
+
+
+}
@@ -0,0 +1,327 @@
+package resub.likelihood;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Distribution;
+import beast.base.inference.Evaluator;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import resub.substitutionmodel.MultiTransitionResub;
+import resub.substitutionmodel.SVSGeneralSubstitutionModel;
+import resub.substitutionmodel.epochs.AlphabetEpochs;
+
+
+/**
+ * Small amino acid data sets and resub models for the likelihood tests
+ */
+public class EpochLikelihoodTestUtil {
+
+	public static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+	public static final String NEWICK = "(((t0:0.3,t1:0.3):0.4,(t2:0.2,t3:0.2):0.5):0.6,(t4:0.5,t5:0.5):0.8);";
+	public static final int TAXA = 6;
+
+	// Three old epochs of a multi transition resub model: a refinement, an expansion, and a refinement of the merged state
+	public static final double[] EPOCH_AGES = new double[] { 0.25, 0.6, 1.0 };
+	public static final int[] EPOCH_ALPHAS = new int[] { 18, 3, 18 };
+	public static final int[] EPOCH_BETAS = new int[] { 19, 2, 17 };
+	public static final int[] EPOCH_INDICATORS = new int[] { 1, 2, 1 };
+	public static final double EPOCH_DATE = 0.1;
+	public static final long SEED = 123;
+	public static final double[] MOVE_HEIGHTS = new double[] { 0.45, 0.65, 0.2, 1.2, 0.9, 0.35 };
+
+
+	/**
+	 * Random sequences, each a mutated copy of one ancestor. The first few sites are constant
+	 */
+	public static Alignment getAlignment(int siteCount, long seed) {
+		Random random = new Random(seed);
+		char[] ancestor = new char[siteCount];
+		for (int j = 0; j < siteCount; j ++) {
+			ancestor[j] = AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length()));
+		}
+
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < TAXA; i ++) {
+			char[] seq = ancestor.clone();
+			for (int j = 5; j < siteCount; j ++) {
+				if (random.nextDouble() < 0.3) {
+					seq[j] = AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length()));
+				}
+			}
+			sequences.add(new Sequence("t" + i, new String(seq)));
+		}
+
+		Alignment data = new Alignment();
+		data.initByName("sequence", sequences, "dataType", "aminoacid");
+		return data;
+	}
+
+
+	public static Tree getTree(Alignment data) {
+		TreeParser tree = new TreeParser();
+		tree.initByName("taxa", data, "newick", NEWICK, "IsLabelledNewick", true);
+		return tree;
+	}
+
+
+	public static Frequencies getFrequencies() {
+		RealParameter freqs = new RealParameter(SingleTransitionModelTest.FREQ_STR);
+		freqs.initAndValidate();
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", freqs);
+		return frequencies;
+	}
+
+
+	/**
+	 * The substitution model of the youngest epoch
+	 */
+	public static SVSGeneralSubstitutionModel getSubstModel(Frequencies frequencies) {
+		RealParameter rates = new RealParameter(SingleTransitionModelTest.RATES_STR);
+		rates.initByName("dimension", 190);
+		BooleanParameter indicator = new BooleanParameter("true");
+		indicator.initByName("dimension", 190);
+		SVSGeneralSubstitutionModel substModel = new SVSGeneralSubstitutionModel();
+		substModel.initByName("symmetric", true, "rates", rates, "frequencies", frequencies, "rateIndicator", indicator);
+		return substModel;
+	}
+
+
+	public static AlphabetEpochs getAlphabetEpochs(SVSGeneralSubstitutionModel substModel, Frequencies frequencies) {
+		return getAlphabetEpochs(substModel, frequencies, EPOCH_AGES, EPOCH_ALPHAS, EPOCH_BETAS, EPOCH_INDICATORS);
+	}
+
+
+	public static AlphabetEpochs getAlphabetEpochs(SVSGeneralSubstitutionModel substModel, Frequencies frequencies,
+			double[] ages, int[] alphas, int[] betas, int[] indicators) {
+		AlphabetEpochs epochs = new AlphabetEpochs();
+		epochs.initByName("nepochs", ages.length + 1,
+				"te", new RealParameter(join(ages)),
+				"alpha", new IntegerParameter(join(alphas)),
+				"beta", new IntegerParameter(join(betas)),
+				"indicator", new IntegerParameter(join(indicators)),
+				"substModel", substModel,
+				"frequencies", frequencies);
+		return epochs;
+	}
+
+
+	public static MultiTransitionResub getResubModel(AlphabetEpochs epochs, Frequencies frequencies) {
+		MultiTransitionResub resub = new MultiTransitionResub();
+		resub.initByName("epochs", epochs, "frequencies", frequencies);
+		return resub;
+	}
+
+
+	public static SiteModel getSiteModel(SubstitutionModel substModel, double proportionInvariant) {
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"),
+				"proportionInvariant", new RealParameter("" + proportionInvariant), "substModel", substModel);
+		return siteModel;
+	}
+
+
+	/**
+	 * Likelihood with the youngest substitution model below the epoch date and the resub model above it.
+	 * Inputs such as "threads" can be added as name-value pairs
+	 */
+	public static <T extends EpochTreeLikelihood> T getLikelihood(T likelihood, Alignment data, Tree tree, SubstitutionModel substModel,
+			SubstitutionModel resub, RealParameter epochDate, double proportionInvariant, Object... inputs) {
+		List<SubstitutionModel> models = new ArrayList<>();
+		models.add(substModel);
+		models.add(resub);
+		Object[] args = new Object[10 + inputs.length];
+		args[0] = "data"; args[1] = data;
+		args[2] = "tree"; args[3] = tree;
+		args[4] = "siteModel"; args[5] = getSiteModel(substModel, proportionInvariant);
+		args[6] = "model"; args[7] = models;
+		args[8] = "epochDates"; args[9] = epochDate;
+		System.arraycopy(inputs, 0, args, 10, inputs.length);
+		likelihood.initByName(args);
+		return likelihood;
+	}
+
+
+	/**
+	 * A complete resub likelihood on a fresh data set, tree and models
+	 */
+	public static EpochTreeLikelihood getLikelihood(int siteCount, double proportionInvariant, Object... inputs) {
+		Alignment data = getAlignment(siteCount, SEED);
+		Tree tree = getTree(data);
+		Frequencies frequencies = getFrequencies();
+		SVSGeneralSubstitutionModel substModel = getSubstModel(frequencies);
+		MultiTransitionResub resub = getResubModel(getAlphabetEpochs(substModel, frequencies), frequencies);
+		return getLikelihood(new EpochTreeLikelihood(), data, tree, substModel, resub, new RealParameter("" + EPOCH_DATE), proportionInvariant, inputs);
+	}
+
+
+	/**
+	 * A complete resub likelihood as above, with the internal nodes at these heights and the epoch at this date. 
+	 * It has not been calculated yet
+	 */
+	public static EpochTreeLikelihood getLikelihood(int siteCount, double proportionInvariant, double[] heights, double epochDate) {
+		Alignment data = getAlignment(siteCount, SEED);
+		Tree tree = getTree(data);
+		for (int nr = 0; nr < heights.length; nr++) {
+			if (!tree.getNode(nr).isLeaf()) {
+				tree.getNode(nr).setHeight(heights[nr]);
+			}
+		}
+		Frequencies frequencies = getFrequencies();
+		SVSGeneralSubstitutionModel substModel = getSubstModel(frequencies);
+		MultiTransitionResub resub = getResubModel(getAlphabetEpochs(substModel, frequencies), frequencies);
+		return getLikelihood(new EpochTreeLikelihood(), data, tree, substModel, resub, new RealParameter("" + epochDate), proportionInvariant);
+	}
+
+
+	/**
+	 * State of the given state nodes, with the posterior as its calculation graph, as set up by MCMC
+	 */
+	public static State getState(Distribution posterior, StateNode... stateNodes) {
+		State state = new State();
+		state.initByName("stateNode", Arrays.asList(stateNodes));
+		state.initialise();
+		state.setPosterior(posterior);
+		state.robustlyCalcPosterior(posterior);
+		return state;
+	}
+
+
+	/**
+	 * One MCMC step, with the same calls around the proposal as MCMC.doLoop
+	 * @return the log posterior of the proposed state
+	 */
+	public static double step(State state, Distribution posterior, Runnable proposal, boolean accept) {
+		state.store(0);
+		proposal.run();
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double logP = posterior.calculateLogP();
+		if (accept) {
+			state.acceptCalculationNodes();
+		} else {
+			state.restore();
+			state.restoreCalculationNodes();
+		}
+		state.setEverythingDirty(false);
+		return logP;
+	}
+
+
+	/**
+	 * Move internal nodes of both likelihoods to the same heights, accepting all but every third move, and check
+	 * that they agree after each move and with a calculation from scratch at the end
+	 * @param label printed before each move
+	 * @return the state of the likelihood, for further checks
+	 */
+	public static State compare(EpochTreeLikelihood expected, EpochTreeLikelihood likelihood, double[] heights, double precision, String label) {
+		boolean[] accepts = new boolean[heights.length];
+		for (int move = 0; move < heights.length; move ++) {
+			accepts[move] = move % 3 != 1;
+		}
+		return compare(expected, likelihood, heights, accepts, precision, label);
+	}
+
+
+	/**
+	 * As above, with these moves accepted. A rejected move should leave the stored likelihood as it was
+	 */
+	public static State compare(EpochTreeLikelihood expected, EpochTreeLikelihood likelihood, double[] heights, boolean[] accepts,
+			double precision, String label) {
+		Tree expectedTree = (Tree) expected.treeInput.get();
+		Tree tree = (Tree) likelihood.treeInput.get();
+		State expectedState = getState(expected, expectedTree);
+		State state = getState(likelihood, tree);
+		Assert.assertEquals(expected.getCurrentLogP(), likelihood.getCurrentLogP(), precision);
+
+		for (int move = 0; move < heights.length; move ++) {
+			boolean accept = accepts[move];
+			int nodeNr = TAXA + move % (TAXA - 1);
+			double height = heights[move];
+			double storedLogP = likelihood.getCurrentLogP();
+			double expectedLogP = step(expectedState, expected, () -> moveNode(expectedTree, nodeNr, height), accept);
+			double logP = step(state, likelihood, () -> moveNode(tree, nodeNr, height), accept);
+			Assert.assertEquals(expectedLogP, logP, precision);
+			if (!accept) {
+				Assert.assertEquals(storedLogP, likelihood.getCurrentLogP(), 0.0);
+			}
+			System.out.println(label + "move " + move + (accept ? " accepted" : " rejected") + ": logP = " + expectedLogP + " = " + logP);
+		}
+
+		double logP = expected.getCurrentLogP();
+		Assert.assertEquals(logP, likelihood.getCurrentLogP(), precision);
+		Assert.assertEquals(logP, expectedState.robustlyCalcPosterior(expected), precision);
+		Assert.assertEquals(logP, state.robustlyCalcPosterior(likelihood), precision);
+		return state;
+	}
+
+
+	/**
+	 * Move an internal node to this height, or as close to it as its parent and children allow
+	 */
+	public static void moveNode(Tree tree, int nodeNr, double height) {
+		Node node = tree.getNode(nodeNr);
+		double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		double upper = node.isRoot() ? Double.POSITIVE_INFINITY : node.getParent().getHeight();
+		node.setHeight(Math.max(lower + 0.01, Math.min(upper - 0.01, height)));
+	}
+
+
+	/**
+	 * The evaluator that MCMC hands to operators: it calculates the posterior of the proposed state and then puts everything back
+	 */
+	public static Evaluator getEvaluator(State state, Distribution posterior) {
+		return () -> {
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			double logP = posterior.calculateLogP();
+			state.restore();
+			state.restoreCalculationNodes();
+			return logP;
+		};
+	}
+
+
+	/**
+	 * Run the likelihood without BEAGLE
+	 */
+	public static void setJavaOnly(boolean javaOnly) {
+		if (javaOnly) {
+			System.setProperty("java.only", "true");
+		} else {
+			System.clearProperty("java.only");
+		}
+	}
+
+
+	private static String join(double[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (double value : values) sb.append(value).append(" ");
+		return sb.toString().trim();
+	}
+
+
+	private static String join(int[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int value : values) sb.append(value).append(" ");
+		return sb.toString().trim();
+	}
+
+}
@@ -0,0 +1,155 @@
+package resub.likelihood;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModelInterface;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import resub.substitutionmodel.MultiTransitionResub;
+import resub.substitutionmodel.SVSGeneralSubstitutionModel;
+
+
+public class PartitionedEpochBeagleTreeLikelihoodTest {
+
+	public static final double PRECISION = 1e-6;
+	public static final int[] SITES = new int[] { 40, 25 };
+	public static final double PROPORTION_INVARIANT = 0.2;
+
+
+	private List<Alignment> data;
+	private List<TreeInterface> trees;
+	private SVSGeneralSubstitutionModel substModel;
+	private MultiTransitionResub resub;
+	private RealParameter epochDate;
+
+
+
+	@Test
+    public void testJavaFallback() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testJavaFallback");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			PartitionedEpochBeagleTreeLikelihood likelihood = getPartitionedLikelihood();
+			Assert.assertNull(likelihood.getBeagle());
+			compareWithSeparateLikelihoods(likelihood);
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	@Test
+    public void testBeagle() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testBeagle");
+
+		PartitionedEpochBeagleTreeLikelihood likelihood = getPartitionedLikelihood();
+		Assume.assumeTrue("BEAGLE is not available", likelihood.getBeagle() != null);
+		compareWithSeparateLikelihoods(likelihood);
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Check the total and the partition likelihoods against one java EpochTreeLikelihood per partition,
+	 * before and after accepted and rejected moves of the trees and the epoch date
+	 */
+	private void compareWithSeparateLikelihoods(PartitionedEpochBeagleTreeLikelihood likelihood) {
+
+		Tree tree0 = (Tree) trees.get(0);
+		Tree tree1 = (Tree) trees.get(1);
+		State state = EpochLikelihoodTestUtil.getState(likelihood, tree0, tree1, epochDate);
+		compare(likelihood);
+
+		EpochLikelihoodTestUtil.step(state, likelihood, () -> EpochLikelihoodTestUtil.moveNode(tree0, EpochLikelihoodTestUtil.TAXA, 0.5), true);
+		compare(likelihood);
+
+		EpochLikelihoodTestUtil.step(state, likelihood, () -> epochDate.setValue(0, 0.4), false);
+		compare(likelihood);
+
+		EpochLikelihoodTestUtil.step(state, likelihood, () -> {
+			epochDate.setValue(0, 0.2);
+			EpochLikelihoodTestUtil.moveNode(tree1, EpochLikelihoodTestUtil.TAXA + 2, 0.6);
+		}, true);
+		compare(likelihood);
+
+	}
+
+
+	private void compare(PartitionedEpochBeagleTreeLikelihood likelihood) {
+		double[] partitionLogP = likelihood.getPartitionLogLikelihoods();
+		double sum = 0;
+		for (int p = 0; p < data.size(); p ++) {
+			double logP = getSeparateLikelihood(p).calculateLogP();
+			Assert.assertEquals(logP, partitionLogP[p], PRECISION);
+			sum += logP;
+		}
+		Assert.assertEquals(sum, likelihood.getCurrentLogP(), PRECISION);
+		System.out.println("logP = " + likelihood.getCurrentLogP() + " = " + sum);
+	}
+
+
+	private PartitionedEpochBeagleTreeLikelihood getPartitionedLikelihood() {
+		data = new ArrayList<>();
+		trees = new ArrayList<>();
+		List<SiteModelInterface> siteModels = new ArrayList<>();
+		for (int p = 0; p < SITES.length; p ++) {
+			Alignment alignment = EpochLikelihoodTestUtil.getAlignment(SITES[p], p + 1);
+			data.add(alignment);
+			trees.add(EpochLikelihoodTestUtil.getTree(alignment));
+		}
+		Frequencies frequencies = EpochLikelihoodTestUtil.getFrequencies();
+		substModel = EpochLikelihoodTestUtil.getSubstModel(frequencies);
+		resub = EpochLikelihoodTestUtil.getResubModel(EpochLikelihoodTestUtil.getAlphabetEpochs(substModel, frequencies), frequencies);
+		epochDate = new RealParameter("" + EpochLikelihoodTestUtil.EPOCH_DATE);
+		for (int p = 0; p < SITES.length; p ++) {
+			siteModels.add(EpochLikelihoodTestUtil.getSiteModel(substModel, PROPORTION_INVARIANT));
+		}
+
+		List<SubstitutionModel> models = new ArrayList<>();
+		models.add(substModel);
+		models.add(resub);
+		PartitionedEpochBeagleTreeLikelihood likelihood = new PartitionedEpochBeagleTreeLikelihood();
+		likelihood.initByName("data", data, "tree", trees, "siteModel", siteModels, "model", models, "epochDates", epochDate);
+		return likelihood;
+	}
+
+
+	/**
+	 * A java likelihood of one partition, with its own site model, built from the current trees and epoch date
+	 */
+	private EpochTreeLikelihood getSeparateLikelihood(int p) {
+		boolean javaOnly = Boolean.valueOf(System.getProperty("java.only"));
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			return EpochLikelihoodTestUtil.getLikelihood(new EpochTreeLikelihood(), data.get(p), (Tree) trees.get(p), substModel, resub,
+					epochDate, PROPORTION_INVARIANT);
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(javaOnly);
+		}
+	}
+
+
+}
@@ -0,0 +1,51 @@
+package resub.likelihood;
+
+
+import org.junit.Test;
+
+
+public class ReducedAlphabetLikelihoodTest {
+
+	public static final double PRECISION = 1e-8;
+	public static final int SITES = 60;
+
+
+
+	@Test
+    public void testReducedAlphabetsGiveSameLikelihood() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testReducedAlphabetsGiveSameLikelihood");
+
+		compare(0.0, 1);
+		compare(0.2, 1);
+		compare(0.2, 3);
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Compare the likelihood with and without reduced alphabets, while internal nodes move between alphabet epochs
+	 */
+	private void compare(double proportionInvariant, int threads) {
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			EpochTreeLikelihood full = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant, "threads", threads, "reducedAlphabets", false);
+			EpochTreeLikelihood reduced = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant, "threads", threads, "reducedAlphabets", true);
+
+			// Heights on both sides of the epoch ages 0.25, 0.6 and 1.0, some of them rejected
+			double[] heights = new double[] { 0.55, 0.65, 0.2, 1.1, 0.95, 0.3, 0.7, 1.05 };
+			EpochLikelihoodTestUtil.compare(full, reduced, heights, PRECISION, "pInv " + proportionInvariant + ", " + threads + " threads, ");
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+	}
+
+
+}
@@ -4,6 +4,7 @@ package resub.likelihood;
 import org.junit.Assert;
 import org.junit.Test;
 
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.inference.parameter.BooleanParameter;
 import beast.base.inference.parameter.RealParameter;
@@ -292,6 +293,63 @@ public class SingleTransitionModelTest {
 	}
 	
 	
+	@Test
+    public void testEpochEigenDecomposition() throws Exception {
+		
+		// Branches that lie inside one epoch should be reproducible from that epoch's eigen decomposition
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testEpochEigenDecomposition");
+		
+		SVSGeneralSubstitutionModel svsModel = new SVSGeneralSubstitutionModel();
+		SingleTransitionResub cherryResub = new SingleTransitionResub();
+		getMatrices(svsModel, cherryResub, true, true, false);
+		
+		double rate = 1.0;
+		double[][] branches = new double[][] { {0.5, 0.1}, {2.0, 1.75} };
+		int[] expectedIndices = new int[] { 0, 1 };
+		double[] outMatrixResub = new double[20*20];
+		for (int b = 0; b < branches.length; b ++) {
+			
+			double startHeight = branches[b][0];
+			double endHeight = branches[b][1];
+			int index = cherryResub.getEpochEigenIndex(startHeight, endHeight);
+			Assert.assertEquals(expectedIndices[b], index);
+			
+			cherryResub.getTransitionProbabilities(null, startHeight, endHeight, rate, outMatrixResub);
+			EigenDecomposition ed = cherryResub.getEpochEigenDecomposition(index);
+			double[] outMatrixEigen = exponentiate(ed, (startHeight - endHeight) * rate, 20);
+			Assert.assertArrayEquals(outMatrixResub, outMatrixEigen, PRECISION);
+			System.out.println("branch " + startHeight + "-" + endHeight + " matches eigen decomposition " + index);
+		}
+		
+		// Branches that cross the transition cannot use a single decomposition
+		Assert.assertEquals(-1, cherryResub.getEpochEigenIndex(1.1, 0.9));
+		
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+		
+	}
+	
+	
+	// P = V exp(D t) V^-1
+	private double[] exponentiate(EigenDecomposition ed, double distance, int n) {
+		double[] evec = ed.getEigenVectors();
+		double[] ievc = ed.getInverseEigenVectors();
+		double[] eval = ed.getEigenValues();
+		double[] matrix = new double[n*n];
+		for (int i = 0; i < n; i ++) {
+			for (int j = 0; j < n; j ++) {
+				double sum = 0;
+				for (int k = 0; k < n; k ++) {
+					sum += evec[i*n + k] * Math.exp(eval[k] * distance) * ievc[k*n + j];
+				}
+				matrix[i*n + j] = sum;
+			}
+		}
+		return matrix;
+	}
+	
+	
 	// Build a 19x19 matrix with the final state (Y) dropped
 	private void get19x19Matrix(SVSGeneralSubstitutionModel svsModel) {
 		
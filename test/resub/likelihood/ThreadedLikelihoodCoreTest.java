@@ -0,0 +1,80 @@
+package resub.likelihood;
+
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.LikelihoodCore;
+
+
+public class ThreadedLikelihoodCoreTest {
+
+	public static final double PRECISION = 1e-8;
+	public static final int SITES = 60;
+	public static final int THREADS = 3;
+
+
+
+	@Test
+    public void testThreadsGiveSameLikelihood() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testThreadsGiveSameLikelihood");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			EpochTreeLikelihood single = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0, "threads", 1);
+			EpochTreeLikelihood threaded = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0, "threads", THREADS);
+			EpochLikelihoodTestUtil.compare(single, threaded, EpochLikelihoodTestUtil.MOVE_HEIGHTS, PRECISION, "");
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	@Test
+    public void testCalculateIntegratePartials() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testCalculateIntegratePartials");
+
+		// Partials over all categories of a node, integrated by the block cores and by the base class hook
+		int stateCount = 20;
+		int categoryCount = 4;
+		LikelihoodCore[] cores = new LikelihoodCore[THREADS];
+		for (int i = 0; i < THREADS; i ++) {
+			cores[i] = new BeerLikelihoodCore(stateCount);
+		}
+		ThreadedLikelihoodCore core = new ThreadedLikelihoodCore(stateCount, cores);
+		core.initialize(3, SITES, categoryCount, true, false);
+		core.createNodePartials(0);
+
+		Random random = new Random(EpochLikelihoodTestUtil.SEED);
+		double[] partials = new double[categoryCount * SITES * stateCount];
+		for (int i = 0; i < partials.length; i ++) {
+			partials[i] = random.nextDouble();
+		}
+		double[] proportions = new double[] { 0.1, 0.2, 0.3, 0.4 };
+		core.setNodePartials(0, partials);
+
+		double[] expected = new double[SITES * stateCount];
+		double[] integrated = new double[SITES * stateCount];
+		core.integratePartials(0, proportions, expected);
+		core.calculateIntegratePartials(partials, proportions, integrated);
+		Assert.assertArrayEquals(expected, integrated, PRECISION);
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+}
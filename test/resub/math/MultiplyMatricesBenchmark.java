@@ -0,0 +1,50 @@
+package resub.math;
+
+
+import java.util.Random;
+
+
+/**
+ * Compares the speed of ResubMathUtil.multiplyMatrices with the plain row-by-column product.
+ * Not a unit test: run the main method by hand
+ */
+public class MultiplyMatricesBenchmark {
+
+	public static final int WARMUP_REPS = 20;
+	public static final int REPS = 50;
+	public static final long OPERATIONS_PER_REP = 2000000;
+
+
+	public static void main(String[] args) {
+
+		Random random = new Random(1234);
+		for (int dim : ResubMathUtilTest.DIMENSIONS) {
+
+			double[] left = ResubMathUtilTest.randomMatrix(random, dim);
+			double[] right = ResubMathUtilTest.randomMatrix(random, dim);
+			double[] result = new double[dim*dim];
+			int products = (int) Math.max(1, OPERATIONS_PER_REP / ((long) dim*dim*dim));
+
+			// Let the JIT compile both kernels before timing them
+			for (int rep = 0; rep < WARMUP_REPS; rep ++) {
+				for (int r = 0; r < products; r ++) ResubMathUtilTest.naiveMultiplyMatrices(left, right, result, dim);
+				for (int r = 0; r < products; r ++) ResubMathUtil.multiplyMatrices(left, right, result, dim);
+			}
+
+			long naiveTime = 0, kernelTime = 0;
+			for (int rep = 0; rep < REPS; rep ++) {
+				long start = System.nanoTime();
+				for (int r = 0; r < products; r ++) ResubMathUtilTest.naiveMultiplyMatrices(left, right, result, dim);
+				naiveTime += System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int r = 0; r < products; r ++) ResubMathUtil.multiplyMatrices(left, right, result, dim);
+				kernelTime += System.nanoTime() - start;
+			}
+
+			long total = (long) REPS * products;
+			System.out.println(dim + " states: naive " + (naiveTime / total) + "ns, kernel " + (kernelTime / total) + "ns per product");
+		}
+
+	}
+
+}
@@ -0,0 +1,120 @@
+package resub.math;
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ResubMathUtilTest {
+
+	public static final double PRECISION = 1e-10;
+	public static final int[] DIMENSIONS = new int[] { 4, 20, 61 };
+
+
+
+	@Test
+    public void testMultiplyMatrices() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testMultiplyMatrices");
+
+		Random random = new Random(1234);
+		for (int dim : DIMENSIONS) {
+
+			double[] left = randomMatrix(random, dim);
+			double[] right = randomMatrix(random, dim);
+
+			// Sparse rows (eg. transport matrices) are skipped by the kernel, so include some
+			for (int j = 0; j < dim; j ++) {
+				left[j] = 0;
+			}
+			left[dim + 1] = 0;
+
+			double[] expected = new double[dim*dim];
+			double[] result = new double[dim*dim];
+			Arrays.fill(result, Double.NaN);
+			naiveMultiplyMatrices(left, right, expected, dim);
+			ResubMathUtil.multiplyMatrices(left, right, result, dim);
+			Assert.assertArrayEquals(expected, result, PRECISION);
+		}
+
+	}
+
+
+	@Test
+    public void testRateIndex() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testRateIndex");
+
+		for (int dim : DIMENSIONS) {
+
+			// The closed form should agree with a scan over the off-diagonal entries in row order
+			int k = 0;
+			for (int to = 0; to < dim; to ++) {
+				for (int from = 0; from < dim; from ++) {
+					if (to == from) {
+						Assert.assertEquals(-1, ResubMathUtil.getRateIndex(to, from, dim));
+						continue;
+					}
+					Assert.assertEquals(k, ResubMathUtil.getRateIndex(to, from, dim));
+					k ++;
+				}
+			}
+			Assert.assertEquals(-1, ResubMathUtil.getRateIndex(dim, 0, dim));
+
+
+			// Set and get every rate
+			double[] rates = new double[dim * (dim-1)];
+			for (int to = 0; to < dim; to ++) {
+				for (int from = 0; from < dim; from ++) {
+					ResubMathUtil.setRate(rates, to, from, to * dim + from, dim);
+				}
+			}
+			for (int to = 0; to < dim; to ++) {
+				for (int from = 0; from < dim; from ++) {
+					double expected = to == from ? -1 : to * dim + from;
+					Assert.assertEquals(expected, ResubMathUtil.getRate(rates, to, from, dim), PRECISION);
+				}
+			}
+
+		}
+
+	}
+
+
+	static double[] randomMatrix(Random random, int dim) {
+		double[] matrix = new double[dim*dim];
+		for (int i = 0; i < matrix.length; i ++) {
+			matrix[i] = random.nextDouble();
+		}
+		return matrix;
+	}
+
+
+	/**
+	 * The original row-by-column product, used as a reference
+	 */
+	static void naiveMultiplyMatrices(double[] left, double[] right, double[] result, int dim) {
+		int index3 = 0;
+		for (int rowNum = 0; rowNum < dim; rowNum ++) {
+			for (int colNum = 0; colNum < dim; colNum ++) {
+				double sum = 0;
+				int index1 = rowNum * dim;
+				int index2 = colNum;
+				for (int pos = 0; pos < dim; pos++) {
+					sum += left[index1] * right[index2];
+					index1 ++;
+					index2 += dim;
+				}
+				result[index3] = sum;
+				index3 ++;
+			}
+		}
+	}
+
+
+}
@@ -0,0 +1,156 @@
+package resub.operator;
+
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Evaluator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import resub.likelihood.EpochLikelihoodTestUtil;
+import resub.likelihood.EpochTreeLikelihood;
+
+
+public class EpochDateLangevinOperatorTest {
+
+	public static final double PRECISION = 1e-4;
+	public static final double DELTA = 1e-4;
+	public static final double STEP_SIZE = 0.02;
+	public static final int SITES = 60;
+
+
+
+	@Test
+    public void testGradient() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testGradient");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			for (double proportionInvariant : new double[] { 0.0, 0.2 }) {
+				EpochTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant);
+				RealParameter epochDate = (RealParameter) likelihood.epochDatesInput.get();
+				Tree tree = (Tree) likelihood.treeInput.get();
+				State state = EpochLikelihoodTestUtil.getState(likelihood, tree, epochDate);
+				compare(likelihood, tree, epochDate, proportionInvariant);
+
+				// Accepted and rejected moves of the date, across nodes and not, and of the root
+				Runnable[] proposals = new Runnable[] {
+					() -> epochDate.setValue(0, 0.15),
+					() -> epochDate.setValue(0, 0.27),
+					() -> tree.getRoot().setHeight(tree.getRoot().getHeight() * 1.05),
+					() -> epochDate.setValue(0, 0.23),
+					() -> epochDate.setValue(0, 0.4)
+				};
+				boolean[] accepts = new boolean[] { true, false, true, true, false };
+				for (int move = 0; move < proposals.length; move ++) {
+					EpochLikelihoodTestUtil.step(state, likelihood, proposals[move], accepts[move]);
+					System.out.print("pInv " + proportionInvariant + ", move " + move + (accepts[move] ? " accepted" : " rejected") + ": ");
+					compare(likelihood, tree, epochDate, proportionInvariant);
+				}
+			}
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	@Test
+    public void testHastingsRatio() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testHastingsRatio");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			EpochTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0);
+			RealParameter epochDate = (RealParameter) likelihood.epochDatesInput.get();
+			Tree tree = (Tree) likelihood.treeInput.get();
+			State state = EpochLikelihoodTestUtil.getState(likelihood, tree, epochDate);
+			Evaluator evaluator = EpochLikelihoodTestUtil.getEvaluator(state, likelihood);
+			double [] heights = getHeights(tree);
+
+			EpochDateLangevinOperator operator = new EpochDateLangevinOperator();
+			operator.initByName("parameter", epochDate, "likelihood", likelihood, "stepSize", STEP_SIZE, "optimise", false, "weight", 1.0);
+			Randomizer.setSeed(127);
+			for (int move = 0; move < 5; move ++) {
+				boolean accept = move % 2 == 0;
+
+				// the last move has no evaluator, which makes it a random walk
+				boolean evaluate = move < 4;
+				double date = epochDate.getValue(0);
+				double [] proposal = new double[2];
+				double logP = EpochLikelihoodTestUtil.step(state, likelihood, () -> {
+					proposal[0] = evaluate ? operator.proposal(evaluator) : operator.proposal();
+					proposal[1] = epochDate.getValue(0);
+				}, accept);
+				double newDate = proposal[1];
+
+				// Gaussian proposal densities of the forward and the reverse move, with the drift along the gradient at their start
+				double gradient = evaluate ? getGradient(heights, date) : 0;
+				double newGradient = evaluate ? getGradient(heights, newDate) : 0;
+				double forward = (newDate - date - STEP_SIZE * STEP_SIZE / 2.0 * gradient) / STEP_SIZE;
+				double backward = (date - newDate - STEP_SIZE * STEP_SIZE / 2.0 * newGradient) / STEP_SIZE;
+				double expected = (forward * forward - backward * backward) / 2.0;
+				System.out.println("move " + move + ": " + date + " -> " + newDate + ", logHR = " + proposal[0] + " = " + expected);
+				Assert.assertEquals(expected, proposal[0], 1e-8);
+
+				// the proposed date is calculated as usual after the proposal
+				Assert.assertEquals(EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0, heights, newDate).calculateLogP(), logP, 1e-8);
+				Assert.assertEquals(accept ? newDate : date, epochDate.getValue(0), 0.0);
+			}
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Compare the gradient of the likelihood with a central difference of likelihoods calculated from scratch
+	 */
+	private void compare(EpochTreeLikelihood likelihood, Tree tree, RealParameter epochDate, double proportionInvariant) {
+		double [] heights = getHeights(tree);
+		double date = epochDate.getValue(0);
+		double logPUp = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant, heights, date + DELTA).calculateLogP();
+		double logPDown = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant, heights, date - DELTA).calculateLogP();
+		double expected = (logPUp - logPDown) / (2.0 * DELTA);
+		double [] gradient = likelihood.getEpochDateGradient();
+		System.out.println("date " + date + ": gradient " + gradient[0] + " = " + expected);
+		Assert.assertTrue(expected != 0);
+		Assert.assertEquals(expected, gradient[0], PRECISION);
+	}
+
+
+	/**
+	 * Gradient of a likelihood calculated from scratch at this date
+	 */
+	private double getGradient(double [] heights, double date) {
+		EpochTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0, heights, date);
+		likelihood.calculateLogP();
+		return likelihood.getEpochDateGradient()[0];
+	}
+
+
+	private double [] getHeights(Tree tree) {
+		double [] heights = new double[tree.getNodeCount()];
+		for (int nr = 0; nr < heights.length; nr++) {
+			heights[nr] = tree.getNode(nr).getHeight();
+		}
+		return heights;
+	}
+
+
+}
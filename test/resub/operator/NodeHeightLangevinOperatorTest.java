@@ -0,0 +1,180 @@
+package resub.operator;
+
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Evaluator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import resub.likelihood.EpochLikelihoodTestUtil;
+import resub.likelihood.EpochTreeLikelihood;
+
+
+public class NodeHeightLangevinOperatorTest {
+
+	public static final double PRECISION = 1e-4;
+	public static final double DELTA = 1e-5;
+	public static final double STEP_SIZE = 0.005;
+	public static final int SITES = 60;
+
+
+
+	@Test
+    public void testGradient() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testGradient");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			for (double proportionInvariant : new double[] { 0.0, 0.2 }) {
+				EpochTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant);
+				Tree tree = (Tree) likelihood.treeInput.get();
+				RealParameter epochDate = (RealParameter) likelihood.epochDatesInput.get();
+				State state = EpochLikelihoodTestUtil.getState(likelihood, tree, epochDate);
+				compare(likelihood, tree, epochDate, proportionInvariant);
+
+				// Accepted and rejected moves of nodes, of the root and of the epoch date, after which the gradient comes from restored partials
+				Runnable[] proposals = new Runnable[] {
+					() -> scaleNode(tree, 6, 0.9),
+					() -> scaleNode(tree, tree.getRoot().getNr(), 1.1),
+					() -> epochDate.setValue(0, 0.15),
+					() -> scaleNode(tree, 8, 0.95),
+					() -> epochDate.setValue(0, 0.27)
+				};
+				boolean[] accepts = new boolean[] { true, false, true, false, false };
+				for (int move = 0; move < proposals.length; move ++) {
+					EpochLikelihoodTestUtil.step(state, likelihood, proposals[move], accepts[move]);
+					System.out.print("pInv " + proportionInvariant + ", move " + move + (accepts[move] ? " accepted" : " rejected") + ": ");
+					compare(likelihood, tree, epochDate, proportionInvariant);
+				}
+			}
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	@Test
+    public void testHastingsRatio() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testHastingsRatio");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			EpochTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0);
+			Tree tree = (Tree) likelihood.treeInput.get();
+			State state = EpochLikelihoodTestUtil.getState(likelihood, tree);
+			Evaluator evaluator = EpochLikelihoodTestUtil.getEvaluator(state, likelihood);
+
+			NodeHeightLangevinOperator operator = new NodeHeightLangevinOperator();
+			operator.initByName("tree", tree, "likelihood", likelihood, "stepSize", STEP_SIZE, "optimise", false, "weight", 1.0);
+			Randomizer.setSeed(127);
+			for (int move = 0; move < 5; move ++) {
+				boolean accept = move % 2 == 0;
+
+				// the last move has no evaluator, which makes it a random walk
+				boolean evaluate = move < 4;
+				double [] heights = getHeights(tree);
+				double [] logHR = new double[1];
+				double [][] newHeights = new double[1][];
+				double logP = EpochLikelihoodTestUtil.step(state, likelihood, () -> {
+					logHR[0] = evaluate ? operator.proposal(evaluator) : operator.proposal();
+					newHeights[0] = getHeights(tree);
+				}, accept);
+				Assert.assertTrue(logHR[0] > Double.NEGATIVE_INFINITY);
+
+				// Gaussian proposal densities of the forward and the reverse move, with the drift along the gradient at their start
+				double [] gradient = evaluate ? getGradient(heights) : new double[heights.length];
+				double [] newGradient = evaluate ? getGradient(newHeights[0]) : new double[heights.length];
+				double expected = 0;
+				for (int nr = 0; nr < heights.length; nr++) {
+					if (!tree.getNode(nr).isLeaf()) {
+						double forward = (newHeights[0][nr] - heights[nr] - STEP_SIZE * STEP_SIZE / 2.0 * gradient[nr]) / STEP_SIZE;
+						double backward = (heights[nr] - newHeights[0][nr] - STEP_SIZE * STEP_SIZE / 2.0 * newGradient[nr]) / STEP_SIZE;
+						expected += (forward * forward - backward * backward) / 2.0;
+					}
+				}
+				System.out.println("move " + move + (accept ? " accepted" : " rejected") + ": logHR = " + logHR[0] + " = " + expected);
+				Assert.assertEquals(expected, logHR[0], 1e-8);
+
+				// the proposed tree is calculated as usual after the proposal
+				Assert.assertEquals(EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0, newHeights[0], EpochLikelihoodTestUtil.EPOCH_DATE).calculateLogP(), logP, 1e-8);
+				Assert.assertArrayEquals(accept ? newHeights[0] : heights, getHeights(tree), 0.0);
+			}
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Compare the gradient of the likelihood with central differences of likelihoods calculated from scratch
+	 */
+	private void compare(EpochTreeLikelihood likelihood, Tree tree, RealParameter epochDate, double proportionInvariant) {
+		double [] heights = getHeights(tree);
+		double date = epochDate.getValue(0);
+		double [] gradient = likelihood.getNodeHeightGradient();
+		for (int nr = 0; nr < heights.length; nr++) {
+			if (tree.getNode(nr).isLeaf()) {
+				continue;
+			}
+			double [] perturbed = heights.clone();
+			perturbed[nr] = heights[nr] + DELTA;
+			double logPUp = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant, perturbed, date).calculateLogP();
+			perturbed[nr] = heights[nr] - DELTA;
+			double logPDown = EpochLikelihoodTestUtil.getLikelihood(SITES, proportionInvariant, perturbed, date).calculateLogP();
+			double expected = (logPUp - logPDown) / (2.0 * DELTA);
+			Assert.assertEquals(expected, gradient[nr], PRECISION);
+		}
+		int root = tree.getRoot().getNr();
+		Assert.assertTrue(gradient[root] != 0);
+		System.out.println("root gradient " + gradient[root]);
+	}
+
+
+	/**
+	 * Gradient of a likelihood calculated from scratch at these heights
+	 */
+	private double [] getGradient(double [] heights) {
+		EpochTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(SITES, 0.0, heights, EpochLikelihoodTestUtil.EPOCH_DATE);
+		likelihood.calculateLogP();
+		return likelihood.getNodeHeightGradient();
+	}
+
+
+	/**
+	 * Move an internal node towards its children (fraction below 1) or away from them
+	 */
+	private void scaleNode(Tree tree, int nr, double fraction) {
+		Node node = tree.getNode(nr);
+		double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		node.setHeight(lower + (node.getHeight() - lower) * fraction);
+	}
+
+
+	private double [] getHeights(Tree tree) {
+		double [] heights = new double[tree.getNodeCount()];
+		for (int nr = 0; nr < heights.length; nr++) {
+			heights[nr] = tree.getNode(nr).getHeight();
+		}
+		return heights;
+	}
+
+
+}
@@ -0,0 +1,115 @@
+package resub.substitutionmodel;
+
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import resub.likelihood.EpochLikelihoodTestUtil;
+import resub.likelihood.EpochTreeLikelihood;
+import resub.substitutionmodel.epochs.AlphabetEpochs;
+
+
+public class MultiTransitionResubTest {
+
+	public static final double PRECISION = 1e-12;
+	public static final int SITES = 30;
+	public static final double[] AGES = new double[] { 0.05, 0.2, 0.3, 0.45, 0.7, 1.2, 2.0 };
+	public static final double[] RATES = new double[] { 1.0, 0.37 };
+
+
+
+	@Test
+    public void testCacheGivesSameMatrices() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testCacheGivesSameMatrices");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			Frequencies frequencies = EpochLikelihoodTestUtil.getFrequencies();
+			AlphabetEpochs cachedEpochs = EpochLikelihoodTestUtil.getAlphabetEpochs(EpochLikelihoodTestUtil.getSubstModel(frequencies), frequencies);
+			AlphabetEpochs uncachedEpochs = EpochLikelihoodTestUtil.getAlphabetEpochs(EpochLikelihoodTestUtil.getSubstModel(frequencies), frequencies);
+			MultiTransitionResub cached = EpochLikelihoodTestUtil.getResubModel(cachedEpochs, frequencies);
+			MultiTransitionResub uncached = new MultiTransitionResub();
+			uncached.initByName("epochs", uncachedEpochs, "frequencies", frequencies, "cacheSize", 0);
+			Assert.assertTrue(cached.cacheSize > 0);
+			EpochTreeLikelihood cachedLikelihood = getLikelihood(cached, cachedEpochs);
+			EpochTreeLikelihood uncachedLikelihood = getLikelihood(uncached, uncachedEpochs);
+			State cachedState = EpochLikelihoodTestUtil.getState(cachedLikelihood, cachedEpochs.getTransitionAges(), cachedEpochs.getAlphas());
+			State uncachedState = EpochLikelihoodTestUtil.getState(uncachedLikelihood, uncachedEpochs.getTransitionAges(), uncachedEpochs.getAlphas());
+			compare(cached, uncached);
+
+
+			// Moves of the ages, with and without reordering the epochs, and of the transitions. Rejected moves of an age
+			// restore the version of the epochs, so the matrices cached before them are used again
+			Runnable[][] proposals = new Runnable[][] {
+				{ () -> cachedEpochs.getTransitionAges().setValue(0, 0.3), () -> uncachedEpochs.getTransitionAges().setValue(0, 0.3) },
+				{ () -> cachedEpochs.getTransitionAges().setValue(0, 0.35), () -> uncachedEpochs.getTransitionAges().setValue(0, 0.35) },
+				{ () -> cachedEpochs.getAlphas().setValue(2, 5), () -> uncachedEpochs.getAlphas().setValue(2, 5) },
+				{ () -> cachedEpochs.getTransitionAges().setValue(0, 0.7), () -> uncachedEpochs.getTransitionAges().setValue(0, 0.7) },
+				{ () -> cachedEpochs.getAlphas().setValue(1, 7), () -> uncachedEpochs.getAlphas().setValue(1, 7) },
+				{ () -> cachedEpochs.getTransitionAges().setValue(1, 0.4), () -> uncachedEpochs.getTransitionAges().setValue(1, 0.4) }
+			};
+			boolean[] accepts = new boolean[] { true, false, false, true, true, false };
+			for (int move = 0; move < proposals.length; move ++) {
+				double cachedLogP = EpochLikelihoodTestUtil.step(cachedState, cachedLikelihood, proposals[move][0], accepts[move]);
+				double uncachedLogP = EpochLikelihoodTestUtil.step(uncachedState, uncachedLikelihood, proposals[move][1], accepts[move]);
+				Assert.assertEquals(uncachedLogP, cachedLogP, 0.0);
+				long hits = cached.cacheHits;
+				compare(cached, uncached);
+				System.out.println("move " + move + (accepts[move] ? " accepted" : " rejected") + ": logP = " + cachedLogP
+						+ ", " + (cached.cacheHits - hits) + " cache hits, version " + cachedEpochs.getVersion());
+			}
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Compare the matrices of branches between each pair of ages, twice so that the second pass comes from the cache
+	 */
+	private void compare(MultiTransitionResub cached, MultiTransitionResub uncached) {
+		int nrOfStates = cached.getStateCount();
+		double[] expected = new double[(nrOfStates + 1) * (nrOfStates + 1)];
+		double[] matrix = new double[(nrOfStates + 1) * (nrOfStates + 1)];
+		for (int pass = 0; pass < 2; pass ++) {
+			long hits = cached.cacheHits;
+			for (int i = 0; i < AGES.length; i ++) {
+				for (int j = 0; j < i; j ++) {
+					for (double rate : RATES) {
+						uncached.getTransitionProbabilities(null, AGES[i], AGES[j], rate, expected);
+						cached.getTransitionProbabilities(null, AGES[i], AGES[j], rate, matrix);
+						Assert.assertArrayEquals(expected, matrix, PRECISION);
+					}
+				}
+			}
+			if (pass == 1) {
+				Assert.assertTrue(cached.cacheHits > hits);
+			}
+		}
+	}
+
+
+	/**
+	 * Likelihood that uses the resub model above the epoch date, on the same data and tree for each model
+	 */
+	private EpochTreeLikelihood getLikelihood(MultiTransitionResub resub, AlphabetEpochs epochs) {
+		Alignment data = EpochLikelihoodTestUtil.getAlignment(SITES, EpochLikelihoodTestUtil.SEED);
+		Tree tree = EpochLikelihoodTestUtil.getTree(data);
+		return EpochLikelihoodTestUtil.getLikelihood(new EpochTreeLikelihood(), data, tree,
+				epochs.getSubstModel(), resub, new RealParameter("" + EpochLikelihoodTestUtil.EPOCH_DATE), 0.0);
+	}
+
+
+}
@@ -0,0 +1,254 @@
+package resub.substitutionmodel;
+
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import beast.base.evolution.substitutionmodel.DefaultEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.EigenSystem;
+
+
+public class ReducedEigenSystemTest {
+
+	public static final double PRECISION = 1e-8;
+	public static final int STATES = 6;
+	public static final double[] TIMES = new double[] { 0.01, 0.3, 2.0 };
+
+
+
+	@Test
+    public void testBlankStates() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testBlankStates");
+
+		Random random = new Random(42);
+		ReducedEigenSystem reduced = new ReducedEigenSystem(STATES);
+		for (boolean [] blank : new boolean[][] {
+				{ false, true, false, false, true, false },
+				{ true, true, true, false, false, true },
+				{ false, false, false, false, false, false } }) {
+			double [][] rates = getRateMatrix(random, blank);
+			EigenDecomposition reducedEigen = reduced.decomposeMatrix(copy(rates));
+			EigenDecomposition fullEigen = new DefaultEigenSystem(STATES).decomposeMatrix(copy(rates));
+			for (double t : TIMES) {
+				double [] expected = exponentiate(rates, t);
+				double [] p = getTransitionProbabilities(reducedEigen, t);
+				Assert.assertArrayEquals(expected, p, PRECISION);
+				Assert.assertArrayEquals(getTransitionProbabilities(fullEigen, t), p, PRECISION);
+
+				// blank states stay where they are
+				for (int i = 0; i < STATES; i ++) {
+					if (blank[i]) {
+						for (int j = 0; j < STATES; j ++) {
+							Assert.assertEquals(i == j ? 1.0 : 0.0, p[i * STATES + j], 0.0);
+						}
+					}
+				}
+			}
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	@Test
+    public void testAllStatesBlank() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testAllStatesBlank");
+
+		// fewer than two active states: nothing to decompose, and every state stays where it is
+		EigenDecomposition eigen = new ReducedEigenSystem(STATES).decomposeMatrix(new double[STATES][STATES]);
+		Assert.assertArrayEquals(new double[STATES], eigen.getEigenValues(), 0.0);
+		for (double t : TIMES) {
+			double [] p = getTransitionProbabilities(eigen, t);
+			for (int i = 0; i < STATES; i ++) {
+				for (int j = 0; j < STATES; j ++) {
+					Assert.assertEquals(i == j ? 1.0 : 0.0, p[i * STATES + j], 0.0);
+				}
+			}
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	@Test
+    public void testComplexEigenvalues() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testComplexEigenvalues");
+
+		// a cycle through three of the states, whose rate matrix has complex eigenvalues
+		boolean [] blank = new boolean[] { true, false, true, false, false, true };
+		int [] activeStates = new int[] { 1, 3, 4 };
+		double [][] rates = new double[STATES][STATES];
+		for (int a = 0; a < 3; a ++) {
+			rates[activeStates[a]][activeStates[(a + 1) % 3]] = 1.0;
+			rates[activeStates[a]][activeStates[a]] = -1.0;
+		}
+
+		// the sub-system hands back a known decomposition in the complex layout, with the imaginary parts after the real parts
+		double [] subEvec = new double[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+		double [] subIevc = new double[] { -1, -2, -3, -4, -5, -6, -7, -8, -9 };
+		double [] subEval = new double[] { 0, -1.5, -1.5, 0, 0.866, -0.866 };
+		EigenSystem reduced = new ReducedEigenSystem(STATES) {
+			@Override
+			protected EigenSystem createSubSystem(int dimension) {
+				Assert.assertEquals(3, dimension);
+				return new EigenSystem() {
+					@Override
+					public EigenDecomposition decomposeMatrix(double [][] matrix) {
+						for (int a = 0; a < 3; a ++) {
+							for (int b = 0; b < 3; b ++) {
+								Assert.assertEquals(rates[activeStates[a]][activeStates[b]], matrix[a][b], 0.0);
+							}
+						}
+						return new EigenDecomposition(subEvec, subIevc, subEval);
+					}
+				};
+			}
+		};
+
+		EigenDecomposition eigen = reduced.decomposeMatrix(copy(rates));
+		double [] evec = eigen.getEigenVectors();
+		double [] ievc = eigen.getInverseEigenVectors();
+		double [] eval = eigen.getEigenValues();
+		Assert.assertEquals(2 * STATES, eval.length);
+		for (int a = 0; a < 3; a ++) {
+			Assert.assertEquals(subEval[a], eval[activeStates[a]], 0.0);
+			Assert.assertEquals(subEval[3 + a], eval[STATES + activeStates[a]], 0.0);
+			for (int b = 0; b < 3; b ++) {
+				Assert.assertEquals(subEvec[a * 3 + b], evec[activeStates[a] * STATES + activeStates[b]], 0.0);
+				Assert.assertEquals(subIevc[a * 3 + b], ievc[activeStates[a] * STATES + activeStates[b]], 0.0);
+			}
+		}
+		for (int i = 0; i < STATES; i ++) {
+			if (blank[i]) {
+				Assert.assertEquals(0.0, eval[i], 0.0);
+				Assert.assertEquals(0.0, eval[STATES + i], 0.0);
+				for (int j = 0; j < STATES; j ++) {
+					Assert.assertEquals(i == j ? 1.0 : 0.0, evec[i * STATES + j], 0.0);
+					Assert.assertEquals(i == j ? 1.0 : 0.0, evec[j * STATES + i], 0.0);
+					Assert.assertEquals(i == j ? 1.0 : 0.0, ievc[i * STATES + j], 0.0);
+					Assert.assertEquals(i == j ? 1.0 : 0.0, ievc[j * STATES + i], 0.0);
+				}
+			}
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Reversible rate matrix on the states that are not blank, with random exchange rates and frequencies
+	 */
+	private double [][] getRateMatrix(Random random, boolean [] blank) {
+		double [] freqs = new double[STATES];
+		for (int i = 0; i < STATES; i ++) {
+			freqs[i] = blank[i] ? 0 : 0.1 + random.nextDouble();
+		}
+		double [][] rates = new double[STATES][STATES];
+		for (int i = 0; i < STATES; i ++) {
+			for (int j = i + 1; j < STATES; j ++) {
+				if (!blank[i] && !blank[j]) {
+					double r = 0.1 + random.nextDouble();
+					rates[i][j] = r * freqs[j];
+					rates[j][i] = r * freqs[i];
+				}
+			}
+		}
+		for (int i = 0; i < STATES; i ++) {
+			for (int j = 0; j < STATES; j ++) {
+				if (i != j) {
+					rates[i][i] -= rates[i][j];
+				}
+			}
+		}
+		return rates;
+	}
+
+
+	private double [] getTransitionProbabilities(EigenDecomposition eigen, double t) {
+		double [] evec = eigen.getEigenVectors();
+		double [] ievc = eigen.getInverseEigenVectors();
+		double [] eval = eigen.getEigenValues();
+		double [] p = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i ++) {
+			for (int j = 0; j < STATES; j ++) {
+				double sum = 0;
+				for (int k = 0; k < STATES; k ++) {
+					sum += evec[i * STATES + k] * Math.exp(eval[k] * t) * ievc[k * STATES + j];
+				}
+				p[i * STATES + j] = sum;
+			}
+		}
+		return p;
+	}
+
+
+	/**
+	 * Matrix exponential by scaling and squaring of a Taylor series
+	 */
+	private double [] exponentiate(double [][] rates, double t) {
+		int squarings = 10;
+		double scale = t / (1 << squarings);
+		double [] p = new double[STATES * STATES];
+		double [] term = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i ++) {
+			p[i * STATES + i] = 1;
+			term[i * STATES + i] = 1;
+		}
+		for (int n = 1; n < 20; n ++) {
+			double [] next = new double[STATES * STATES];
+			for (int i = 0; i < STATES; i ++) {
+				for (int j = 0; j < STATES; j ++) {
+					double sum = 0;
+					for (int k = 0; k < STATES; k ++) {
+						sum += term[i * STATES + k] * rates[k][j] * scale / n;
+					}
+					next[i * STATES + j] = sum;
+				}
+			}
+			term = next;
+			for (int i = 0; i < p.length; i ++) {
+				p[i] += term[i];
+			}
+		}
+		for (int s = 0; s < squarings; s ++) {
+			double [] square = new double[STATES * STATES];
+			for (int i = 0; i < STATES; i ++) {
+				for (int j = 0; j < STATES; j ++) {
+					double sum = 0;
+					for (int k = 0; k < STATES; k ++) {
+						sum += p[i * STATES + k] * p[k * STATES + j];
+					}
+					square[i * STATES + j] = sum;
+				}
+			}
+			p = square;
+		}
+		return p;
+	}
+
+
+	private double [][] copy(double [][] matrix) {
+		double [][] copy = new double[matrix.length][];
+		for (int i = 0; i < matrix.length; i ++) {
+			copy[i] = matrix[i].clone();
+		}
+		return copy;
+	}
+
+
+}
@@ -0,0 +1,109 @@
+package resub.substitutionmodel.epochs;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.RealParameter;
+import resub.likelihood.EpochLikelihoodTestUtil;
+import resub.math.ResubMathUtil;
+import resub.substitutionmodel.SVSGeneralSubstitutionModel;
+
+
+public class AlphabetEpochTest {
+
+	public static final double PRECISION = 1e-10;
+	public static final int STATES = 20;
+	public static final int EPOCHS = 4;
+
+
+
+	@Test
+    public void testTransportedTransitionProbabilities() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testTransportedTransitionProbabilities");
+
+		Random random = new Random(42);
+		for (int sample = 0; sample < 5; sample ++) {
+			AlphabetEpochs epochs = getRandomEpochs(random);
+			for (int rank = 0; rank < epochs.getNActiveEpochs(); rank ++) {
+				AlphabetEpoch epoch = epochs.getEpochByRank(rank);
+				for (int time = 0; time < 3; time ++) {
+					double endAge = epoch.getAge() + random.nextDouble();
+					double startAge = endAge + 0.01 + 2 * random.nextDouble();
+					double rate = 0.5 + random.nextDouble();
+
+					// The previous path: tidy P(t) with the beta row and column as identity, then multiply by the transport matrix
+					double [] p = new double[STATES * STATES];
+					double [] expected = new double[STATES * STATES];
+					epoch.getSubstitionModel().getTransitionProbabilities(null, startAge, endAge, rate, p);
+					ResubMathUtil.tidyAndValidateProbs(p, "reduced matrix", STATES, epoch.getBeta());
+					ResubMathUtil.multiplyMatrices(p, epoch.getTransportMatrix(), expected, STATES);
+					ResubMathUtil.tidyAndValidateProbs(expected, "transported matrix", STATES, -1);
+
+					double [] transported = new double[STATES * STATES];
+					Assert.assertTrue(epoch.getTransportedTransitionProbabilities(startAge, endAge, rate, transported));
+					ResubMathUtil.tidyAndValidateProbs(transported, "transported matrix", STATES, -1);
+					Assert.assertArrayEquals(expected, transported, PRECISION);
+				}
+				System.out.println("sample " + sample + ", rank " + rank + ": " + epoch.getTransitionString() + (epoch.isRefinement() ? " refinement" : " expansion"));
+			}
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Epochs with random rates in the present model, random ages, and random transitions between the states that are
+	 * still in the alphabet. The two youngest are a refinement and an expansion, and the others either
+	 */
+	private AlphabetEpochs getRandomEpochs(Random random) {
+
+		RealParameter rates = new RealParameter();
+		List<Double> values = new ArrayList<>();
+		for (int i = 0; i < STATES * (STATES - 1) / 2; i ++) {
+			values.add(0.1 + 2 * random.nextDouble());
+		}
+		rates.initByName("value", values);
+		BooleanParameter rateIndicator = new BooleanParameter("true");
+		rateIndicator.initByName("dimension", rates.getDimension());
+		Frequencies frequencies = EpochLikelihoodTestUtil.getFrequencies();
+		SVSGeneralSubstitutionModel substModel = new SVSGeneralSubstitutionModel();
+		substModel.initByName("symmetric", true, "rates", rates, "frequencies", frequencies, "rateIndicator", rateIndicator);
+
+		List<Integer> alphabet = new ArrayList<>();
+		for (int i = 0; i < STATES; i ++) {
+			alphabet.add(i);
+		}
+		double [] ages = new double[EPOCHS];
+		int [] alphas = new int[EPOCHS];
+		int [] betas = new int[EPOCHS];
+		int [] indicators = new int[EPOCHS];
+		for (int i = 0; i < EPOCHS; i ++) {
+			ages[i] = (i == 0 ? 0 : ages[i-1]) + 0.1 + random.nextDouble();
+			alphas[i] = alphabet.remove(random.nextInt(alphabet.size()));
+			betas[i] = alphabet.remove(random.nextInt(alphabet.size()));
+			alphabet.add(alphas[i]);
+			indicators[i] = i < 2 ? i + 1 : 1 + random.nextInt(2);
+		}
+
+		AlphabetEpochs epochs = EpochLikelihoodTestUtil.getAlphabetEpochs(substModel, frequencies, ages, alphas, betas, indicators);
+		Assert.assertEquals(EPOCHS, epochs.getNActiveEpochs());
+		Assert.assertTrue(epochs.getEpochByRank(0).isRefinement());
+		Assert.assertTrue(epochs.getEpochByRank(1).isExpansion());
+		return epochs;
+
+	}
+
+
+}
@@ -0,0 +1,129 @@
+package resub.substitutionmodel.epochs;
+
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import resub.likelihood.EpochLikelihoodTestUtil;
+import resub.likelihood.EpochTreeLikelihood;
+import resub.substitutionmodel.MultiTransitionResub;
+import resub.substitutionmodel.SVSGeneralSubstitutionModel;
+
+
+public class AlphabetEpochsTest {
+
+	public static final double PRECISION = 1e-12;
+	public static final int SITES = 30;
+
+
+
+	@Test
+    public void testRejectedProposalsGiveSameEpochsAsRebuild() throws Exception {
+
+		System.out.println("\n--------------------------------------------");
+		System.out.println("Performing testRejectedProposalsGiveSameEpochsAsRebuild");
+
+		EpochLikelihoodTestUtil.setJavaOnly(true);
+		try {
+			Alignment data = EpochLikelihoodTestUtil.getAlignment(SITES, EpochLikelihoodTestUtil.SEED);
+			Tree tree = EpochLikelihoodTestUtil.getTree(data);
+			Frequencies frequencies = EpochLikelihoodTestUtil.getFrequencies();
+			SVSGeneralSubstitutionModel substModel = EpochLikelihoodTestUtil.getSubstModel(frequencies);
+			AlphabetEpochs epochs = EpochLikelihoodTestUtil.getAlphabetEpochs(substModel, frequencies);
+			MultiTransitionResub resub = EpochLikelihoodTestUtil.getResubModel(epochs, frequencies);
+			EpochTreeLikelihood likelihood = EpochLikelihoodTestUtil.getLikelihood(new EpochTreeLikelihood(), data, tree,
+					substModel, resub, new RealParameter("" + EpochLikelihoodTestUtil.EPOCH_DATE), 0.0);
+
+			RealParameter te = epochs.getTransitionAges();
+			IntegerParameter alpha = epochs.getAlphas();
+			IntegerParameter beta = epochs.getBetas();
+			IntegerParameter indicator = epochs.getIndicators();
+			RealParameter rates = substModel.ratesInput.get();
+			State state = EpochLikelihoodTestUtil.getState(likelihood, te, alpha, beta, indicator, rates);
+			compare(epochs, substModel, frequencies);
+
+
+			// Proposals on the ages, with and without reordering the epochs, on the transitions and on the present model
+			Runnable[] proposals = new Runnable[] {
+				() -> te.setValue(0, 0.3),
+				() -> te.setValue(0, 0.35),
+				() -> indicator.setValue(1, 1),
+				() -> beta.setValue(1, 4),
+				() -> te.setValue(0, 0.7),
+				() -> rates.setValue(0, 2.0),
+				() -> rates.setValue(0, 2.0),
+				() -> te.setValue(0, 0.7),
+				() -> alpha.setValue(2, 5),
+				() -> te.setValue(1, 0.2),
+				() -> indicator.setValue(0, 2)
+			};
+			boolean[] accepts = new boolean[] { true, false, false, true, false, false, true, true, false, false, true };
+
+			// Rejected proposals that move an age without reordering the epochs do not rebuild any rank
+			boolean[] keepsVersion = new boolean[] { false, true, false, false, false, false, false, false, false, true, false };
+			for (int move = 0; move < proposals.length; move ++) {
+				long version = epochs.getVersion();
+				EpochLikelihoodTestUtil.step(state, likelihood, proposals[move], accepts[move]);
+				if (keepsVersion[move]) {
+					Assert.assertEquals(version, epochs.getVersion());
+				} else {
+					Assert.assertTrue(version != epochs.getVersion());
+				}
+				compare(epochs, substModel, frequencies);
+				System.out.println("move " + move + (accepts[move] ? " accepted" : " rejected") + ": version " + version + " -> " + epochs.getVersion());
+			}
+
+		} finally {
+			EpochLikelihoodTestUtil.setJavaOnly(false);
+		}
+
+		System.out.println("Test passed!");
+		System.out.println("--------------------------------------------\n");
+
+	}
+
+
+	/**
+	 * Compare the alphabet, rates and frequencies at each rank with epochs built from scratch on the current parameter values
+	 */
+	private void compare(AlphabetEpochs epochs, SVSGeneralSubstitutionModel substModel, Frequencies frequencies) {
+
+		RealParameter rates = new RealParameter(substModel.ratesInput.get().getValues());
+		BooleanParameter rateIndicator = new BooleanParameter("true");
+		rateIndicator.initByName("dimension", rates.getDimension());
+		SVSGeneralSubstitutionModel rebuiltSubstModel = new SVSGeneralSubstitutionModel();
+		rebuiltSubstModel.initByName("symmetric", true, "rates", rates, "frequencies", frequencies, "rateIndicator", rateIndicator);
+
+		int nepochs = epochs.getNOldEpochs();
+		double[] ages = new double[nepochs];
+		int[] alphas = new int[nepochs];
+		int[] betas = new int[nepochs];
+		int[] indicators = new int[nepochs];
+		for (int i = 0; i < nepochs; i ++) {
+			ages[i] = epochs.getTransitionAges().getValue(i);
+			alphas[i] = epochs.getAlphas().getValue(i);
+			betas[i] = epochs.getBetas().getValue(i);
+			indicators[i] = epochs.getIndicators().getValue(i);
+		}
+		AlphabetEpochs rebuilt = EpochLikelihoodTestUtil.getAlphabetEpochs(rebuiltSubstModel, frequencies, ages, alphas, betas, indicators);
+
+		for (int rank = 0; rank < nepochs; rank ++) {
+			AlphabetEpoch epoch = epochs.getEpochByRank(rank);
+			AlphabetEpoch expected = rebuilt.getEpochByRank(rank);
+			Assert.assertEquals(expected.getIndex(), epoch.getIndex());
+			Assert.assertArrayEquals(expected.getStateMasks(), epoch.getStateMasks());
+			Assert.assertArrayEquals(expected.getRelativeRates(), epoch.getRelativeRates(), PRECISION);
+			Assert.assertArrayEquals(expected.getFrequencies(), epoch.getFrequencies(), PRECISION);
+		}
+
+	}
+
+
+}